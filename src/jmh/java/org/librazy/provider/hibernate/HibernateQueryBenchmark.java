@@ -0,0 +1,187 @@
+package org.librazy.provider.hibernate;
+
+import cat.nyaa.nyaacore.database.DatabaseUtils;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Collectors;
+import java.util.stream.LongStream;
+
+/**
+ * Latency of the hot paths of {@link HibernateDatabase.HibernateQuery} against in-memory H2.
+ * Run with {@code gradle jmh}; see {@code src/jmh/baseline.txt} for reference numbers.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Benchmark)
+public class HibernateQueryBenchmark {
+    /**
+     * Rows present before every iteration; ids at or above this are created by the insert benchmarks.
+     */
+    static final long ROWS = 10_000;
+    static final int BULK_SIZE = 100;
+
+    HibernateDatabase db;
+    long nextId;
+
+    @Setup(Level.Trial)
+    public void openDatabase() {
+        DatabaseUtils.registerProvider("hibernate", new HibernateProvider());
+        Map<String, Object> conf = new HashMap<>();
+        conf.put("username", "sa");
+        conf.put("password", "");
+        conf.put("jdbc", "org.h2.Driver");
+        conf.put("url", "jdbc:h2:mem:benchmark_db;");
+        conf.put("dialect", "org.hibernate.dialect.H2Dialect");
+        conf.put("classes", new Class<?>[]{TestTable.class});
+        db = DatabaseUtils.get("hibernate", null, conf);
+        db.connect();
+        db.auto(TestTable.class).delete();
+        db.auto(TestTable.class).insertAll(LongStream.range(0, ROWS).mapToObj(HibernateQueryBenchmark::row).collect(Collectors.toList()));
+        nextId = ROWS;
+    }
+
+    @TearDown(Level.Trial)
+    public void closeDatabase() {
+        db.close();
+    }
+
+    @TearDown(Level.Iteration)
+    public void removeInserted() {
+        db.auto(TestTable.class).where("id", ">=", ROWS).delete();
+        nextId = ROWS;
+    }
+
+    static TestTable row(long id) {
+        return new TestTable(id, id % 2 == 0 ? "even" : "odd", UUID.randomUUID(), UUID.randomUUID());
+    }
+
+    static long randomId() {
+        return ThreadLocalRandom.current().nextLong(ROWS);
+    }
+
+    /**
+     * Holds a transaction open around each iteration, so {@link #constructQuery} only pays for building the query.
+     */
+    @State(Scope.Thread)
+    public static class InTransaction {
+        HibernateDatabase db;
+
+        @Setup(Level.Iteration)
+        public void begin(HibernateQueryBenchmark benchmark) {
+            db = benchmark.db;
+            db.beginTransaction();
+        }
+
+        @TearDown(Level.Iteration)
+        public void rollback() {
+            db.rollbackTransaction();
+        }
+    }
+
+    /**
+     * A row inserted before each invocation of {@link #delete}.
+     */
+    @State(Scope.Thread)
+    public static class Inserted {
+        long id;
+
+        @Setup(Level.Invocation)
+        public void insert(HibernateQueryBenchmark benchmark) {
+            id = benchmark.nextId++;
+            benchmark.db.auto(TestTable.class).insert(row(id));
+        }
+    }
+
+    @Benchmark
+    public Object constructQuery(InTransaction state) {
+        return state.db.query(TestTable.class).whereEq("string", "even").where("id", "<", 100L);
+    }
+
+    @Benchmark
+    public TestTable selectById() {
+        return db.auto(TestTable.class).whereEq("id", randomId()).selectUnique();
+    }
+
+    @Benchmark
+    public List<TestTable> selectRange() {
+        long from = ThreadLocalRandom.current().nextLong(ROWS - 100);
+        return db.auto(TestTable.class).where("id", ">=", from).where("id", "<", from + 100).select();
+    }
+
+    @Benchmark
+    public int count() {
+        return db.auto(TestTable.class).whereEq("string", "odd").count();
+    }
+
+    @Benchmark
+    public void insert() {
+        db.auto(TestTable.class).insert(row(nextId++));
+    }
+
+    @Benchmark
+    @OutputTimeUnit(TimeUnit.MILLISECONDS)
+    public int insertBulk() {
+        List<TestTable> rows = new ArrayList<>(BULK_SIZE);
+        for (int i = 0; i < BULK_SIZE; i++) {
+            rows.add(row(nextId++));
+        }
+        return db.auto(TestTable.class).insertAll(rows);
+    }
+
+    @Benchmark
+    public void updateColumn() {
+        long id = randomId();
+        db.auto(TestTable.class).whereEq("id", id).update(row(id), "string");
+    }
+
+    @Benchmark
+    public void updateAllColumns() {
+        long id = randomId();
+        db.auto(TestTable.class).whereEq("id", id).update(row(id));
+    }
+
+    /**
+     * Without dirty tracking, compares against the row read by id and writes only the two changed uuid columns.
+     */
+    @Benchmark
+    public int updateChanged() {
+        return db.auto(TestTable.class).updateChanged(row(randomId()));
+    }
+
+    @Benchmark
+    public void delete(Inserted inserted) {
+        db.auto(TestTable.class).whereEq("id", inserted.id).delete();
+    }
+
+    @Benchmark
+    public void emptyTransaction() {
+        db.transaction(TestTable.class).close();
+    }
+
+    @Benchmark
+    public void beginCommit() {
+        db.beginTransaction();
+        db.commitTransaction();
+    }
+}
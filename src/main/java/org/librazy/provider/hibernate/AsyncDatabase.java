@@ -0,0 +1,199 @@
+package org.librazy.provider.hibernate;
+
+import java.util.Collection;
+import java.util.List;
+import java.util.Properties;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Consumer;
+import java.util.function.Function;
+import java.util.function.Supplier;
+
+/**
+ * Runs queries of a {@link HibernateDatabase} on its bounded worker pool.
+ * <p>
+ * Every operation runs in its own session and transaction on a worker thread, independent of any
+ * transaction opened on the database by the calling thread. Results are delivered on the callback
+ * executor given to {@link HibernateDatabase#async(Executor)}, e.g. the server main thread.
+ * The submitting thread never waits: when the work queue is full or the database is closing, the
+ * returned future fails right away with a {@link RejectedExecutionException}.
+ */
+public class AsyncDatabase {
+    private final HibernateDatabase database;
+    private final ThreadPoolExecutor pool;
+    private final Executor callbackExecutor;
+
+    AsyncDatabase(HibernateDatabase database, ThreadPoolExecutor pool, Executor callbackExecutor) {
+        this.database = database;
+        this.pool = pool;
+        this.callbackExecutor = callbackExecutor;
+    }
+
+    static ThreadPoolExecutor newPool(Properties properties) {
+        int threads = Settings.getInt(properties, Settings.ASYNC_THREADS, 2);
+        int queueSize = Settings.getInt(properties, Settings.ASYNC_QUEUE_SIZE, 1024);
+        AtomicInteger count = new AtomicInteger();
+        ThreadFactory factory = r -> {
+            Thread thread = new Thread(r, "HibernateProvider-async-" + count.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        };
+        return new ThreadPoolExecutor(threads, threads, 60, TimeUnit.SECONDS, new ArrayBlockingQueue<>(queueSize), factory, (r, executor) -> {
+            throw new RejectedExecutionException(executor.isShutdown() ? "Database is closing" : "Database work queue is full");
+        });
+    }
+
+    /**
+     * Runs the queued operations, then stops the pool; operations still queued after the timeout are dropped and
+     * their futures fail.
+     */
+    static void drain(ThreadPoolExecutor pool, long timeoutMillis) throws InterruptedException {
+        pool.shutdown();
+        if (!pool.awaitTermination(timeoutMillis, TimeUnit.MILLISECONDS)) {
+            List<Runnable> dropped = pool.shutdownNow();
+            RejectedExecutionException rejected = new RejectedExecutionException("Database closed before the operation ran");
+            for (Runnable operation : dropped) {
+                if (operation instanceof Operation) {
+                    ((Operation<?>) operation).future.completeExceptionally(rejected);
+                }
+            }
+            throw new IllegalStateException("Timed out draining database queue, " + dropped.size() + " queued operations dropped");
+        }
+    }
+
+    public <T> CompletableFuture<List<T>> select(Class<T> cls, Consumer<? super HibernateDatabase.HibernateQuery<T>> where) {
+        return submitRead(cls, where, HibernateDatabase.HibernateQuery::select);
+    }
+
+    /**
+     * Streams the matching entities through {@code action} on the worker thread, see {@link HibernateDatabase.HibernateQuery#stream(int)}.
+     */
+    public <T> CompletableFuture<Void> forEach(Class<T> cls, Consumer<? super HibernateDatabase.HibernateQuery<T>> where, Consumer<? super T> action) {
+        return submitRead(cls, where, q -> {
+            q.forEach(action);
+            return null;
+        });
+    }
+
+    public <T> CompletableFuture<T> selectUnique(Class<T> cls, Consumer<? super HibernateDatabase.HibernateQuery<T>> where) {
+        return submitRead(cls, where, HibernateDatabase.HibernateQuery::selectUnique);
+    }
+
+    public <T> CompletableFuture<List<T>> getAllById(Class<T> cls, Collection<?> ids, boolean keepMissing) {
+        return submitRead(cls, null, q -> q.getAllById(ids, keepMissing));
+    }
+
+    public <T> CompletableFuture<Integer> count(Class<T> cls, Consumer<? super HibernateDatabase.HibernateQuery<T>> where) {
+        return submitRead(cls, where, HibernateDatabase.HibernateQuery::count);
+    }
+
+    public <T> CompletableFuture<Void> insert(Class<T> cls, T object) {
+        return submit(cls, null, q -> {
+            q.insert(object);
+            return null;
+        });
+    }
+
+    public <T> CompletableFuture<Integer> insertAll(Class<T> cls, Collection<? extends T> objects) {
+        return submit(cls, null, q -> q.insertAll(objects));
+    }
+
+    public <T> CompletableFuture<Void> update(Class<T> cls, Consumer<? super HibernateDatabase.HibernateQuery<T>> where, T object, String... columns) {
+        return submit(cls, where, q -> {
+            q.update(object, columns);
+            return null;
+        });
+    }
+
+    public <T> CompletableFuture<Integer> upsertAll(Class<T> cls, Collection<? extends T> objects, String... columns) {
+        return submit(cls, null, q -> q.upsertAll(objects, columns));
+    }
+
+    public <T> CompletableFuture<Void> delete(Class<T> cls, Consumer<? super HibernateDatabase.HibernateQuery<T>> where) {
+        return submit(cls, where, q -> {
+            q.delete();
+            return null;
+        });
+    }
+
+    /**
+     * Runs {@code work} in one transaction, committed when it returns and rolled back when it throws.
+     */
+    public <T, R> CompletableFuture<R> transaction(Class<T> cls, Function<? super HibernateDatabase.HibernateQuery<T>, R> work) {
+        return submit(cls, null, work);
+    }
+
+    private <T, R> CompletableFuture<R> submit(Class<T> cls, Consumer<? super HibernateDatabase.HibernateQuery<T>> where, Function<? super HibernateDatabase.HibernateQuery<T>, R> work) {
+        return submit(cls, where, work, false);
+    }
+
+    /**
+     * Reads run on a stateless session, as their results are detached by the time they are delivered anyway.
+     */
+    private <T, R> CompletableFuture<R> submitRead(Class<T> cls, Consumer<? super HibernateDatabase.HibernateQuery<T>> where, Function<? super HibernateDatabase.HibernateQuery<T>, R> work) {
+        return submit(cls, where, work, true);
+    }
+
+    private <T, R> CompletableFuture<R> submit(Class<T> cls, Consumer<? super HibernateDatabase.HibernateQuery<T>> where, Function<? super HibernateDatabase.HibernateQuery<T>, R> work, boolean readOnly) {
+        return submit(() -> {
+            try (HibernateDatabase.HibernateQuery<T> query = readOnly ? database.readOnlyQuery(cls) : database.inlineQuery(cls)) {
+                try {
+                    if (where != null) where.accept(query);
+                    return work.apply(query);
+                } catch (RuntimeException | Error e) {
+                    query.markRollbackOnly();
+                    throw e;
+                }
+            }
+        });
+    }
+
+    private <R> CompletableFuture<R> submit(Supplier<R> task) {
+        CompletableFuture<R> future = new CompletableFuture<>();
+        try {
+            pool.execute(new Operation<>(task, future));
+        } catch (RejectedExecutionException e) {
+            future.completeExceptionally(e);
+        }
+        if (callbackExecutor == null) {
+            return future;
+        }
+        CompletableFuture<R> delivered = new CompletableFuture<>();
+        future.whenCompleteAsync((result, e) -> {
+            if (e != null) {
+                delivered.completeExceptionally(e);
+            } else {
+                delivered.complete(result);
+            }
+        }, callbackExecutor);
+        return delivered;
+    }
+
+    /**
+     * A queued operation, known to {@link #drain} so that its future fails if it is dropped.
+     */
+    private static final class Operation<R> implements Runnable {
+        private final Supplier<R> task;
+        private final CompletableFuture<R> future;
+
+        private Operation(Supplier<R> task, CompletableFuture<R> future) {
+            this.task = task;
+            this.future = future;
+        }
+
+        @Override
+        public void run() {
+            try {
+                future.complete(task.get());
+            } catch (Throwable e) {
+                future.completeExceptionally(e);
+            }
+        }
+    }
+}
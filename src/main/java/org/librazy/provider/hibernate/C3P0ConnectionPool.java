@@ -0,0 +1,90 @@
+package org.librazy.provider.hibernate;
+
+import com.mchange.v2.c3p0.ComboPooledDataSource;
+
+import javax.sql.DataSource;
+import java.beans.PropertyVetoException;
+import java.sql.SQLException;
+import java.util.Properties;
+
+/**
+ * c3p0 backend. Connections are validated when they are returned and while idle instead of on every checkout.
+ * A connection held longer than the leak detection threshold is closed and its checkout stack trace logged.
+ */
+final class C3P0ConnectionPool extends ConnectionPool {
+    private final ComboPooledDataSource dataSource;
+
+    C3P0ConnectionPool(Properties properties) {
+        super(properties);
+        dataSource = new ComboPooledDataSource();
+        try {
+            String driver = driver(properties);
+            if (driver != null) dataSource.setDriverClass(driver);
+        } catch (PropertyVetoException e) {
+            throw new IllegalArgumentException(e);
+        }
+        dataSource.setJdbcUrl(url(properties));
+        dataSource.setUser(username(properties));
+        dataSource.setPassword(password(properties));
+        dataSource.setMinPoolSize(minSize);
+        dataSource.setInitialPoolSize(minSize);
+        dataSource.setMaxPoolSize(maxSize);
+        dataSource.setCheckoutTimeout((int) connectionTimeout);
+        dataSource.setMaxIdleTime(seconds(idleTimeout));
+        dataSource.setMaxConnectionAge(seconds(maxLifetime));
+        dataSource.setTestConnectionOnCheckout(false);
+        dataSource.setTestConnectionOnCheckin(true);
+        dataSource.setIdleConnectionTestPeriod(seconds(validationInterval));
+        dataSource.setMaxStatementsPerConnection(statementCacheSize);
+        if (leakDetectionThreshold > 0) {
+            dataSource.setUnreturnedConnectionTimeout(Math.max(1, seconds(leakDetectionThreshold)));
+            dataSource.setDebugUnreturnedConnectionStackTraces(true);
+        }
+    }
+
+    private static int seconds(long millis) {
+        return (int) ((millis + 999) / 1000);
+    }
+
+    @Override
+    String getName() {
+        return "c3p0";
+    }
+
+    @Override
+    DataSource getDataSource() {
+        return dataSource;
+    }
+
+    @Override
+    int getActiveConnections() {
+        try {
+            return dataSource.getNumBusyConnectionsDefaultUser();
+        } catch (SQLException e) {
+            return -1;
+        }
+    }
+
+    @Override
+    int getIdleConnections() {
+        try {
+            return dataSource.getNumIdleConnectionsDefaultUser();
+        } catch (SQLException e) {
+            return -1;
+        }
+    }
+
+    @Override
+    int getWaitingThreads() {
+        try {
+            return dataSource.getNumThreadsAwaitingCheckoutDefaultUser();
+        } catch (SQLException e) {
+            return -1;
+        }
+    }
+
+    @Override
+    void close() {
+        dataSource.close();
+    }
+}
@@ -0,0 +1,112 @@
+package org.librazy.provider.hibernate;
+
+import org.hibernate.cache.spi.access.AccessType;
+import org.hibernate.cache.spi.access.EntityDataAccess;
+import org.hibernate.cache.spi.access.SoftLock;
+import org.hibernate.cache.spi.support.DomainDataRegionTemplate;
+import org.hibernate.engine.spi.SessionImplementor;
+import org.hibernate.persister.entity.EntityPersister;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.function.IntSupplier;
+
+/**
+ * Keeps the second-level cache of one entity consistent with writes that do not go through the session.
+ * <p>
+ * Rows written by identifier, whether by a native statement or by a bulk statement whose where clause pins the
+ * identifier, get their cache entries locked (read-write) or evicted (other strategies) before the write and
+ * released or evicted again once the transaction completes, as Hibernate does for entities it updates itself.
+ * Bulk statements pinned this way skip the region-wide clears Hibernate would otherwise run before them and after
+ * the transaction; any other bulk statement still clears the region of the entity, and only that region.
+ * <p>
+ * Closing registers the completion step, so it must happen after the last statement of the write.
+ */
+final class CacheInvalidation implements AutoCloseable {
+    private static final CacheInvalidation NONE = new CacheInvalidation(null, null, null);
+
+    private final SessionImplementor session;
+    private final EntityDescriptor<?> descriptor;
+    private final EntityPersister persister;
+    private final EntityDataAccess access;
+    private final LocalCacheStorage storage;
+    private final boolean readWrite;
+    private final List<Object> keys = new ArrayList<>();
+    private final List<SoftLock> locks = new ArrayList<>();
+
+    private CacheInvalidation(SessionImplementor session, EntityDescriptor<?> descriptor, LocalCacheStorage storage) {
+        this.session = session;
+        this.descriptor = descriptor;
+        this.persister = descriptor == null ? null : descriptor.getPersister();
+        this.access = persister == null ? null : persister.getCacheAccessStrategy();
+        this.storage = storage;
+        this.readWrite = access != null && access.getAccessType() == AccessType.READ_WRITE;
+    }
+
+    static CacheInvalidation of(SessionImplementor session, EntityDescriptor<?> descriptor) {
+        EntityPersister persister = descriptor.getPersister();
+        if (!persister.canWriteToCache()) return NONE;
+        Object region = persister.getCacheAccessStrategy().getRegion();
+        Object storage = region instanceof DomainDataRegionTemplate ? ((DomainDataRegionTemplate) region).getCacheStorageAccess() : null;
+        return new CacheInvalidation(session, descriptor, storage instanceof LocalCacheStorage ? (LocalCacheStorage) storage : null);
+    }
+
+    /**
+     * Locks or evicts the cache entry of the identifier until the transaction completes.
+     */
+    void invalidate(Object id) {
+        if (access == null) return;
+        Object key = access.generateCacheKey(descriptor.coerceId(id), persister, session.getFactory(), session.getTenantIdentifier());
+        keys.add(key);
+        if (readWrite) {
+            locks.add(access.lockItem(session, key, null));
+        } else {
+            access.remove(session, key);
+        }
+    }
+
+    /**
+     * Runs a bulk update or delete on the entity. If {@code ids} is not null, the statement must only write rows
+     * with one of those identifiers, whose entries are invalidated instead of the whole region.
+     */
+    int execute(Collection<?> ids, IntSupplier statement) {
+        if (ids == null || storage == null || !session.isTransactionInProgress()) {
+            return statement.getAsInt();
+        }
+        for (Object id : ids) {
+            invalidate(id);
+        }
+        // Hibernate clears the region when the statement starts, and once more after completion, in a process
+        // registered by the statement; both are skipped by a skip that only spans the statement and that process
+        session.getActionQueue().registerProcess((success, s) -> storage.skipNextClear(true));
+        storage.skipNextClear(true);
+        try {
+            return statement.getAsInt();
+        } finally {
+            storage.skipNextClear(false);
+            session.getActionQueue().registerProcess((success, s) -> storage.skipNextClear(false));
+        }
+    }
+
+    @Override
+    public void close() {
+        if (keys.isEmpty()) return;
+        if (!session.isTransactionInProgress()) {
+            complete();
+            return;
+        }
+        // the outcome decides nothing here: rolled back rows are reloaded like committed ones
+        session.getActionQueue().registerProcess((success, s) -> complete());
+    }
+
+    private void complete() {
+        for (int i = 0; i < keys.size(); i++) {
+            if (readWrite) {
+                access.unlockItem(session, keys.get(i), locks.get(i));
+            } else {
+                access.evict(keys.get(i));
+            }
+        }
+    }
+}
@@ -0,0 +1,79 @@
+package org.librazy.provider.hibernate;
+
+import javax.sql.DataSource;
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.util.Properties;
+
+/**
+ * A JDBC connection pool backend.
+ * <p>
+ * The backend is chosen by the {@code poolBackend} setting: {@code c3p0} (the default) or {@code hikari}.
+ * Both read the same pool size, validation, statement cache, leak detection and timeout settings.
+ */
+abstract class ConnectionPool {
+    final int minSize;
+    final int maxSize;
+    final long connectionTimeout;
+    final long idleTimeout;
+    final long maxLifetime;
+    final long validationInterval;
+    final int statementCacheSize;
+    final long leakDetectionThreshold;
+
+    ConnectionPool(Properties properties) {
+        this.minSize = Settings.getInt(properties, Settings.POOL_MIN_SIZE, 1);
+        this.maxSize = Settings.getInt(properties, Settings.POOL_MAX_SIZE, 10);
+        this.connectionTimeout = Settings.getInt(properties, Settings.POOL_CONNECTION_TIMEOUT, 30000);
+        this.idleTimeout = Settings.getInt(properties, Settings.POOL_IDLE_TIMEOUT, 300000);
+        this.maxLifetime = Settings.getInt(properties, Settings.POOL_MAX_LIFETIME, 1800000);
+        this.validationInterval = Settings.getInt(properties, Settings.POOL_VALIDATION_INTERVAL, 60000);
+        this.statementCacheSize = Settings.getInt(properties, Settings.POOL_STATEMENT_CACHE_SIZE, 250);
+        this.leakDetectionThreshold = Settings.getInt(properties, Settings.POOL_LEAK_DETECTION_THRESHOLD, 0);
+    }
+
+    static ConnectionPool create(Properties properties) {
+        String backend = Settings.getString(properties, Settings.POOL_BACKEND, "c3p0");
+        switch (backend.toLowerCase()) {
+            case "c3p0":
+                return new C3P0ConnectionPool(properties);
+            case "hikari":
+            case "hikaricp":
+                return new HikariConnectionPool(properties);
+            default:
+                throw new IllegalArgumentException("Unknown connection pool backend: " + backend);
+        }
+    }
+
+    static String url(Properties properties) {
+        return Settings.getString(properties, "hibernate.connection.url", null);
+    }
+
+    static String username(Properties properties) {
+        return Settings.getString(properties, "hibernate.connection.username", null);
+    }
+
+    static String password(Properties properties) {
+        return Settings.getString(properties, "hibernate.connection.password", null);
+    }
+
+    static String driver(Properties properties) {
+        return Settings.getString(properties, "hibernate.connection.driver_class", null);
+    }
+
+    abstract String getName();
+
+    abstract DataSource getDataSource();
+
+    Connection getConnection() throws SQLException {
+        return getDataSource().getConnection();
+    }
+
+    abstract int getActiveConnections();
+
+    abstract int getIdleConnections();
+
+    abstract int getWaitingThreads();
+
+    abstract void close();
+}
@@ -0,0 +1,125 @@
+package org.librazy.provider.hibernate;
+
+import org.hibernate.engine.jdbc.connections.spi.ConnectionProvider;
+
+import javax.sql.DataSource;
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+
+/**
+ * Connection pools shared by every database pointing at the same (url, username, dialect).
+ * <p>
+ * Each pool is reference counted; databases only see it through {@link SharedPool#getConnectionProvider()},
+ * which cannot be stopped by their own registries, and the pool is shut down when the last database using it
+ * releases it. The pool settings of the first database opened for a key apply to everyone sharing it.
+ */
+final class ConnectionPools {
+    private static final Map<List<Object>, SharedPool> pools = new HashMap<>();
+
+    private ConnectionPools() {
+    }
+
+    static SharedPool acquire(Properties properties) {
+        List<Object> key = Arrays.asList(
+                properties.get("hibernate.connection.url"),
+                properties.get("hibernate.connection.username"),
+                properties.get("hibernate.dialect"));
+        synchronized (pools) {
+            SharedPool pool = pools.get(key);
+            if (pool == null) {
+                pool = new SharedPool(key, ConnectionPool.create(properties));
+                pools.put(key, pool);
+            }
+            pool.references++;
+            return pool;
+        }
+    }
+
+    /**
+     * @return a pool used by a single database only
+     */
+    static SharedPool open(Properties properties) {
+        SharedPool pool = new SharedPool(null, ConnectionPool.create(properties));
+        pool.references++;
+        return pool;
+    }
+
+    static int size() {
+        synchronized (pools) {
+            return pools.size();
+        }
+    }
+
+    static final class SharedPool {
+        private final List<Object> key;
+        private final ConnectionPool pool;
+        private final LatencyHistogram checkoutLatency = new LatencyHistogram();
+        private final ConnectionProvider provider;
+        private int references;
+
+        private SharedPool(List<Object> key, ConnectionPool pool) {
+            this.key = key;
+            this.pool = pool;
+            this.provider = new ConnectionProvider() {
+                @Override
+                public Connection getConnection() throws SQLException {
+                    long start = System.nanoTime();
+                    Connection connection = pool.getConnection();
+                    checkoutLatency.record(System.nanoTime() - start);
+                    return connection;
+                }
+
+                @Override
+                public void closeConnection(Connection conn) throws SQLException {
+                    conn.close();
+                }
+
+                @Override
+                public boolean supportsAggressiveRelease() {
+                    return false;
+                }
+
+                @Override
+                public boolean isUnwrappableAs(Class unwrapType) {
+                    return unwrapType.isInstance(this) || unwrapType.isInstance(pool.getDataSource());
+                }
+
+                @Override
+                @SuppressWarnings("unchecked")
+                public <T> T unwrap(Class<T> unwrapType) {
+                    if (unwrapType.isInstance(this)) return (T) this;
+                    if (unwrapType.isInstance(pool.getDataSource())) return (T) pool.getDataSource();
+                    throw new IllegalArgumentException("Cannot unwrap to " + unwrapType);
+                }
+            };
+        }
+
+        /**
+         * @return a view of the pool that is not stopped when a registry using it is destroyed
+         */
+        ConnectionProvider getConnectionProvider() {
+            return provider;
+        }
+
+        DataSource getDataSource() {
+            return pool.getDataSource();
+        }
+
+        PoolMetrics getMetrics() {
+            return new PoolMetrics(pool, checkoutLatency);
+        }
+
+        void release() {
+            synchronized (pools) {
+                if (--references > 0) return;
+                if (key != null) pools.remove(key);
+            }
+            pool.close();
+        }
+    }
+}
@@ -0,0 +1,298 @@
+package org.librazy.provider.hibernate;
+
+import org.apache.commons.lang.Validate;
+import org.hibernate.dialect.Dialect;
+import org.hibernate.engine.spi.SharedSessionContractImplementor;
+import org.hibernate.persister.entity.AbstractEntityPersister;
+import org.hibernate.type.Type;
+
+import java.io.Serializable;
+import java.math.BigDecimal;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.Function;
+
+/**
+ * Immutable mapping metadata of one entity class, resolved once per SessionFactory.
+ */
+final class EntityDescriptor<T> {
+    private final Class<T> type;
+    private final AbstractEntityPersister persister;
+    private final String entityName;
+    private final String idProperty;
+    private final String idColumn;
+    private final Class<?> idType;
+    private final String[] propertyNames;
+    private final String[][] propertyColumns;
+    private final Class<?>[] propertyTypes;
+    private final Type[] hibernateTypes;
+    private final Function<Object, Object>[] getters;
+    private final Map<String, Integer> propertyIndex;
+    private final Map<String, String> columnMapping;
+    private final boolean statelessInsertable;
+    private final String[] querySpaces;
+    private final Map<List<Boolean>, Upsert> upserts = new ConcurrentHashMap<>();
+
+    @SuppressWarnings("unchecked")
+    private EntityDescriptor(Class<T> type, AbstractEntityPersister persister) {
+        this.type = type;
+        this.persister = persister;
+        this.entityName = persister.getEntityName();
+        this.idProperty = persister.getIdentifierPropertyName();
+        this.idColumn = persister.getIdentifierColumnNames()[0];
+        this.idType = persister.getIdentifierType().getReturnedClass();
+        this.propertyNames = persister.getPropertyNames();
+        this.propertyColumns = new String[propertyNames.length][];
+        this.propertyTypes = new Class<?>[propertyNames.length];
+        this.hibernateTypes = persister.getPropertyTypes();
+        this.getters = new Function[propertyNames.length];
+        Map<String, Integer> index = new HashMap<>();
+        Map<String, String> mapping = new HashMap<>();
+        mapping.put(idProperty, idProperty);
+        mapping.put(idColumn, idProperty);
+        for (int i = 0; i < propertyNames.length; i++) {
+            String prop = propertyNames[i];
+            propertyColumns[i] = persister.getPropertyColumnNames(i);
+            propertyTypes[i] = hibernateTypes[i].getReturnedClass();
+            getters[i] = PropertyAccessors.getter(persister.getEntityTuplizer().getGetter(i));
+            index.put(prop, i);
+            if (propertyColumns[i].length > 0) {
+                mapping.put(propertyColumns[i][0], prop);
+            }
+            mapping.put(prop, prop);
+        }
+        this.propertyIndex = Collections.unmodifiableMap(index);
+        this.columnMapping = Collections.unmodifiableMap(mapping);
+        this.statelessInsertable = !persister.getEntityMetamodel().hasPreInsertGeneratedValues() && !persister.hasCascades();
+        Serializable[] spaces = persister.getQuerySpaces();
+        this.querySpaces = Arrays.copyOf(spaces, spaces.length, String[].class);
+    }
+
+    static <T> EntityDescriptor<T> of(Class<T> type, AbstractEntityPersister persister) {
+        return new EntityDescriptor<>(type, persister);
+    }
+
+    Class<T> getType() {
+        return type;
+    }
+
+    AbstractEntityPersister getPersister() {
+        return persister;
+    }
+
+    String getEntityName() {
+        return entityName;
+    }
+
+    String getIdProperty() {
+        return idProperty;
+    }
+
+    String getIdColumn() {
+        return idColumn;
+    }
+
+    Class<?> getIdType() {
+        return idType;
+    }
+
+    String[] getPropertyNames() {
+        return propertyNames.clone();
+    }
+
+    int getPropertyCount() {
+        return propertyNames.length;
+    }
+
+    String getPropertyName(int index) {
+        return propertyNames[index];
+    }
+
+    String[] getPropertyColumns(int index) {
+        return propertyColumns[index].clone();
+    }
+
+    /**
+     * @return index of the given property, or -1 if it is not a (non-identifier) property of this entity
+     */
+    int indexOf(String property) {
+        Integer index = propertyIndex.get(property);
+        return index == null ? -1 : index;
+    }
+
+    /**
+     * @return the property mapped by the given column or property name, or null if none
+     */
+    String property(String columnOrProperty) {
+        return columnMapping.get(columnOrProperty);
+    }
+
+    Map<String, String> getColumnMapping() {
+        return columnMapping;
+    }
+
+    /**
+     * @return whether inserting through a StatelessSession is equivalent to persist(),
+     * i.e. there are no in-memory generated values or cascades that a stateless insert would skip
+     */
+    boolean isStatelessInsertable() {
+        return statelessInsertable;
+    }
+
+    /**
+     * @return the value of the given identifier or non-identifier property of the entity
+     */
+    Object getValue(T entity, String property) {
+        if (idProperty.equals(property)) return getIdentifier(entity);
+        int index = indexOf(property);
+        Validate.isTrue(index >= 0, "No property '" + property + "' in " + entityName);
+        return getPropertyValue(entity, index);
+    }
+
+    Class<?> javaType(String property) {
+        if (idProperty.equals(property)) return idType;
+        int index = indexOf(property);
+        return index < 0 ? null : propertyTypes[index];
+    }
+
+    String getTableName() {
+        return persister.getTableName();
+    }
+
+    /**
+     * @return the tables read by a query on this entity
+     */
+    String[] getQuerySpaces() {
+        return querySpaces;
+    }
+
+    String[] getIdColumns() {
+        return persister.getIdentifierColumnNames();
+    }
+
+    Object getPropertyValue(T entity, int index) {
+        return getters[index].apply(entity);
+    }
+
+    Object[] getPropertyValues(T entity) {
+        Object[] values = new Object[getters.length];
+        for (int i = 0; i < values.length; i++) {
+            values[i] = getters[i].apply(entity);
+        }
+        return values;
+    }
+
+    /**
+     * @return the property values of the entity, with mutable values such as dates copied so that
+     * later changes to the entity do not show up in the returned state
+     */
+    Object[] snapshot(T entity) {
+        Object[] values = getPropertyValues(entity);
+        for (int i = 0; i < values.length; i++) {
+            values[i] = hibernateTypes[i].deepCopy(values[i], persister.getFactory());
+        }
+        return values;
+    }
+
+    /**
+     * @return the identifier followed by a snapshot of the property values, from which {@link #assemble} builds copies of the entity
+     */
+    Object[] disassemble(T entity) {
+        Object[] values = getPropertyValues(entity);
+        Object[] disassembled = new Object[values.length + 1];
+        disassembled[0] = getIdentifier(entity);
+        for (int i = 0; i < values.length; i++) {
+            disassembled[i + 1] = hibernateTypes[i].deepCopy(values[i], persister.getFactory());
+        }
+        return disassembled;
+    }
+
+    /**
+     * @return a new detached entity holding copies of the disassembled values
+     */
+    @SuppressWarnings("unchecked")
+    T assemble(Object[] disassembled, SharedSessionContractImplementor session) {
+        T entity = (T) persister.instantiate((Serializable) disassembled[0], session);
+        Object[] values = new Object[disassembled.length - 1];
+        for (int i = 0; i < values.length; i++) {
+            values[i] = hibernateTypes[i].deepCopy(disassembled[i + 1], persister.getFactory());
+        }
+        persister.setPropertyValues(entity, values);
+        return entity;
+    }
+
+    /**
+     * @return the upsert statement of this entity updating the given properties, compiled once per property selection
+     */
+    Upsert upsert(Dialect dialect, boolean[] updated) {
+        Boolean[] key = new Boolean[updated.length];
+        for (int i = 0; i < updated.length; i++) {
+            key[i] = updated[i];
+        }
+        return upserts.computeIfAbsent(Arrays.asList(key), k -> Upsert.compile(this, dialect, updated));
+    }
+
+    boolean isVersioned() {
+        return persister.isVersioned();
+    }
+
+    void setPropertyValue(T entity, int index, Object value) {
+        persister.setPropertyValue(entity, index, value);
+    }
+
+    /**
+     * @return the identifier as the identifier type: UUIDs may be given as strings, integral ids as any integral number
+     * @throws IllegalArgumentException if an integral id is out of the range of the identifier type, or not an integer
+     */
+    Serializable coerceId(Object id) {
+        Validate.notNull(id, "Identifier can not be null");
+        return (Serializable) coerce(idProperty, idType, id);
+    }
+
+    /**
+     * @return the value as the Java type of the property: UUIDs may be given as strings, integral values as any
+     * integral number or its string form
+     * @throws IllegalArgumentException if an integral value is out of the range of the property type, or not an integer
+     */
+    Object coerce(String property, Object value) {
+        Class<?> type = javaType(property);
+        return type == null || value == null ? value : coerce(property, type, value);
+    }
+
+    private static Object coerce(String property, Class<?> type, Object value) {
+        if (type.isInstance(value)) return value;
+        if (type == UUID.class && value instanceof String) {
+            return UUID.fromString((String) value);
+        }
+        if ((type == Long.class || type == Integer.class || type == Short.class) && (value instanceof Number || value instanceof String)) {
+            long number;
+            if (value instanceof Long || value instanceof Integer || value instanceof Short || value instanceof Byte) {
+                number = ((Number) value).longValue();
+            } else {
+                try {
+                    // exact, unlike longValue() which drops fractions and the high bits of big numbers
+                    number = new BigDecimal(value.toString()).longValueExact();
+                } catch (NumberFormatException | ArithmeticException e) {
+                    throw new IllegalArgumentException("'" + value + "' is not a valid value of " + property, e);
+                }
+            }
+            if (type == Long.class) return number;
+            long min = type == Integer.class ? Integer.MIN_VALUE : Short.MIN_VALUE;
+            long max = type == Integer.class ? Integer.MAX_VALUE : Short.MAX_VALUE;
+            // a narrowing cast would silently find the row of another value
+            Validate.isTrue(number >= min && number <= max, value + " is out of the range of " + property + " (" + type.getSimpleName() + ")");
+            if (type == Integer.class) return (int) number;
+            return (short) number;
+        }
+        return value;
+    }
+
+    Object getIdentifier(T entity) {
+        return persister.getIdentifier(entity, (SharedSessionContractImplementor) null);
+    }
+}
@@ -0,0 +1,55 @@
+package org.librazy.provider.hibernate;
+
+import org.hibernate.SessionFactory;
+import org.hibernate.UnknownEntityTypeException;
+import org.hibernate.metamodel.spi.MetamodelImplementor;
+import org.hibernate.persister.entity.AbstractEntityPersister;
+import org.hibernate.persister.entity.EntityPersister;
+
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Registry of {@link EntityDescriptor}s for every entity known to a SessionFactory.
+ * Built once when the factory is (re)built and never modified afterwards.
+ */
+final class EntityDescriptors {
+    /**
+     * Number of registries built from a metamodel, by every database
+     */
+    private static final AtomicLong metamodelLookups = new AtomicLong();
+
+    private final Map<Class<?>, EntityDescriptor<?>> descriptors;
+
+    EntityDescriptors(SessionFactory sessionFactory) {
+        metamodelLookups.incrementAndGet();
+        MetamodelImplementor metamodel = (MetamodelImplementor) sessionFactory.getMetamodel();
+        Map<Class<?>, EntityDescriptor<?>> map = new HashMap<>();
+        for (EntityPersister persister : metamodel.entityPersisters().values()) {
+            Class<?> cls = persister.getMappedClass();
+            if (cls != null && persister instanceof AbstractEntityPersister) {
+                map.put(cls, EntityDescriptor.of(cls, (AbstractEntityPersister) persister));
+            }
+        }
+        this.descriptors = Collections.unmodifiableMap(map);
+    }
+
+    @SuppressWarnings("unchecked")
+    <T> EntityDescriptor<T> get(Class<T> cls) {
+        EntityDescriptor<T> descriptor = (EntityDescriptor<T>) descriptors.get(cls);
+        if (descriptor == null) {
+            throw new UnknownEntityTypeException("Unable to locate persister: " + cls.getName());
+        }
+        return descriptor;
+    }
+
+    int size() {
+        return descriptors.size();
+    }
+
+    static long getMetamodelLookupCount() {
+        return metamodelLookups.get();
+    }
+}
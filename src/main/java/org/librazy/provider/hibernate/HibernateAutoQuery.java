@@ -0,0 +1,239 @@
+package org.librazy.provider.hibernate;
+
+import cat.nyaa.nyaacore.database.Query;
+
+import javax.persistence.Tuple;
+import java.util.Collection;
+import java.util.List;
+import java.util.function.Consumer;
+import java.util.function.Function;
+import java.util.stream.Stream;
+
+/**
+ * Closes the wrapped query, committing or rolling back its inline transaction, after every operation.
+ */
+public class HibernateAutoQuery<T> implements Query<T> {
+    private HibernateDatabase.HibernateQuery<T> query;
+    /**
+     * Whether the wrapped query only reads, from a replica, and writes need a query on the primary
+     */
+    private boolean routed;
+    /**
+     * The unit of work routed writes and, while it is open, reads run in; null if they run on the wrapped query
+     */
+    private final UnitOfWork unitOfWork;
+
+    HibernateAutoQuery(HibernateDatabase.HibernateQuery<T> query, boolean routed, UnitOfWork unitOfWork) {
+        this.query = query;
+        this.routed = routed;
+        this.unitOfWork = unitOfWork;
+    }
+
+    private <R> R read(Function<HibernateDatabase.HibernateQuery<T>, R> operation) {
+        if (unitOfWork != null) {
+            return unitOfWork.run(query, false, operation);
+        }
+        try (HibernateDatabase.HibernateQuery<T> q = query) {
+            return operation.apply(q);
+        }
+    }
+
+    private <R> R write(Function<HibernateDatabase.HibernateQuery<T>, R> operation) {
+        if (unitOfWork != null && routed) {
+            return unitOfWork.run(query, true, operation);
+        }
+        try (HibernateDatabase.HibernateQuery<T> q = writes()) {
+            return operation.apply(q);
+        }
+    }
+
+    private HibernateDatabase.HibernateQuery<T> writes() {
+        if (!routed) return query;
+        HibernateDatabase.HibernateQuery<T> reads = query;
+        try {
+            query = reads.onPrimary();
+            routed = false;
+        } finally {
+            reads.close();
+        }
+        return query;
+    }
+
+    @Override
+    public HibernateAutoQuery<T> reset() {
+        query.reset();
+        return this;
+    }
+
+    @Override
+    public HibernateAutoQuery<T> whereEq(String columnName, Object obj) {
+        query.whereEq(columnName, obj);
+        return this;
+    }
+
+    @Override
+    public HibernateAutoQuery<T> where(String columnName, String comparator, Object obj) {
+        query.where(columnName, comparator, obj);
+        return this;
+    }
+
+    public HibernateAutoQuery<T> whereIn(String columnName, Collection<?> values) {
+        query.whereIn(columnName, values);
+        return this;
+    }
+
+    public HibernateAutoQuery<T> orderBy(String columnName) {
+        query.orderBy(columnName);
+        return this;
+    }
+
+    public HibernateAutoQuery<T> orderBy(String columnName, boolean descending) {
+        query.orderBy(columnName, descending);
+        return this;
+    }
+
+    public HibernateAutoQuery<T> limit(int limit) {
+        query.limit(limit);
+        return this;
+    }
+
+    public HibernateAutoQuery<T> offset(int offset) {
+        query.offset(offset);
+        return this;
+    }
+
+    public HibernateAutoQuery<T> after(Object... sortKey) {
+        query.after(sortKey);
+        return this;
+    }
+
+    public HibernateAutoQuery<T> after(T last) {
+        query.after(last);
+        return this;
+    }
+
+    @Override
+    public void delete() {
+        write(q -> {
+            q.delete();
+            return null;
+        });
+    }
+
+    @Override
+    public void insert(T object) {
+        write(q -> {
+            q.insert(object);
+            return null;
+        });
+    }
+
+    public int insertAll(Iterable<? extends T> objects) {
+        return write(q -> q.insertAll(objects));
+    }
+
+    public int insertAll(Stream<? extends T> objects) {
+        return write(q -> q.insertAll(objects));
+    }
+
+    @Override
+    public List<T> select() {
+        return read(q -> q.select());
+    }
+
+    public T getById(Object id) {
+        return read(q -> q.getById(id));
+    }
+
+    public List<T> getAllById(Collection<?> ids) {
+        return read(q -> q.getAllById(ids));
+    }
+
+    public List<T> getAllById(Collection<?> ids, boolean keepMissing) {
+        return read(q -> q.getAllById(ids, keepMissing));
+    }
+
+    /**
+     * The wrapped query stays open until the returned stream is closed. The open unit of work of the calling
+     * thread is committed first.
+     */
+    public Stream<T> stream() {
+        if (unitOfWork != null) {
+            unitOfWork.commit();
+        }
+        HibernateDatabase.HibernateQuery<T> q = query;
+        try {
+            return q.stream().onClose(q::close);
+        } catch (RuntimeException e) {
+            q.close();
+            throw e;
+        }
+    }
+
+    /**
+     * The open unit of work of the calling thread is committed first.
+     */
+    public void forEach(Consumer<? super T> action) {
+        if (unitOfWork != null) {
+            unitOfWork.commit();
+        }
+        try (HibernateDatabase.HibernateQuery<T> q = query) {
+            q.forEach(action);
+        }
+    }
+
+    public List<Object[]> selectColumns(String... columns) {
+        return read(q -> q.selectColumns(columns));
+    }
+
+    public List<Tuple> selectTuples(String... columns) {
+        return read(q -> q.selectTuples(columns));
+    }
+
+    public <R> List<R> selectAs(Class<R> type, String... columns) {
+        return read(q -> q.selectAs(type, columns));
+    }
+
+    @Override
+    public T selectUnique() {
+        return read(q -> q.selectUnique());
+    }
+
+    @Override
+    public T selectUniqueUnchecked() {
+        return read(q -> q.selectUniqueUnchecked());
+    }
+
+    @Override
+    public int count() {
+        return read(q -> q.count());
+    }
+
+    @Override
+    public void update(T obj, String... columns) {
+        write(q -> {
+            q.update(obj, columns);
+            return null;
+        });
+    }
+
+    public void upsert(T obj, String... columns) {
+        write(q -> {
+            q.upsert(obj, columns);
+            return null;
+        });
+    }
+
+    public int upsertAll(Collection<? extends T> objects, String... columns) {
+        return write(q -> q.upsertAll(objects, columns));
+    }
+
+    public int updateChanged(T obj) {
+        return write(q -> q.updateChanged(obj));
+    }
+
+    @Override
+    public void close() {
+        query.close();
+    }
+}
@@ -1,481 +1,1859 @@
 package org.librazy.provider.hibernate;
 
 import cat.nyaa.nyaacore.database.*;
+import com.google.common.base.Throwables;
 import com.google.common.collect.HashBasedTable;
+import com.google.common.collect.MapMaker;
+import com.google.common.collect.Table;
 import org.apache.commons.lang.Validate;
+import org.hibernate.CacheMode;
 import org.hibernate.FlushMode;
+import org.hibernate.NonUniqueResultException;
+import org.hibernate.ScrollMode;
+import org.hibernate.ScrollableResults;
 import org.hibernate.Session;
 import org.hibernate.SessionFactory;
+import org.hibernate.SharedSessionContract;
+import org.hibernate.StatelessSession;
 import org.hibernate.Transaction;
+import org.hibernate.boot.Metadata;
 import org.hibernate.boot.MetadataSources;
+import org.hibernate.boot.registry.StandardServiceRegistry;
 import org.hibernate.boot.registry.StandardServiceRegistryBuilder;
-import org.hibernate.cfg.Configuration;
+import org.hibernate.cfg.AvailableSettings;
 import org.hibernate.context.internal.ThreadLocalSessionContext;
-import org.hibernate.metadata.ClassMetadata;
-import org.hibernate.metamodel.spi.MetamodelImplementor;
+import org.hibernate.engine.spi.EntityEntry;
+import org.hibernate.engine.spi.SessionImplementor;
+import org.hibernate.engine.spi.SharedSessionContractImplementor;
 import org.hibernate.persister.entity.AbstractEntityPersister;
-import org.hibernate.service.ServiceRegistry;
 import org.hibernate.tool.hbm2ddl.SchemaExport;
 import org.hibernate.tool.hbm2ddl.SchemaUpdate;
+import org.hibernate.tool.hbm2ddl.SchemaValidator;
 import org.hibernate.tool.schema.TargetType;
 
 import javax.persistence.FlushModeType;
-import javax.persistence.criteria.*;
+import javax.persistence.Tuple;
+import java.io.Serializable;
+import java.lang.reflect.Constructor;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
 import java.sql.SQLException;
 import java.util.*;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Consumer;
+import java.util.function.Supplier;
 import java.util.logging.Logger;
+import java.util.stream.Stream;
+import java.util.stream.StreamSupport;
 
 public class HibernateDatabase implements RelationalDB {
-    private SessionFactory sessionFactory;
-    private ServiceRegistry serviceRegistry;
+    /**
+     * Builds the first SessionFactory of databases opened while the server loads with the 'parallelStartup' config
+     * entry, so that plugins build theirs in parallel; {@link #connect()} waits for it and throws if it failed
+     */
+    private static final ThreadPoolExecutor startupExecutor = newStartupExecutor();
+    private volatile SessionFactoryHandle current;
+    private final CompletableFuture<SessionFactoryHandle> startup;
+    private final Set<SessionFactoryHandle> liveHandles = ConcurrentHashMap.newKeySet();
+    private final ExecutorService rebuildExecutor;
+    private final QueryPlanCache planCache;
+    private final int batchSize;
+    private final int fetchSize;
+    private final int inChunkSize;
+    private final int multiGetBatchSize;
+    private ThreadPoolExecutor asyncPool;
+    private final WriteBehindBuffer writeBehind;
+    private final UnitOfWork unitOfWork;
+    private final QueryMetrics metrics;
+    private final QueryResultCache resultCache;
+    /**
+     * State of loaded entities as last read from or written to the database, by entity identity;
+     * null unless dirty tracking is enabled
+     */
+    private final Map<Object, Object[]> snapshots;
+    private final StandardServiceRegistry serviceRegistry;
+    private final ConnectionPools.SharedPool pool;
+    private final ReplicaRouter replicas;
     private final Properties properties;
-    private List<Class<?>> classes;
-    private Session session;
-    private Transaction transaction;
+    /**
+     * The hbm2ddl action run when the fingerprints of the mapping are not stored yet, null if Hibernate runs it
+     */
+    private final String schemaAction;
+    private volatile List<Class<?>> classes;
+    private final ThreadLocal<TransactionContext> transactions = new ThreadLocal<>();
+    private volatile boolean closed;
+    /**
+     * Set once close() detaches the async pool, guarded by this; acquire() still works until {@link #closed} is set
+     */
+    private boolean closing;
+    private boolean registryDestroyed;
+    private final AtomicInteger generation = new AtomicInteger();
     private Logger log = Logger.getLogger("HibernateProvider");
 
     HibernateDatabase(Properties properties, List<Class<?>> classes, Logger logger) {
         if (logger != null) log = logger;
         this.properties = properties;
         this.classes = new ArrayList<>(classes);
-        rebuild();
+        this.planCache = new QueryPlanCache(Settings.getInt(properties, Settings.PLAN_CACHE_SIZE, 256));
+        int batch = Settings.getInt(properties, Settings.BATCH_SIZE, 0);
+        this.batchSize = batch > 0 ? batch : 50;
+        this.fetchSize = Settings.getInt(properties, Settings.FETCH_SIZE, 1000);
+        this.inChunkSize = Settings.getInt(properties, Settings.IN_CHUNK_SIZE, 0);
+        this.multiGetBatchSize = Settings.getInt(properties, Settings.MULTI_GET_BATCH_SIZE, 0);
+        // the registry, and with it the connection pool, outlives every SessionFactory built from it
+        StandardServiceRegistryBuilder registryBuilder = new StandardServiceRegistryBuilder().disableAutoClose().applySettings(properties);
+        String action = properties.getProperty(AvailableSettings.HBM2DDL_AUTO, "none");
+        this.schemaAction = Settings.getBoolean(properties, Settings.SCHEMA_FINGERPRINT, true) && ("update".equals(action) || "validate".equals(action)) ? action : null;
+        if (schemaAction != null) {
+            registryBuilder.applySetting(AvailableSettings.HBM2DDL_AUTO, "none");
+        }
+        this.pool = Settings.getBoolean(properties, Settings.SHARED_POOL, true) ? ConnectionPools.acquire(properties) : ConnectionPools.open(properties);
+        registryBuilder.applySetting(AvailableSettings.CONNECTION_PROVIDER, pool.getConnectionProvider());
+        this.replicas = ReplicaRouter.create(properties, log);
+        boolean metricsEnabled = Settings.getBoolean(properties, Settings.METRICS, false);
+        if (metricsEnabled) {
+            registryBuilder.applySetting(AvailableSettings.GENERATE_STATISTICS, true);
+        }
+        if (Settings.getBoolean(properties, Settings.SECOND_LEVEL_CACHE, false)) {
+            // entities opt in with @Cacheable, or all of them with cacheMode ALL
+            registryBuilder.applySetting(AvailableSettings.USE_SECOND_LEVEL_CACHE, true);
+            registryBuilder.applySetting(AvailableSettings.CACHE_REGION_FACTORY, new LocalRegionFactory(properties));
+        }
+        this.serviceRegistry = registryBuilder.build();
+        this.metrics = metricsEnabled ? new QueryMetrics(this, Settings.getInt(properties, Settings.SLOW_QUERY_THRESHOLD, 0), log) : null;
+        this.rebuildExecutor = Executors.newSingleThreadExecutor(r -> {
+            Thread thread = new Thread(r, "HibernateProvider-rebuild");
+            thread.setDaemon(true);
+            return thread;
+        });
+        this.writeBehind = Settings.getBoolean(properties, Settings.WRITE_BEHIND, false) ? new WriteBehindBuffer(this, properties, log) : null;
+        this.unitOfWork = Settings.getBoolean(properties, Settings.UNIT_OF_WORK, false) ? new UnitOfWork(this, properties, log) : null;
+        this.snapshots = Settings.getBoolean(properties, Settings.DIRTY_TRACKING, false) ? new MapMaker().weakKeys().makeMap() : null;
+        this.resultCache = Settings.getBoolean(properties, Settings.RESULT_CACHE, false)
+                ? new QueryResultCache(Settings.getInt(properties, Settings.RESULT_CACHE_MAX_SIZE, 1000), Settings.getInt(properties, Settings.RESULT_CACHE_TTL, 10000))
+                : null;
+        // last, as the build may run on another thread, and reads the fields assigned above
+        if (Settings.getBoolean(properties, Settings.PARALLEL_STARTUP, false)) {
+            this.startup = CompletableFuture.supplyAsync(() -> current = buildFactory(this.classes), startupExecutor);
+        } else {
+            this.current = buildFactory(this.classes);
+            this.startup = CompletableFuture.completedFuture(current);
+        }
+    }
+
+    private static ThreadPoolExecutor newStartupExecutor() {
+        int threads = Runtime.getRuntime().availableProcessors();
+        AtomicInteger count = new AtomicInteger();
+        ThreadPoolExecutor executor = new ThreadPoolExecutor(threads, threads, 30, TimeUnit.SECONDS, new LinkedBlockingQueue<>(), r -> {
+            Thread thread = new Thread(r, "HibernateProvider-startup-" + count.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        });
+        executor.allowCoreThreadTimeOut(true);
+        return executor;
     }
 
-    private void rebuild() {
-        if (sessionFactory != null) sessionFactory.close();
-        Configuration hibernateConfig = new Configuration().setProperties(properties);
-        if (classes != null) {
-            for (Class<?> cls :
-                    classes) {
-                hibernateConfig.addAnnotatedClass(cls);
+    private SessionFactoryHandle buildFactory(List<Class<?>> classes) {
+        long start = System.nanoTime();
+        MetadataSources metadataSources = new MetadataSources(serviceRegistry);
+        classes.forEach(metadataSources::addAnnotatedClass);
+        Metadata metadata = metadataSources.buildMetadata();
+        long built = System.nanoTime();
+        String schema = schemaAction == null ? "left to Hibernate" : checkSchema(metadata);
+        long checked = System.nanoTime();
+        SessionFactoryHandle handle = new SessionFactoryHandle(metadata.buildSessionFactory(), this::factoryClosed);
+        long end = System.nanoTime();
+        liveHandles.add(handle);
+        log.info(String.format("Built SessionFactory of %d entities in %d ms: metadata %d ms, schema %s in %d ms, SessionFactory %d ms",
+                classes.size(), TimeUnit.NANOSECONDS.toMillis(end - start), TimeUnit.NANOSECONDS.toMillis(built - start),
+                schema, TimeUnit.NANOSECONDS.toMillis(checked - built), TimeUnit.NANOSECONDS.toMillis(end - checked)));
+        return handle;
+    }
+
+    /**
+     * Runs the schema action unless the fingerprints of the mapping are stored, i.e. it already ran for this mapping.
+     *
+     * @return what was done, for the log
+     */
+    private String checkSchema(Metadata metadata) {
+        Map<String, String> fingerprints = SchemaFingerprints.of(metadata);
+        if (fingerprints.isEmpty()) {
+            return "unchanged";
+        }
+        try (Connection connection = pool.getConnectionProvider().getConnection()) {
+            if (SchemaFingerprints.stored(connection, fingerprints)) {
+                return "unchanged";
+            }
+        } catch (SQLException e) {
+            log.warning("Could not read schema fingerprints: " + e.getMessage());
+        }
+        if ("validate".equals(schemaAction)) {
+            new SchemaValidator().validate(metadata);
+        } else {
+            SchemaUpdate schemaUpdate = new SchemaUpdate();
+            schemaUpdate.execute(EnumSet.of(TargetType.DATABASE), metadata);
+            if (!schemaUpdate.getExceptions().isEmpty()) {
+                for (Object e : schemaUpdate.getExceptions()) {
+                    log.warning("Schema update failed: " + e);
+                }
+                return "update failed";
             }
         }
-        serviceRegistry = new StandardServiceRegistryBuilder().applySettings(hibernateConfig.getProperties()).build();
-        sessionFactory = hibernateConfig.buildSessionFactory(serviceRegistry);
+        try (Connection connection = pool.getConnectionProvider().getConnection()) {
+            SchemaFingerprints.store(connection, fingerprints);
+        } catch (SQLException e) {
+            log.warning("Could not store schema fingerprints: " + e.getMessage());
+        }
+        return "validate".equals(schemaAction) ? "validated" : "updated";
+    }
+
+    /**
+     * @return the current SessionFactory, waiting for the first one to be built; rethrows the failure to build it
+     */
+    private SessionFactoryHandle current() {
+        if (current == null) {
+            try {
+                startup.join();
+            } catch (CompletionException e) {
+                Throwables.throwIfUnchecked(e.getCause());
+                throw e;
+            }
+        }
+        return current;
+    }
+
+    /**
+     * Applies a set of table changes with a single SessionFactory rebuild, on the rebuild thread.
+     * The new factory replaces the current one atomically; sessions already open keep using the old
+     * factory, which is closed once they are all released.
+     */
+    CompletableFuture<Void> applySchemaChanges(List<Class<?>> create, List<Class<?>> update, List<Class<?>> delete) {
+        return CompletableFuture.runAsync(() -> {
+            if (closed) {
+                throw new IllegalStateException("Database is closed");
+            }
+            SessionFactoryHandle old = current();
+            List<Class<?>> next = new ArrayList<>(classes);
+            if (!update.isEmpty()) {
+                MetadataSources metadataSources = new MetadataSources(serviceRegistry);
+                update.forEach(metadataSources::addAnnotatedClass);
+                new SchemaUpdate().execute(EnumSet.of(TargetType.DATABASE), metadataSources.buildMetadata());
+            }
+            if (!delete.isEmpty()) {
+                MetadataSources metadataSources = new MetadataSources(serviceRegistry);
+                delete.forEach(metadataSources::addAnnotatedClass);
+                Metadata metadata = metadataSources.buildMetadata();
+                new SchemaExport().execute(EnumSet.of(TargetType.DATABASE), SchemaExport.Action.DROP, metadata);
+                if (schemaAction != null) {
+                    try (Connection connection = pool.getConnectionProvider().getConnection()) {
+                        SchemaFingerprints.remove(connection, SchemaFingerprints.of(metadata).keySet());
+                    } catch (SQLException e) {
+                        log.warning("Could not remove schema fingerprints: " + e.getMessage());
+                    }
+                }
+                next.removeAll(delete);
+            }
+            for (Class<?> cls : create) {
+                if (!next.contains(cls)) next.add(cls);
+            }
+            SessionFactoryHandle built = buildFactory(next);
+            classes = next;
+            current = built;
+            generation.incrementAndGet();
+            planCache.clear();
+            if (resultCache != null) {
+                resultCache.clear();
+            }
+            old.retire();
+        }, rebuildExecutor);
+    }
+
+    /**
+     * Starts a batch of table changes that is applied with a single rebuild.
+     */
+    public SchemaChanges schemaChanges() {
+        return new SchemaChanges(this);
+    }
+
+    /**
+     * Makes cached results read from the tables of the entity stale, after writing them outside of a query.
+     */
+    void invalidateResults(EntityDescriptor<?> descriptor) {
+        if (resultCache != null) {
+            resultCache.invalidate(descriptor.getQuerySpaces());
+        }
+    }
+
+    /**
+     * Makes cached results of the entities a unit of work wrote stale, evicts the entities from the second-level
+     * cache, which its own sessions never touch, and sends the writer's reads to the primary once it has committed.
+     */
+    void unitOfWorkCompleted(Set<EntityDescriptor<?>> written, Thread writer, boolean committed) {
+        for (EntityDescriptor<?> descriptor : written) {
+            invalidateResults(descriptor);
+            // other threads may have cached the rows as they were before the unit
+            currentFactory().getCache().evictEntityData(descriptor.getType());
+        }
+        if (committed && replicas != null) {
+            replicas.written(writer);
+        }
+    }
+
+    /**
+     * Acquires the current SessionFactory; the caller must {@link SessionFactoryHandle#release() release} it.
+     */
+    SessionFactoryHandle acquire() {
+        for (; ; ) {
+            if (closed) {
+                throw new IllegalStateException("Database is closed");
+            }
+            SessionFactoryHandle handle = current();
+            if (handle.acquire()) return handle;
+        }
+    }
+
+    private void factoryClosed(SessionFactoryHandle handle) {
+        liveHandles.remove(handle);
+        destroyRegistryIfUnused();
+    }
+
+    private synchronized void destroyRegistryIfUnused() {
+        if (closed && liveHandles.isEmpty() && !registryDestroyed) {
+            registryDestroyed = true;
+            StandardServiceRegistryBuilder.destroy(serviceRegistry);
+            pool.release();
+            if (replicas != null) {
+                replicas.close();
+            }
+        }
+    }
+
+    SessionFactory currentFactory() {
+        return current().getSessionFactory();
+    }
+
+    /**
+     * @return bind parameters per statement when splitting in lists, the configured in chunk size or else the dialect's limit
+     */
+    int inChunkSize(SessionFactoryHandle handle) {
+        return inChunkSize > 0 ? inChunkSize : handle.getParameterLimit();
+    }
+
+    /**
+     * @return identifiers loaded per statement by getAllById, the configured batch size or else the in chunk size
+     */
+    int multiGetBatchSize(SessionFactoryHandle handle) {
+        return multiGetBatchSize > 0 ? multiGetBatchSize : inChunkSize(handle);
+    }
+
+    List<Class<?>> getClasses() {
+        return classes;
+    }
+
+    int getGeneration() {
+        return generation.get();
+    }
+
+    <T> EntityDescriptor<T> descriptor(Class<T> cls) {
+        return current().getDescriptors().get(cls);
+    }
+
+    public QueryPlanCache getQueryPlanCache() {
+        return planCache;
+    }
+
+    public PoolMetrics getPoolMetrics() {
+        return pool.getMetrics();
+    }
+
+    /**
+     * @return the pool metrics of every read replica by url, for the replicas connected to so far
+     * @throws IllegalStateException if no replicas were configured with the 'replicas' config entry
+     */
+    public Map<String, PoolMetrics> getReplicaPoolMetrics() {
+        if (replicas == null) {
+            throw new IllegalStateException("No replicas are configured for this database");
+        }
+        return replicas.getMetrics();
+    }
+
+    ConnectionPools.SharedPool connectionPool() {
+        return pool;
     }
 
     @Override
-    public <T> Query<T> query(Class<T> cls) {
-        return new HibernateQuery<>(this, cls, false, true, session, transaction, false);
+    public <T> HibernateQuery<T> query(Class<T> cls) {
+        TransactionContext context = transactions.get();
+        return context == null
+                ? new HibernateQuery<>(this, cls, false, true, null, null, false)
+                : new HibernateQuery<>(this, cls, false, true, context.session, context.transaction, false);
     }
 
     @Override
-    public <T> TransactionalQuery<T> transaction(Class<T> cls) {
+    public <T> HibernateQuery<T> transaction(Class<T> cls) {
         return transaction(cls, false);
     }
 
     @Override
-    public <T> TransactionalQuery<T> transaction(Class<T> cls, boolean manualCommit) {
-        session = sessionFactory.openSession();
-        //session.setFlushMode(FlushModeType.COMMIT);
-        transaction = session.beginTransaction();
-        ThreadLocalSessionContext.bind(this.session);
-        return new HibernateQuery<>(this, cls, false, false, session, transaction, manualCommit);
+    public <T> HibernateQuery<T> transaction(Class<T> cls, boolean manualCommit) {
+        TransactionContext context = openTransaction();
+        return new HibernateQuery<>(this, cls, false, false, context.session, context.transaction, manualCommit);
+    }
+
+    /**
+     * Opens a transaction for the calling thread only; other threads keep running their own.
+     */
+    private TransactionContext openTransaction() {
+        if (transactions.get() != null) {
+            throw new IllegalStateException("Another transaction is in progress");
+        }
+        if (unitOfWork != null) {
+            unitOfWork.commit();
+        }
+        SessionFactoryHandle handle = acquire();
+        Session session = null;
+        try {
+            session = handle.getSessionFactory().openSession();
+            //session.setFlushMode(FlushModeType.COMMIT);
+            Transaction transaction = session.beginTransaction();
+            TransactionContext context = new TransactionContext(handle, session, transaction, metrics == null ? 0 : System.nanoTime());
+            transactions.set(context);
+            ThreadLocalSessionContext.bind(session);
+            return context;
+        } catch (RuntimeException e) {
+            if (session != null) session.close();
+            handle.release();
+            throw e;
+        }
+    }
+
+    private void closeTransaction(TransactionContext context) {
+        transactions.remove();
+        if (metrics != null) {
+            metrics.recordTransactionHold(context.opened);
+        }
+        try {
+            ThreadLocalSessionContext.unbind(context.handle.getSessionFactory());
+            context.session.close();
+        } finally {
+            context.handle.release();
+        }
     }
 
+    /**
+     * Outside a transaction, with read replicas configured, reads run on a replica like those of {@link #readOnly(Class)},
+     * and writes in a transaction of their own on the primary. With the unit of work enabled, writes run in the
+     * {@link UnitOfWork} of the calling thread instead, and so do reads while it is open.
+     */
     @Override
-    public <T> Query<T> auto(Class<T> cls) {
-        if (session != null) {
-            return new AutoQuery<>(new HibernateQuery<>(this, cls, false, true, session, transaction, true));
+    public <T> HibernateAutoQuery<T> auto(Class<T> cls) {
+        TransactionContext context = transactions.get();
+        if (context != null) {
+            return new HibernateAutoQuery<>(new HibernateQuery<>(this, cls, false, true, context.session, context.transaction, true), false, null);
+        } else if (replicas != null || unitOfWork != null) {
+            return new HibernateAutoQuery<>(readOnlyQuery(cls), true, unitOfWork);
+        } else {
+            return new HibernateAutoQuery<>(inlineQuery(cls), false, null);
+        }
+    }
+
+    /**
+     * @throws IllegalStateException if metrics were not enabled with the 'metrics' config entry
+     */
+    public QueryMetrics getQueryMetrics() {
+        if (metrics == null) {
+            throw new IllegalStateException("Metrics are not enabled for this database");
+        }
+        return metrics;
+    }
+
+    /**
+     * The cache of select and count results, used by queries that run in their own transaction, i.e. by
+     * {@link #auto(Class)} and {@link #readOnly(Class)} outside of {@link #beginTransaction()}.
+     *
+     * @throws IllegalStateException if the result cache was not enabled with the 'resultCache' config entry
+     */
+    public QueryResultCache getResultCache() {
+        if (resultCache == null) {
+            throw new IllegalStateException("Result cache is not enabled for this database");
+        }
+        return resultCache;
+    }
+
+    /**
+     * @throws IllegalStateException if write-behind was not enabled with the 'writeBehind' config entry
+     */
+    public WriteBehindBuffer writeBehind() {
+        if (writeBehind == null) {
+            throw new IllegalStateException("Write-behind is not enabled for this database");
+        }
+        return writeBehind;
+    }
+
+    /**
+     * @throws IllegalStateException if the unit of work was not enabled with the 'unitOfWork' config entry
+     */
+    public UnitOfWork unitOfWork() {
+        if (unitOfWork == null) {
+            throw new IllegalStateException("Unit of work is not enabled for this database");
+        }
+        return unitOfWork;
+    }
+
+    /**
+     * Like {@link #auto(Class)}, for reads only: selects and counts run on a {@link StatelessSession} without
+     * a transaction, so loaded entities are neither tracked, snapshotted nor flushed. Inside a transaction
+     * they run on its session and return read-only entities. Updates, inserts and deletes are rejected.
+     * <p>
+     * With read replicas configured, reads outside a transaction run on one of them. While the calling thread has
+     * an open {@link UnitOfWork}, they run in it.
+     */
+    public <T> HibernateAutoQuery<T> readOnly(Class<T> cls) {
+        TransactionContext context = transactions.get();
+        if (context != null) {
+            return new HibernateAutoQuery<>(new HibernateQuery<>(this, cls, false, true, context.session, context.transaction, true, true), false, null);
         } else {
-            return new AutoQuery<>(new HibernateQuery<>(this, cls, true, false, null, null, false));
+            return new HibernateAutoQuery<>(readOnlyQuery(cls), false, unitOfWork);
+        }
+    }
+
+    private static void closeQuietly(Connection connection) {
+        if (connection == null) return;
+        try {
+            connection.close();
+        } catch (SQLException ignored) {
         }
     }
 
+    <T> HibernateQuery<T> readOnlyQuery(Class<T> cls) {
+        return new HibernateQuery<>(this, cls, true, false, null, null, false, true);
+    }
+
+    <T> HibernateQuery<T> inlineQuery(Class<T> cls) {
+        return new HibernateQuery<>(this, cls, true, false, null, null, false);
+    }
+
+    /**
+     * @param callbackExecutor executor completing the returned futures, e.g. the server main thread; null to complete them on the worker threads
+     */
+    public synchronized AsyncDatabase async(Executor callbackExecutor) {
+        Validate.isTrue(!closing, "Database is closed");
+        if (asyncPool == null) {
+            asyncPool = AsyncDatabase.newPool(properties);
+        }
+        return new AsyncDatabase(this, asyncPool, callbackExecutor);
+    }
+
     @Override
     public void createTable(Class<?> cls) {
-        classes.add(cls);
-        rebuild();
+        schemaChanges().create(cls).apply();
     }
 
     @Override
     public void updateTable(Class<?> cls) {
-        MetadataSources metadataSources = new MetadataSources(serviceRegistry).addAnnotatedClass(cls);
-        new SchemaUpdate().execute(EnumSet.of(TargetType.DATABASE), metadataSources.buildMetadata());
-        rebuild();
+        schemaChanges().update(cls).apply();
     }
 
     @Override
     public void deleteTable(Class<?> cls) {
-        MetadataSources metadataSources = new MetadataSources(serviceRegistry).addAnnotatedClass(cls);
-        new SchemaExport().execute(EnumSet.of(TargetType.DATABASE), SchemaExport.Action.DROP, metadataSources.buildMetadata());
-        classes.remove(cls);
-        rebuild();
+        schemaChanges().delete(cls).apply();
     }
 
     @Override
-    public synchronized void commitTransaction() {
-        if (transaction != null && transaction.isActive()) {
-            transaction.commit();
+    public void commitTransaction() {
+        TransactionContext context = transactions.get();
+        if (context != null && context.transaction.isActive()) {
+            try {
+                context.transaction.commit();
+            } finally {
+                closeTransaction(context);
+            }
         } else {
             throw new IllegalStateException("No transaction found in this database or is not active");
         }
-        session.close();
-        session = null;
-        transaction = null;
     }
 
     @Override
-    public synchronized void beginTransaction() {
-        if (transaction != null) {
-            throw new IllegalStateException("Another transaction is in progress");
-        }
-        session = sessionFactory.openSession();
-        //session.setFlushMode(FlushModeType.COMMIT);
-        transaction = session.beginTransaction();
-        ThreadLocalSessionContext.bind(this.session);
+    public void beginTransaction() {
+        openTransaction();
     }
 
     @Override
-    public synchronized void rollbackTransaction() {
-        if (transaction != null && transaction.isActive()) {
-            transaction.setRollbackOnly();
-            transaction.rollback();
+    public void rollbackTransaction() {
+        TransactionContext context = transactions.get();
+        if (context != null && context.transaction.isActive()) {
+            try {
+                context.transaction.setRollbackOnly();
+                context.transaction.rollback();
+            } finally {
+                closeTransaction(context);
+            }
         } else {
             throw new IllegalStateException("No transaction found in this database or is not active");
         }
-        session.close();
-        session = null;
-        transaction = null;
     }
 
     @Override
     @SuppressWarnings("unchecked")
     public <T extends Database> T connect() {
-        Validate.isTrue(sessionFactory.isOpen());
+        Validate.isTrue(!closed && current().getSessionFactory().isOpen());
         return (T) this;
     }
 
+    /**
+     * Closes the database. Every step runs even if an earlier one fails; the first failure is thrown at the end.
+     */
     @Override
     public void close() {
-        if (transaction != null && transaction.isActive()) {
-            if (transaction.getRollbackOnly()) {
-                transaction.rollback();
-            } else {
-                transaction.commit();
+        ThreadPoolExecutor pool;
+        synchronized (this) {
+            // async() creates no new pool while queued operations drain, which still need to acquire the factory
+            closing = true;
+            pool = asyncPool;
+            asyncPool = null;
+        }
+        RuntimeException failure = null;
+        if (pool != null) {
+            failure = closeStep(failure, () -> {
+                try {
+                    AsyncDatabase.drain(pool, Settings.getInt(properties, Settings.ASYNC_SHUTDOWN_TIMEOUT, 30000));
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                } catch (IllegalStateException e) {
+                    log.warning(e.getMessage());
+                }
+            });
+        }
+        if (unitOfWork != null) {
+            failure = closeStep(failure, unitOfWork::close);
+        }
+        if (writeBehind != null) {
+            failure = closeStep(failure, writeBehind::close);
+        }
+        TransactionContext context = transactions.get();
+        if (context != null) {
+            failure = closeStep(failure, () -> {
+                try {
+                    if (context.transaction.isActive()) {
+                        if (context.transaction.getRollbackOnly()) {
+                            context.transaction.rollback();
+                        } else {
+                            context.transaction.commit();
+                        }
+                    }
+                } finally {
+                    closeTransaction(context);
+                }
+            });
+        }
+        closed = true;
+        rebuildExecutor.shutdown();
+        try {
+            rebuildExecutor.awaitTermination(1, TimeUnit.MINUTES);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        // a failure to build the first SessionFactory leaves nothing to retire
+        startup.handle((handle, e) -> null).join();
+        failure = closeStep(failure, () -> {
+            if (current != null) {
+                current.retire();
             }
+        });
+        destroyRegistryIfUnused();
+        if (failure != null) {
+            throw failure;
+        }
+    }
+
+    /**
+     * Runs one step of {@link #close()}, adding its failure to the earlier one, if any.
+     *
+     * @return the first failure of the steps run so far
+     */
+    private static RuntimeException closeStep(RuntimeException failure, Runnable step) {
+        try {
+            step.run();
+        } catch (RuntimeException e) {
+            if (failure == null) return e;
+            failure.addSuppressed(e);
         }
-        if (session != null) {
-            session.close();
+        return failure;
+    }
 
+    /**
+     * Session and transaction opened by one thread with {@link #beginTransaction()} or {@link #transaction(Class)}.
+     */
+    static final class TransactionContext {
+        private final SessionFactoryHandle handle;
+        private final Session session;
+        private final Transaction transaction;
+        private final long opened;
+
+        private TransactionContext(SessionFactoryHandle handle, Session session, Transaction transaction, long opened) {
+            this.handle = handle;
+            this.session = session;
+            this.transaction = transaction;
+            this.opened = opened;
         }
-        sessionFactory.close();
     }
 
     public class HibernateQuery<T> implements TransactionalQuery<T> {
         private final HashBasedTable<String, String, Object> where = HashBasedTable.create();
+        private final List<String> orderBy = new ArrayList<>(2);
+        private final List<Boolean> descending = new ArrayList<>(2);
+        private int limit;
+        private int offset;
+        private Object[] after;
+        private T afterEntity;
         private final HibernateDatabase database;
         private final Class<T> cls;
         private final boolean inlineTrans;
         private final boolean managed;
         private final boolean manualCommit;
+        private final boolean readOnly;
+        private final SessionFactoryHandle handle;
+        /**
+         * Whether closing a managed query releases the handle, i.e. it was acquired without a transaction of the thread
+         */
+        private boolean managedHandle;
         private final Session session;
+        private final StatelessSession statelessSession;
+        /**
+         * The connection the inline session runs on, a replica's or one of a unit of work; null if it is taken from the pool
+         */
+        private final Connection connection;
         private final Transaction transaction;
-        private Map<String, String> columnMapping = new HashMap<>();
+        private final EntityDescriptor<T> descriptor;
+        private final long opened;
+        private boolean wrote;
 
         HibernateQuery(HibernateDatabase database, Class<T> cls, boolean inlineTrans, boolean managed, Session session, Transaction transaction, boolean manualCommit) {
+            this(database, cls, inlineTrans, managed, session, transaction, manualCommit, false);
+        }
+
+        HibernateQuery(HibernateDatabase database, Class<T> cls, boolean inlineTrans, boolean managed, Session session, Transaction transaction, boolean manualCommit, boolean readOnly) {
+            this(database, cls, inlineTrans, managed, session, transaction, manualCommit, readOnly, null);
+        }
+
+        HibernateQuery(HibernateDatabase database, Class<T> cls, boolean inlineTrans, boolean managed, Session session, Transaction transaction, boolean manualCommit, boolean readOnly, Connection connection) {
             this.database = database;
             this.cls = cls;
             this.inlineTrans = inlineTrans;
             this.managed = managed;
             this.manualCommit = manualCommit;
+            this.readOnly = readOnly;
+            this.opened = metrics == null ? 0 : System.nanoTime();
+            if (inlineTrans && readOnly) {
+                this.handle = database.acquire();
+                Connection replica = null;
+                try {
+                    this.descriptor = handle.getDescriptors().get(cls);
+                    replica = replicas == null ? null : replicas.getConnection();
+                    this.statelessSession = replica == null ? handle.getSessionFactory().openStatelessSession() : handle.getSessionFactory().openStatelessSession(replica);
+                } catch (RuntimeException e) {
+                    closeQuietly(replica);
+                    handle.release();
+                    throw e;
+                }
+                this.connection = replica;
+                this.session = null;
+                this.transaction = null;
+                return;
+            }
+            this.statelessSession = null;
+            this.connection = connection;
             if (inlineTrans) {
-                this.session = database.sessionFactory.openSession();
-                this.transaction = this.session.beginTransaction();
-                //this.session.setFlushMode(FlushModeType.COMMIT);
+                this.handle = database.acquire();
+                try {
+                    this.descriptor = handle.getDescriptors().get(cls);
+                    this.session = connection == null ? handle.getSessionFactory().openSession() : handle.getSessionFactory().withOptions().connection(connection).openSession();
+                    if (connection != null) {
+                        // the unit of work this runs in is not committed yet: its rows must not reach the cache
+                        this.session.setCacheMode(CacheMode.IGNORE);
+                    }
+                    this.transaction = this.session.beginTransaction();
+                    //this.session.setFlushMode(FlushModeType.COMMIT);
+                } catch (RuntimeException e) {
+                    handle.release();
+                    throw e;
+                }
             } else {
-                this.session = session == null ? database.sessionFactory.getCurrentSession() : session;
-                this.transaction = transaction == null ? this.session.getTransaction() : transaction;
-            }
-            MetamodelImplementor metamodel = (MetamodelImplementor) sessionFactory.getMetamodel();
-            AbstractEntityPersister classMetadata = (AbstractEntityPersister) metamodel.entityPersister(cls);
-            String[] props = classMetadata.getPropertyNames();
-            String id = classMetadata.getIdentifierPropertyName();
-            columnMapping.put(id, id);
-            columnMapping.put(classMetadata.getIdentifierColumnNames()[0], id);
-            for (String prop : props) {
-                String[] names = classMetadata.getPropertyColumnNames(prop);
-                columnMapping.put(names[0], prop);
-                columnMapping.put(prop, prop);
+                TransactionContext context = database.transactions.get();
+                // without a transaction of the thread to hold it, the query holds the factory until it is closed
+                this.handle = context != null ? context.handle : database.acquire();
+                this.managedHandle = context == null;
+                try {
+                    this.descriptor = handle.getDescriptors().get(cls);
+                    this.session = session == null ? handle.getSessionFactory().getCurrentSession() : session;
+                    this.transaction = transaction == null ? this.session.getTransaction() : transaction;
+                } catch (RuntimeException e) {
+                    if (managedHandle) handle.release();
+                    throw e;
+                }
             }
         }
 
+        EntityDescriptor<T> getDescriptor() {
+            return descriptor;
+        }
+
+        /**
+         * @return a query with the same conditions in a transaction of its own on the primary
+         */
+        HibernateQuery<T> onPrimary() {
+            return copyTo(inlineQuery(cls));
+        }
+
+        /**
+         * @return a query with the same conditions in a transaction of its own on the given connection
+         */
+        HibernateQuery<T> onConnection(Connection connection) {
+            return copyTo(new HibernateQuery<>(database, cls, true, false, null, null, false, false, connection));
+        }
+
+        private HibernateQuery<T> copyTo(HibernateQuery<T> query) {
+            query.where.putAll(where);
+            query.orderBy.addAll(orderBy);
+            query.descending.addAll(descending);
+            query.limit = limit;
+            query.offset = offset;
+            query.after = after;
+            query.afterEntity = afterEntity;
+            return query;
+        }
+
+        Session getSession() {
+            return session;
+        }
+
         @Override
-        public TransactionalQuery<T> reset() {
+        public HibernateQuery<T> reset() {
             where.clear();
+            orderBy.clear();
+            descending.clear();
+            limit = 0;
+            offset = 0;
+            after = null;
+            afterEntity = null;
             return this;
         }
 
         @Override
-        public TransactionalQuery<T> whereEq(String columnName, Object obj) {
+        public HibernateQuery<T> whereEq(String columnName, Object obj) {
             return where(columnName, "=", obj);
         }
 
         @Override
-        public TransactionalQuery<T> where(String columnName, String comparator, Object obj) {
-            Validate.notNull(columnMapping.get(columnName), "No suitable column or property found for '" + columnName + "'");
-            where.put(comparator, columnMapping.get(columnName), obj);
+        public HibernateQuery<T> where(String columnName, String comparator, Object obj) {
+            String property = descriptor.property(columnName);
+            Validate.notNull(property, "No suitable column or property found for '" + columnName + "'");
+            where.put(comparator, property, obj);
             return this;
         }
 
+        /**
+         * Matches rows whose column holds any of the values. Lists longer than the dialect allows in one statement
+         * are split into several statements run in the same transaction, whose results are merged.
+         */
+        public HibernateQuery<T> whereIn(String columnName, Collection<?> values) {
+            Validate.notNull(values, "values can not be null");
+            return where(columnName, " IN ", new ArrayList<>(values));
+        }
+
+        public HibernateQuery<T> orderBy(String columnName) {
+            return orderBy(columnName, false);
+        }
+
+        /**
+         * Sorts the results of select and stream by the given column; later calls add tie-breakers.
+         */
+        public HibernateQuery<T> orderBy(String columnName, boolean descending) {
+            String property = descriptor.property(columnName);
+            Validate.notNull(property, "No suitable column or property found for '" + columnName + "'");
+            this.orderBy.add(property);
+            this.descending.add(descending);
+            return this;
+        }
+
+        /**
+         * Returns at most {@code limit} rows from select and stream, 0 for no limit.
+         */
+        public HibernateQuery<T> limit(int limit) {
+            Validate.isTrue(limit >= 0, "limit cannot be negative");
+            this.limit = limit;
+            return this;
+        }
+
+        /**
+         * Skips the first {@code offset} rows of select and stream. Prefer {@link #after(Object...)} for deep pages.
+         */
+        public HibernateQuery<T> offset(int offset) {
+            Validate.isTrue(offset >= 0, "offset cannot be negative");
+            this.offset = offset;
+            return this;
+        }
+
+        /**
+         * Keyset pagination: only returns rows sorting after the given values of the {@link #orderBy} columns,
+         * usually those of the last row of the previous page. The ordering must be unique, e.g. end with the id,
+         * and its columns non-null.
+         */
+        public HibernateQuery<T> after(Object... sortKey) {
+            this.after = sortKey.clone();
+            this.afterEntity = null;
+            return this;
+        }
+
+        /**
+         * Keyset pagination continuing after the given row, see {@link #after(Object...)}.
+         */
+        public HibernateQuery<T> after(T last) {
+            this.afterEntity = Objects.requireNonNull(last);
+            this.after = null;
+            return this;
+        }
+
+        void markRollbackOnly() {
+            if (transaction != null) transaction.setRollbackOnly();
+        }
+
         @Override
         public void rollback() {
+            if (transaction == null) return;
+            long start = startTimer();
             transaction.setRollbackOnly();
             transaction.rollback();
+            record(QueryMetrics.Operation.ROLLBACK, start, 0, () -> "rollback");
         }
 
         @Override
         public void commit() {
-            transaction.commit();
+            if (transaction == null) return;
+            long start = startTimer();
+            try {
+                transaction.commit();
+            } catch (RuntimeException e) {
+                recordFailure(QueryMetrics.Operation.COMMIT);
+                throw e;
+            }
+            record(QueryMetrics.Operation.COMMIT, start, 0, () -> "commit");
+        }
+
+        private long startTimer() {
+            return metrics == null ? 0 : System.nanoTime();
+        }
+
+        /**
+         * @param statement the statement or shape of the operation, logged if it was slow
+         */
+        private void record(QueryMetrics.Operation operation, long start, long rows, Supplier<String> statement) {
+            if (metrics != null) {
+                metrics.record(cls, operation, start, rows, statement);
+            }
+        }
+
+        /**
+         * @return the operation with the entity and the shape of the where clause, ordering and paging, without values
+         */
+        private String shape(String operation) {
+            StringBuilder shape = new StringBuilder(operation).append(' ').append(cls.getSimpleName());
+            String separator = " where ";
+            for (Table.Cell<String, String, Object> cell : where.cellSet()) {
+                shape.append(separator).append(cell.getColumnKey()).append(' ').append(cell.getRowKey().trim().toLowerCase());
+                if (" IN ".equals(cell.getRowKey())) {
+                    shape.append(" [").append(((Collection<?>) cell.getValue()).size()).append(" values]");
+                } else {
+                    shape.append(" ?");
+                }
+                separator = " and ";
+            }
+            for (int i = 0; i < orderBy.size(); i++) {
+                shape.append(i == 0 ? " order by " : ", ").append(orderBy.get(i)).append(descending.get(i) ? " desc" : " asc");
+            }
+            if (after != null || afterEntity != null) shape.append(" after ?");
+            if (limit > 0) shape.append(" limit ").append(limit);
+            if (offset > 0) shape.append(" offset ").append(offset);
+            return shape.toString();
+        }
+
+        private void recordSessionHold() {
+            if (metrics != null) {
+                metrics.recordSessionHold(opened);
+            }
+        }
+
+        private void recordFailure(QueryMetrics.Operation operation) {
+            if (metrics != null) {
+                metrics.recordFailure(cls, operation);
+            }
+        }
+
+        private void checkWritable() {
+            if (readOnly) {
+                throw new UnsupportedOperationException("Query is read-only");
+            }
         }
 
         @Override
         public void delete() {
+            checkWritable();
+            long start = startTimer();
             try {
-                CriteriaBuilder cb = session.getCriteriaBuilder();
-                CriteriaDelete<T> cd = cb.createCriteriaDelete(cls);
-                Root<T> root = cd.from(cls);
-                where.cellSet().forEach(cell -> {
-                    switch (Objects.requireNonNull(cell.getRowKey())) {
-                        case "=": {
-                            Class<?> t = root.get(cell.getColumnKey()).type().getJavaType();
-                            Class<?> s = Objects.requireNonNull(cell.getValue()).getClass();
-                            if (t == UUID.class && s == String.class) {
-                                cd.where(cb.equal(root.get(cell.getColumnKey()), UUID.fromString((String) cell.getValue())));
-                            } else {
-                                cd.where(cb.equal(root.get(cell.getColumnKey()), cell.getValue()));
-                            }
-                        }
-                        break;
-                        case ">=": {
-                            cd.where(cb.ge(root.get(cell.getColumnKey()), (Number) cell.getValue()));
-                        }
-                        break;
-                        case "<=": {
-                            cd.where(cb.le(root.get(cell.getColumnKey()), (Number) cell.getValue()));
-                        }
-                        break;
-                        case ">": {
-                            cd.where(cb.gt(root.get(cell.getColumnKey()), (Number) cell.getValue()));
-                        }
-                        break;
-                        case "<": {
-                            cd.where(cb.lt(root.get(cell.getColumnKey()), (Number) cell.getValue()));
-                        }
-                        break;
-                        case " LIKE ": {
-                            cd.where(cb.like(root.get(cell.getColumnKey()), cell.getValue().toString()));
-                        }
-                        break;
-                        default: {
-                            throw new RuntimeException(new SQLException("Operator not supported"));
-                        }
+                flushWriteBehind();
+                beforeWrite();
+                QueryPlan plan = plan(QueryPlan.Operation.DELETE, null);
+                int rows = 0;
+                try (CacheInvalidation invalidation = cacheInvalidation()) {
+                    for (Table<String, String, Object> chunk : chunks(0)) {
+                        org.hibernate.query.Query<?> query = plan.bind(session.createQuery(plan.getHql()), chunk, null);
+                        rows += invalidation.execute(pinnedIds(chunk), query::executeUpdate);
                     }
-                });
-                session.createQuery(cd).executeUpdate();
+                }
+                record(QueryMetrics.Operation.DELETE, start, rows, plan::getHql);
             } catch (Exception e) {
                 transaction.setRollbackOnly();
+                recordFailure(QueryMetrics.Operation.DELETE);
                 throw e;
             }
         }
 
         @Override
         public void insert(T t) {
+            checkWritable();
+            long start = startTimer();
             try {
+                beforeWrite();
                 session.persist(t);
+                track(t);
+                record(QueryMetrics.Operation.INSERT, start, 1, () -> "insert " + cls.getSimpleName());
+            } catch (Exception e) {
+                transaction.setRollbackOnly();
+                recordFailure(QueryMetrics.Operation.INSERT);
+                throw e;
+            }
+        }
+
+        public int insertAll(Iterable<? extends T> entities) {
+            return insertAll(entities.iterator());
+        }
+
+        public int insertAll(Stream<? extends T> entities) {
+            try (Stream<? extends T> stream = entities) {
+                return insertAll(stream.iterator());
+            }
+        }
+
+        private int insertAll(Iterator<? extends T> entities) {
+            checkWritable();
+            long start = startTimer();
+            try {
+                beforeWrite();
+                if (inlineTrans && descriptor.isStatelessInsertable()) {
+                    int count = insertStateless(entities);
+                    record(QueryMetrics.Operation.INSERT, start, count, () -> "insertAll " + cls.getSimpleName() + " [" + count + " rows]");
+                    return count;
+                }
+                int count = 0;
+                List<T> batch = new ArrayList<>(batchSize);
+                while (entities.hasNext()) {
+                    T t = entities.next();
+                    session.persist(t);
+                    batch.add(t);
+                    if (++count % batchSize == 0) {
+                        flushBatch(batch);
+                    }
+                }
+                flushBatch(batch);
+                int rows = count;
+                record(QueryMetrics.Operation.INSERT, start, rows, () -> "insertAll " + cls.getSimpleName() + " [" + rows + " rows]");
+                return count;
             } catch (Exception e) {
                 transaction.setRollbackOnly();
+                recordFailure(QueryMetrics.Operation.INSERT);
                 throw e;
             }
         }
 
+        private void flushBatch(List<T> batch) {
+            session.flush();
+            if (inlineTrans) {
+                session.clear();
+            } else {
+                // the session belongs to the caller's transaction, only detach what we inserted
+                batch.forEach(session::evict);
+            }
+            batch.clear();
+        }
+
+        private int insertStateless(Iterator<? extends T> entities) {
+            StatelessSession stateless = connection == null ? handle.getSessionFactory().openStatelessSession() : handle.getSessionFactory().openStatelessSession(connection);
+            try {
+                Transaction tx = stateless.beginTransaction();
+                try {
+                    int count = 0;
+                    while (entities.hasNext()) {
+                        stateless.insert(entities.next());
+                        count++;
+                    }
+                    tx.commit();
+                    return count;
+                } catch (Exception e) {
+                    if (tx.isActive()) tx.rollback();
+                    throw e;
+                }
+            } finally {
+                stateless.close();
+            }
+        }
+
         @Override
+        @SuppressWarnings("unchecked")
         public List<T> select() {
-            CriteriaQuery<T> cq = createQuery();
-            return session.createQuery(cq).getResultList();
+            long start = startTimer();
+            List<T> list = selectList();
+            if (writeBehind != null || snapshots != null) {
+                list.forEach(this::overlay);
+            }
+            record(QueryMetrics.Operation.SELECT, start, list.size(), () -> shape("select"));
+            return list;
         }
 
         @Override
+        @SuppressWarnings("unchecked")
         public T selectUnique() {
-            CriteriaQuery<T> cq = createQuery();
-            return session.createQuery(cq).uniqueResult();
+            long start = startTimer();
+            List<T> list = selectList();
+            T result = null;
+            for (T t : list) {
+                if (result != null && result != t) {
+                    throw new NonUniqueResultException(list.size());
+                }
+                result = t;
+            }
+            result = overlay(result);
+            record(QueryMetrics.Operation.SELECT, start, result == null ? 0 : 1, () -> shape("selectUnique"));
+            return result;
         }
 
         @Override
+        @SuppressWarnings("unchecked")
         public T selectUniqueUnchecked() {
-            CriteriaQuery<T> cq = createQuery();
-            List<T> list = session.createQuery(cq).getResultList();
+            long start = startTimer();
+            List<T> list = (List<T>) resultList(QueryPlan.Operation.SELECT, null);
+            record(QueryMetrics.Operation.SELECT, start, list.size(), () -> shape("selectUniqueUnchecked"));
             if (list.size() != 1) {
                 return null;
             }
-            return list.get(0);
+            return overlay(list.get(0));
         }
 
-        private CriteriaQuery<T> createQuery() {
-            CriteriaBuilder cb = session.getCriteriaBuilder();
-            CriteriaQuery<T> cq = cb.createQuery(cls);
-            Root<T> root = cq.from(cls);
-            where.cellSet().forEach(cell -> {
-                switch (Objects.requireNonNull(cell.getRowKey())) {
-                    case ">=": {
-                        cq.where(cb.ge(root.get(cell.getColumnKey()), (Number) cell.getValue()));
-                    }
-                    break;
-                    case "<=": {
-                        cq.where(cb.le(root.get(cell.getColumnKey()), (Number) cell.getValue()));
-                    }
-                    break;
-                    case ">": {
-                        cq.where(cb.gt(root.get(cell.getColumnKey()), (Number) cell.getValue()));
+        /**
+         * Loads the entity with the given identifier, or returns it without a query if the session already holds it.
+         * The where clause is ignored.
+         *
+         * @return the entity, or null if there is none
+         */
+        @SuppressWarnings("unchecked")
+        public T getById(Object id) {
+            long start = startTimer();
+            Serializable key = descriptor.coerceId(id);
+            T entity;
+            if (statelessSession != null) {
+                entity = (T) statelessSession.get(cls, key);
+            } else {
+                entity = session.byId(cls).load(key);
+                if (readOnly && entity != null) {
+                    session.setReadOnly(entity, true);
+                }
+            }
+            entity = overlay(entity);
+            record(QueryMetrics.Operation.SELECT, start, entity == null ? 0 : 1, () -> "getById " + cls.getSimpleName());
+            return entity;
+        }
+
+        /**
+         * @return the entities with the given identifiers in the same order, with null for identifiers without entity
+         * @see #getAllById(Collection, boolean)
+         */
+        public List<T> getAllById(Collection<?> ids) {
+            return getAllById(ids, true);
+        }
+
+        /**
+         * Loads the entities with the given identifiers, in statements of up to the multi-get batch size.
+         * Entities the session already holds, or that are in the second-level cache, are not loaded again.
+         * The where clause is ignored.
+         *
+         * @param keepMissing whether identifiers without entity yield null, rather than being left out
+         * @return the entities in the order of their identifiers
+         */
+        @SuppressWarnings("unchecked")
+        public List<T> getAllById(Collection<?> ids, boolean keepMissing) {
+            long start = startTimer();
+            List<Serializable> keys = new ArrayList<>(ids.size());
+            for (Object id : ids) {
+                keys.add(descriptor.coerceId(id));
+            }
+            List<T> loaded;
+            if (statelessSession != null) {
+                // a stateless session has no multi-load, an in list of the identifiers loads the same rows
+                HashBasedTable<String, String, Object> saved = HashBasedTable.create(where);
+                where.clear();
+                where.put(" IN ", descriptor.getIdProperty(), keys);
+                Map<Object, T> byId = new HashMap<>();
+                try {
+                    for (Object t : resultList(QueryPlan.Operation.SELECT, null)) {
+                        byId.put(descriptor.getIdentifier((T) t), (T) t);
                     }
-                    break;
-                    case "<": {
-                        cq.where(cb.lt(root.get(cell.getColumnKey()), (Number) cell.getValue()));
+                } finally {
+                    where.clear();
+                    where.putAll(saved);
+                }
+                loaded = new ArrayList<>(keys.size());
+                for (Serializable key : keys) {
+                    loaded.add(byId.get(key));
+                }
+            } else {
+                loaded = session.byMultipleIds(cls)
+                        .withBatchSize(database.multiGetBatchSize(handle))
+                        .enableSessionCheck(true)
+                        .enableOrderedReturn(true)
+                        .multiLoad(keys);
+            }
+            List<T> result = new ArrayList<>(loaded.size());
+            for (T entity : loaded) {
+                if (entity == null && !keepMissing) continue;
+                if (entity != null && readOnly && session != null) {
+                    session.setReadOnly(entity, true);
+                }
+                result.add(overlay(entity));
+            }
+            record(QueryMetrics.Operation.SELECT, start, result.size(), () -> "getAllById " + cls.getSimpleName() + " [" + keys.size() + " ids]");
+            return result;
+        }
+
+        /**
+         * Streams the matching entities from a forward-only cursor with the configured fetch size.
+         * The stream must be closed.
+         */
+        public Stream<T> stream() {
+            return stream(fetchSize);
+        }
+
+        /**
+         * Streams the matching entities from a forward-only cursor, fetching {@code fetchSize} rows per round trip.
+         * <p>
+         * Streamed entities are read-only and are detached from the session every {@code fetchSize} rows,
+         * so memory use does not grow with the size of the result. The stream must be closed, which releases the cursor.
+         */
+        public Stream<T> stream(int fetchSize) {
+            Validate.isTrue(fetchSize > 0, "fetchSize must be positive");
+            List<Table<String, String, Object>> chunks = chunks(0);
+            if (chunks.size() == 1) {
+                return stream(fetchSize, chunks.get(0));
+            }
+            if (chunks.size() > 1) {
+                checkUnordered();
+            }
+            // flatMap opens the cursor of each chunk once the previous one is exhausted and closed
+            return chunks.stream().flatMap(chunk -> stream(fetchSize, chunk));
+        }
+
+        @SuppressWarnings("unchecked")
+        private Stream<T> stream(int fetchSize, Table<String, String, Object> where) {
+            long start = startTimer();
+            // the where clause may change while the stream is open
+            String statement = metrics == null ? null : shape("stream");
+            long[] rows = new long[1];
+            org.hibernate.query.Query<T> query = (org.hibernate.query.Query<T>) createQuery(QueryPlan.Operation.SELECT, null, where);
+            query.setFetchSize(fetchSize);
+            query.setReadOnly(true);
+            ScrollableResults results = query.scroll(ScrollMode.FORWARD_ONLY);
+            Spliterator<T> spliterator = new Spliterators.AbstractSpliterator<T>(Long.MAX_VALUE, Spliterator.ORDERED | Spliterator.NONNULL) {
+                private final List<T> batch = new ArrayList<>(fetchSize);
+
+                @Override
+                @SuppressWarnings("unchecked")
+                public boolean tryAdvance(Consumer<? super T> action) {
+                    if (!results.next()) {
+                        return false;
                     }
-                    break;
-                    case "=": {
-                        Class<?> t = root.get(cell.getColumnKey()).type().getJavaType();
-                        Class<?> s = Objects.requireNonNull(cell.getValue()).getClass();
-                        if (t == UUID.class && s == String.class) {
-                            cq.where(cb.equal(root.get(cell.getColumnKey()), UUID.fromString((String) cell.getValue())));
-                        } else {
-                            cq.where(cb.equal(root.get(cell.getColumnKey()), cell.getValue()));
+                    T entity = overlay((T) results.get(0));
+                    rows[0]++;
+                    if (statelessSession == null) {
+                        if (batch.size() >= fetchSize) {
+                            flushBatch(batch);
                         }
+                        batch.add(entity);
                     }
-                    break;
-                    case " LIKE ": {
-                        cq.where(cb.like(root.get(cell.getColumnKey()), cell.getValue().toString()));
-                    }
-                    break;
-                    default: {
-                        throw new RuntimeException(new SQLException("Operator not supported"));
-                    }
+                    action.accept(entity);
+                    return true;
                 }
+            };
+            return StreamSupport.stream(spliterator, false).onClose(() -> {
+                results.close();
+                // a stream is timed from opening until it is closed, including the work done per row
+                record(QueryMetrics.Operation.STREAM, start, rows[0], () -> statement);
             });
-            return cq;
+        }
+
+        /**
+         * Runs {@code action} on every matching entity, see {@link #stream(int)}.
+         */
+        public void forEach(Consumer<? super T> action) {
+            try (Stream<T> stream = stream()) {
+                stream.forEach(action);
+            }
+        }
+
+        /**
+         * Prepares a loaded entity for the caller: applies buffered writes and snapshots it for dirty tracking.
+         */
+        private T overlay(T entity) {
+            if (writeBehind != null) {
+                writeBehind.overlay(descriptor, entity, session == null ? null : session.unwrap(SessionImplementor.class));
+            }
+            track(entity);
+            return entity;
+        }
+
+        private void track(T entity) {
+            if (snapshots != null && entity != null) {
+                snapshots.put(entity, descriptor.snapshot(entity));
+            }
+        }
+
+        private void flushWriteBehind() {
+            if (writeBehind != null && writeBehind.hasPending(cls)) {
+                if (!inlineTrans && session != null && session.getTransaction().isActive()) {
+                    // the caller's transaction may hold locks on the buffered rows already
+                    writeBehind.flush(cls, session);
+                } else {
+                    writeBehind.flush(cls);
+                }
+            }
+        }
+
+        /**
+         * Selects the given columns or properties of the matching rows without loading entities.
+         * A row holds one value per selected column, in order.
+         */
+        public List<Object[]> selectColumns(String... columns) {
+            long start = startTimer();
+            List<?> results = project(new Projection(descriptor, columns));
+            List<Object[]> rows = new ArrayList<>(results.size());
+            for (Object result : results) {
+                rows.add(Projection.row(result));
+            }
+            record(QueryMetrics.Operation.SELECT, start, rows.size(), () -> shape("selectColumns " + String.join(", ", columns)));
+            return rows;
+        }
+
+        /**
+         * Like {@link #selectColumns(String...)}, with values also accessible by the given column names.
+         */
+        public List<Tuple> selectTuples(String... columns) {
+            Projection projection = new Projection(descriptor, columns);
+            long start = startTimer();
+            List<?> results = project(projection);
+            List<Tuple> tuples = new ArrayList<>(results.size());
+            for (Object result : results) {
+                tuples.add(projection.toTuple(Projection.row(result)));
+            }
+            record(QueryMetrics.Operation.SELECT, start, tuples.size(), () -> shape("selectTuples " + String.join(", ", columns)));
+            return tuples;
+        }
+
+        /**
+         * Selects the given columns into instances of {@code type} created by its public constructor
+         * taking the column values in order.
+         */
+        public <R> List<R> selectAs(Class<R> type, String... columns) {
+            Projection projection = new Projection(descriptor, columns);
+            Constructor<R> constructor = projection.constructor(type);
+            long start = startTimer();
+            List<?> results = project(projection);
+            List<R> list = new ArrayList<>(results.size());
+            for (Object result : results) {
+                list.add(Projection.construct(constructor, Projection.row(result)));
+            }
+            record(QueryMetrics.Operation.SELECT, start, list.size(), () -> shape("selectAs " + String.join(", ", columns)));
+            return list;
+        }
+
+        private List<?> project(Projection projection) {
+            // buffered updates are not visible to column reads
+            flushWriteBehind();
+            return resultList(QueryPlan.Operation.PROJECT, projection.getProperties());
+        }
+
+        /**
+         * @return the matching entities, from the result cache if it holds them; entities from the cache are
+         * new copies, detached from any session
+         */
+        @SuppressWarnings("unchecked")
+        private List<T> selectList() {
+            QueryResultCache.Key key = resultKey(QueryPlan.Operation.SELECT);
+            if (key == null) {
+                return (List<T>) resultList(QueryPlan.Operation.SELECT, null);
+            }
+            List<Object[]> rows = (List<Object[]>) resultCache.get(key);
+            if (rows != null) {
+                SharedSessionContractImplementor si = (SharedSessionContractImplementor) reads();
+                List<T> list = new ArrayList<>(rows.size());
+                for (Object[] row : rows) {
+                    list.add(descriptor.assemble(row, si));
+                }
+                return list;
+            }
+            String[] spaces = descriptor.getQuerySpaces();
+            long[] versions = resultCache.versions(spaces);
+            List<T> list = (List<T>) resultList(QueryPlan.Operation.SELECT, null);
+            rows = new ArrayList<>(list.size());
+            for (T t : list) {
+                rows.add(descriptor.disassemble(t));
+            }
+            resultCache.put(key, spaces, versions, rows);
+            return list;
+        }
+
+        /**
+         * @return the results of the query, merged from one query per chunk of a large in list
+         */
+        private List<?> resultList(QueryPlan.Operation operation, String[] projection) {
+            List<Table<String, String, Object>> chunks = chunks(0);
+            if (chunks.size() == 1) {
+                return createQuery(operation, projection, chunks.get(0)).getResultList();
+            }
+            if (chunks.size() > 1) {
+                checkUnordered();
+            }
+            List<Object> results = new ArrayList<>();
+            for (Table<String, String, Object> chunk : chunks) {
+                results.addAll(createQuery(operation, projection, chunk).getResultList());
+            }
+            return results;
+        }
+
+        /**
+         * Splits the largest in list of the where clause so that no statement binds more parameters than
+         * the in chunk size, the dialect's parameter limit by default.
+         *
+         * @param extraParameters parameters bound besides the where clause, e.g. the values of an update
+         * @return the where clause of every statement to run; none if an in list is empty, as nothing can match
+         */
+        private List<Table<String, String, Object>> chunks(int extraParameters) {
+            Table.Cell<String, String, Object> largest = null;
+            int parameters = extraParameters;
+            for (Table.Cell<String, String, Object> cell : where.cellSet()) {
+                if (!" IN ".equals(cell.getRowKey())) {
+                    parameters++;
+                    continue;
+                }
+                int size = ((Collection<?>) cell.getValue()).size();
+                if (size == 0) {
+                    return Collections.emptyList();
+                }
+                parameters += size;
+                if (largest == null || size > ((Collection<?>) largest.getValue()).size()) {
+                    largest = cell;
+                }
+            }
+            int limit = database.inChunkSize(handle);
+            if (largest == null || parameters <= limit) {
+                return Collections.singletonList(where);
+            }
+            List<?> values = (List<?>) largest.getValue();
+            int chunkSize = Math.max(1, limit - (parameters - values.size()));
+            List<Table<String, String, Object>> chunks = new ArrayList<>((values.size() + chunkSize - 1) / chunkSize);
+            for (int i = 0; i < values.size(); i += chunkSize) {
+                Table<String, String, Object> chunk = HashBasedTable.create(where);
+                chunk.put(largest.getRowKey(), largest.getColumnKey(), values.subList(i, Math.min(values.size(), i + chunkSize)));
+                chunks.add(chunk);
+            }
+            return chunks;
+        }
+
+        private void checkUnordered() {
+            if (!orderBy.isEmpty() || limit > 0 || offset > 0 || after != null || afterEntity != null) {
+                throw new IllegalStateException("Results of an in list split into several statements can not be ordered or paged");
+            }
+        }
+
+        private Object[] sortKey() {
+            Object[] sortKey = after;
+            if (afterEntity != null) {
+                sortKey = new Object[orderBy.size()];
+                for (int i = 0; i < sortKey.length; i++) {
+                    sortKey[i] = descriptor.getValue(afterEntity, orderBy.get(i));
+                }
+            }
+            if (sortKey != null && sortKey.length != orderBy.size()) {
+                throw new IllegalStateException("Expected " + orderBy.size() + " sort key values but got " + sortKey.length);
+            }
+            return sortKey;
+        }
+
+        private org.hibernate.query.Query<?> createQuery(QueryPlan.Operation operation, String[] projection, Table<String, String, Object> where) {
+            Object[] sortKey = sortKey();
+            QueryPlan plan = plan(operation, projection, sortKey != null);
+            org.hibernate.query.Query<?> query = operation == QueryPlan.Operation.SELECT ? reads().createQuery(plan.getHql(), cls) : reads().createQuery(plan.getHql());
+            plan.bind(query, where, null);
+            if (readOnly && session != null) {
+                query.setReadOnly(true);
+            }
+            if (sortKey != null) {
+                plan.bindAfter(query, sortKey);
+            }
+            if (limit > 0) {
+                query.setMaxResults(limit);
+            }
+            if (offset > 0) {
+                query.setFirstResult(offset);
+            }
+            return query;
         }
 
         @Override
         public int count() {
-            CriteriaBuilder cb = session.getCriteriaBuilder();
-            CriteriaQuery<Long> q = cb.createQuery(Long.class);
-            Root<T> root = q.from(cls);
-            where.cellSet().forEach(cell -> {
-                switch (Objects.requireNonNull(cell.getRowKey())) {
-                    case "<=": {
-                        q.where(cb.le(root.get(cell.getColumnKey()), (Number) cell.getValue()));
-                    }
-                    break;
-                    case ">=": {
-                        q.where(cb.ge(root.get(cell.getColumnKey()), (Number) cell.getValue()));
-                    }
-                    break;
-                    case "<": {
-                        q.where(cb.lt(root.get(cell.getColumnKey()), (Number) cell.getValue()));
-                    }
-                    break;
-                    case ">": {
-                        q.where(cb.gt(root.get(cell.getColumnKey()), (Number) cell.getValue()));
-                    }
-                    break;
-                    case " LIKE ": {
-                        q.where(cb.like(root.get(cell.getColumnKey()), cell.getValue().toString()));
-                    }
-                    break;
-                    case "=": {
-                        Class<?> t = root.get(cell.getColumnKey()).type().getJavaType();
-                        Class<?> s = Objects.requireNonNull(cell.getValue()).getClass();
-                        if (t == UUID.class && s == String.class) {
-                            q.where(cb.equal(root.get(cell.getColumnKey()), UUID.fromString((String) cell.getValue())));
-                        } else {
-                            q.where(cb.equal(root.get(cell.getColumnKey()), cell.getValue()));
-                        }
+            long start = startTimer();
+            QueryResultCache.Key key = resultKey(QueryPlan.Operation.COUNT);
+            Integer cached = key == null ? null : (Integer) resultCache.get(key);
+            if (cached != null) {
+                record(QueryMetrics.Operation.COUNT, start, 1, () -> shape("count"));
+                return cached;
+            }
+            String[] spaces = descriptor.getQuerySpaces();
+            long[] versions = key == null ? null : resultCache.versions(spaces);
+            QueryPlan plan = plan(QueryPlan.Operation.COUNT, null);
+            int count = 0;
+            for (Table<String, String, Object> chunk : chunks(0)) {
+                count += plan.bind(reads().createQuery(plan.getHql(), Long.class), chunk, null).uniqueResult().intValue();
+            }
+            if (key != null) {
+                resultCache.put(key, spaces, versions, count);
+            }
+            record(QueryMetrics.Operation.COUNT, start, 1, plan::getHql);
+            return count;
+        }
+
+        @Override
+        public void update(T t, String... columns) {
+            checkWritable();
+            long start = startTimer();
+            try {
+                flushWriteBehind();
+                beforeWrite();
+                boolean[] selected = selectProperties(columns);
+                int count = 0;
+                for (boolean s : selected) {
+                    if (s) count++;
+                }
+                String[] props = new String[count];
+                Object[] values = new Object[count];
+                for (int i = 0, j = 0; i < selected.length; i++) {
+                    if (selected[i]) {
+                        props[j] = descriptor.getPropertyName(i);
+                        values[j++] = descriptor.getPropertyValue(t, i);
                     }
-                    break;
-                    default: {
-                        throw new RuntimeException(new SQLException("Operator not supported"));
+                }
+                QueryPlan plan = plan(QueryPlan.Operation.UPDATE, props);
+                int rows = 0;
+                try (CacheInvalidation invalidation = cacheInvalidation()) {
+                    for (Table<String, String, Object> chunk : chunks(values.length)) {
+                        org.hibernate.query.Query<?> query = plan.bind(session.createQuery(plan.getHql()), chunk, values);
+                        rows += invalidation.execute(pinnedIds(chunk), query::executeUpdate);
                     }
                 }
-            });
-            q.select(cb.count(root));
-            return session.createQuery(q).uniqueResult().intValue();
+                record(QueryMetrics.Operation.UPDATE, start, rows, plan::getHql);
+            } catch (Exception e) {
+                transaction.setRollbackOnly();
+                recordFailure(QueryMetrics.Operation.UPDATE);
+                throw e;
+            }
         }
 
-        @Override
-        public void update(T t, String... columns) {
+        /**
+         * @return per property, whether it is named by one of the columns; all properties if none are given
+         */
+        private boolean[] selectProperties(String[] columns) {
+            boolean[] selected = new boolean[descriptor.getPropertyCount()];
+            for (String column : columns) {
+                int index = descriptor.indexOf(descriptor.property(column));
+                if (index >= 0) {
+                    selected[index] = true;
+                }
+            }
+            if (columns.length == 0) {
+                Arrays.fill(selected, true);
+            }
+            return selected;
+        }
+
+        /**
+         * Inserts {@code t}, or updates its row if one with the same identifier exists, in a single statement
+         * native to the dialect. Existing rows only get the values of the given columns, all of them if none are given.
+         * The statement bypasses the session: entities it manages with the same identifier are not refreshed.
+         *
+         * @throws UnsupportedOperationException if the dialect has no native upsert
+         */
+        public void upsert(T t, String... columns) {
+            upsertAll(Collections.singletonList(t), columns);
+        }
+
+        /**
+         * Upserts every entity as {@link #upsert(Object, String...)} does, in JDBC batches.
+         *
+         * @return the number of entities upserted
+         */
+        public int upsertAll(Collection<? extends T> entities, String... columns) {
+            checkWritable();
+            Validate.isTrue(!descriptor.isVersioned(), "Versioned entities can not be upserted");
+            long start = startTimer();
             try {
-                CriteriaBuilder cb = session.getCriteriaBuilder();
-                CriteriaUpdate<T> cu = cb.createCriteriaUpdate(cls);
-                Root<T> root = cu.from(cls);
-                where.cellSet().forEach(cell -> {
-                    switch (Objects.requireNonNull(cell.getRowKey())) {
-                        case "<=": {
-                            cu.where(cb.le(root.get(cell.getColumnKey()), (Number) cell.getValue()));
-                        }
-                        break;
-                        case ">=": {
-                            cu.where(cb.ge(root.get(cell.getColumnKey()), (Number) cell.getValue()));
-                        }
-                        break;
-                        case "<": {
-                            cu.where(cb.lt(root.get(cell.getColumnKey()), (Number) cell.getValue()));
-                        }
-                        break;
-                        case ">": {
-                            cu.where(cb.gt(root.get(cell.getColumnKey()), (Number) cell.getValue()));
-                        }
-                        break;
-                        case "=": {
-                            Class<?> j = root.get(cell.getColumnKey()).type().getJavaType();
-                            Class<?> s = Objects.requireNonNull(cell.getValue()).getClass();
-                            if (j == UUID.class && s == String.class) {
-                                cu.where(cb.equal(root.get(cell.getColumnKey()), UUID.fromString((String) cell.getValue())));
-                            } else {
-                                cu.where(cb.equal(root.get(cell.getColumnKey()), cell.getValue()));
+                flushWriteBehind();
+                SessionImplementor si = session.unwrap(SessionImplementor.class);
+                Upsert upsert = descriptor.upsert(si.getJdbcServices().getDialect(), selectProperties(columns));
+                // pending changes of the session go first, as they would for any query
+                session.flush();
+                beforeWrite();
+                int count;
+                try (CacheInvalidation invalidation = cacheInvalidation()) {
+                    count = session.doReturningWork(connection -> {
+                        try (PreparedStatement ps = connection.prepareStatement(upsert.getSql())) {
+                            int pending = 0;
+                            for (T t : entities) {
+                                Object id = descriptor.getIdentifier(t);
+                                Validate.notNull(id, "Entity has no identifier");
+                                invalidation.invalidate(id);
+                                upsert.bind(ps, id, descriptor.getPropertyValues(t), si);
+                                ps.addBatch();
+                                if (++pending == batchSize) {
+                                    ps.executeBatch();
+                                    pending = 0;
+                                }
+                            }
+                            if (pending > 0) {
+                                ps.executeBatch();
                             }
                         }
-                        break;
-                        case " LIKE ": {
-                            cu.where(cb.like(root.get(cell.getColumnKey()), Objects.requireNonNull(cell.getValue()).toString()));
-                        }
-                        break;
-                        default: {
-                            throw new RuntimeException(new SQLException("Operator not supported"));
+                        return entities.size();
+                    });
+                }
+                if (snapshots != null) {
+                    for (T t : entities) {
+                        if (columns.length == 0) {
+                            track(t);
+                        } else {
+                            // rows that existed kept the other columns, so the entity no longer tells their state
+                            snapshots.remove(t);
                         }
                     }
-                });
-                MetamodelImplementor metamodel = (MetamodelImplementor) sessionFactory.getMetamodel();
-                ClassMetadata classMetadata = (ClassMetadata) metamodel.entityPersister(cls);
-                List<String> cols = Arrays.asList(columns);
-                String[] props = classMetadata.getPropertyNames();
-                for (String prop : props) {
-                    if (cols.isEmpty() || cols.contains(prop)) {
-                        cu.set(prop, classMetadata.getPropertyValue(t, prop));
+                }
+                record(QueryMetrics.Operation.UPSERT, start, count, upsert::getSql);
+                return count;
+            } catch (Exception e) {
+                transaction.setRollbackOnly();
+                recordFailure(QueryMetrics.Operation.UPSERT);
+                throw e;
+            }
+        }
+
+        /**
+         * Updates the row of {@code t}, selected by its identifier on top of any where clause, writing only the
+         * properties that changed since the entity was last read or written. The previous state comes from the
+         * session if it manages {@code t}, else from the snapshot kept by dirty tracking, else from the database.
+         *
+         * @return the number of rows updated; 0 without sending an update if nothing changed
+         */
+        public int updateChanged(T t) {
+            checkWritable();
+            Validate.isTrue(!descriptor.isVersioned(), "Versioned entities can not be updated partially");
+            Object id = descriptor.getIdentifier(t);
+            Validate.notNull(id, "Entity has no identifier");
+            long start = startTimer();
+            try {
+                flushWriteBehind();
+                SessionImplementor si = session.unwrap(SessionImplementor.class);
+                AbstractEntityPersister persister = descriptor.getPersister();
+                Object[] state = descriptor.snapshot(t);
+                EntityEntry entry = si.getPersistenceContext().getEntry(t);
+                Object[] previous = snapshots == null ? null : snapshots.get(t);
+                int[] dirty;
+                if (entry != null) {
+                    dirty = persister.findDirty(state, entry.getLoadedState(), t, si);
+                } else if (previous != null) {
+                    dirty = persister.findDirty(state, previous, t, si);
+                } else {
+                    previous = persister.getDatabaseSnapshot((Serializable) id, si);
+                    if (previous == null) {
+                        record(QueryMetrics.Operation.UPDATE, start, 0, () -> "updateChanged " + cls.getSimpleName() + " [unchanged]");
+                        return 0;
                     }
+                    dirty = persister.findModified(previous, state, t, si);
+                }
+                if (dirty == null) {
+                    record(QueryMetrics.Operation.UPDATE, start, 0, () -> "updateChanged " + cls.getSimpleName() + " [unchanged]");
+                    return 0;
+                }
+                String[] props = new String[dirty.length];
+                Object[] values = new Object[dirty.length];
+                for (int i = 0; i < dirty.length; i++) {
+                    props[i] = descriptor.getPropertyName(dirty[i]);
+                    values[i] = state[dirty[i]];
                 }
-                session.createQuery(cu).executeUpdate();
+                if (entry != null) {
+                    // marks the managed entity clean first, so the auto flush before the update does not write it in full
+                    entry.postUpdate(t, state, null);
+                }
+                // the id condition only applies to this update, not to later operations of the query
+                Table<String, String, Object> byId = HashBasedTable.create(where);
+                byId.put("=", descriptor.getIdProperty(), id);
+                beforeWrite();
+                QueryPlan plan = plan(QueryPlan.Operation.UPDATE, props, byId);
+                org.hibernate.query.Query<?> query = plan.bind(session.createQuery(plan.getHql()), byId, values);
+                int rows;
+                try (CacheInvalidation invalidation = cacheInvalidation()) {
+                    rows = invalidation.execute(Collections.singletonList(id), query::executeUpdate);
+                }
+                if (snapshots != null) {
+                    snapshots.put(t, state);
+                }
+                record(QueryMetrics.Operation.UPDATE, start, rows, plan::getHql);
+                return rows;
             } catch (Exception e) {
                 transaction.setRollbackOnly();
+                recordFailure(QueryMetrics.Operation.UPDATE);
                 throw e;
             }
         }
 
+        /**
+         * Makes cached results of the entity's tables stale now and again once the transaction completes,
+         * stops this query from using the result cache, and then sends the thread's reads to the primary.
+         */
+        private void beforeWrite() {
+            if (resultCache == null && replicas == null) return;
+            String[] spaces = descriptor.getQuerySpaces();
+            if (resultCache != null) {
+                resultCache.invalidate(spaces);
+            }
+            if (!wrote) {
+                wrote = true;
+                session.unwrap(SessionImplementor.class).getActionQueue().registerProcess((success, s) -> {
+                    if (resultCache != null) {
+                        resultCache.invalidate(spaces);
+                    }
+                    if (replicas != null) {
+                        replicas.written();
+                    }
+                });
+            }
+        }
+
+        /**
+         * @return the result cache key of the query, or null if it must not use the cache
+         */
+        private QueryResultCache.Key resultKey(QueryPlan.Operation operation) {
+            // replicas may lag behind the versions the result would be stored under, units of work are not committed yet
+            if (resultCache == null || !inlineTrans || wrote || connection != null) return null;
+            Object[] sortKey = sortKey();
+            QueryPlan plan = plan(operation, null, sortKey != null);
+            return new QueryResultCache.Key(plan.getHql(), plan.values(where), sortKey, limit, offset);
+        }
+
+        private CacheInvalidation cacheInvalidation() {
+            return CacheInvalidation.of(session.unwrap(SessionImplementor.class), descriptor);
+        }
+
+        /**
+         * @return the identifiers the where clause limits every matched row to, or null if it does not
+         */
+        private Collection<?> pinnedIds(Table<String, String, Object> where) {
+            Object id = where.get("=", descriptor.getIdProperty());
+            if (id != null) return Collections.singletonList(id);
+            Object ids = where.get(" IN ", descriptor.getIdProperty());
+            return ids instanceof Collection ? (Collection<?>) ids : null;
+        }
+
+        private SharedSessionContract reads() {
+            return statelessSession != null ? statelessSession : session;
+        }
+
+        private QueryPlan plan(QueryPlan.Operation operation, String[] setProperties) {
+            return plan(operation, setProperties, where);
+        }
+
+        private QueryPlan plan(QueryPlan.Operation operation, String[] setProperties, Table<String, String, Object> where) {
+            QueryPlan plan = planCache.get(QueryPlan.Shape.of(cls, operation, where, setProperties), shape -> QueryPlan.compile(descriptor, shape));
+            return plan;
+        }
+
+        private QueryPlan plan(QueryPlan.Operation operation, String[] setProperties, boolean keyset) {
+            if (orderBy.isEmpty() && !keyset) {
+                return plan(operation, setProperties);
+            }
+            boolean[] desc = new boolean[descending.size()];
+            for (int i = 0; i < desc.length; i++) {
+                desc[i] = descending.get(i);
+            }
+            QueryPlan.Shape key = QueryPlan.Shape.of(cls, operation, where, setProperties, orderBy.toArray(new String[0]), desc, keyset);
+            QueryPlan plan = planCache.get(key, shape -> QueryPlan.compile(descriptor, shape));
+            return plan;
+        }
+
         @Override
         public void close() {
-            if (managed) return;
-            ThreadLocalSessionContext.unbind(sessionFactory);
-            if (transaction.getRollbackOnly() || manualCommit) {
-                if (inlineTrans) {
-                    transaction.rollback();
-                    session.close();
-                } else {
-                    database.rollbackTransaction();
+            if (statelessSession != null) {
+                try {
+                    statelessSession.close();
+                } finally {
+                    closeQuietly(connection);
+                    handle.release();
+                    recordSessionHold();
                 }
                 return;
             }
+            if (managed) {
+                if (managedHandle) {
+                    managedHandle = false;
+                    handle.release();
+                }
+                return;
+            }
+            ThreadLocalSessionContext.unbind(handle.getSessionFactory());
             if (inlineTrans) {
-                transaction.commit();
-                session.close();
+                long start = startTimer();
+                try {
+                    if (transaction.getRollbackOnly() || manualCommit) {
+                        transaction.rollback();
+                        record(QueryMetrics.Operation.ROLLBACK, start, 0, () -> "rollback");
+                    } else {
+                        transaction.commit();
+                        record(QueryMetrics.Operation.COMMIT, start, 0, () -> "commit");
+                    }
+                } catch (RuntimeException e) {
+                    recordFailure(QueryMetrics.Operation.COMMIT);
+                    throw e;
+                } finally {
+                    session.close();
+                    handle.release();
+                    recordSessionHold();
+                }
+                return;
+            }
+            if (transaction.getRollbackOnly() || manualCommit) {
+                database.rollbackTransaction();
             } else {
                 database.commitTransaction();
             }
@@ -6,7 +6,9 @@ import cat.nyaa.nyaacore.database.DatabaseUtils;
 import org.bukkit.plugin.Plugin;
 
 import javax.persistence.Entity;
+import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.List;
 import java.util.Map;
 import java.util.Properties;
 import java.util.logging.Level;
@@ -18,27 +20,109 @@ public class HibernateProvider implements DatabaseProvider {
         Properties props = new Properties();
         props.put("hibernate.dialect", map.get("dialect") == null ? "org.hibernate.dialect.MySQL57Dialect" : map.get("dialect"));
         props.put("hibernate.connection.driver_class", map.get("jdbc") == null ? "com.mysql.jdbc.Driver" : map.get("jdbc"));
-        props.put("hibernate.connection.url", map.get("url"));
+        Settings.copy(map, "url", props, "hibernate.connection.url");
         props.put("hibernate.connection.username", map.get("username"));
         props.put("hibernate.connection.password", map.get("password"));
         props.put("hibernate.hbm2ddl.auto", "update");
         //props.put("hibernate.show_sql", "true");
         props.put("hibernate.jdbc.use_streams_for_binary", "true");
         props.put("hibernate.use_outer_join", "false");
-        props.put("hibernate.jdbc.batch_size", "0");
+        props.put("hibernate.jdbc.batch_size", map.get("batchSize") == null ? "50" : map.get("batchSize").toString());
+        props.put("hibernate.order_inserts", "true");
+        props.put("hibernate.order_updates", "true");
+        props.put("hibernate.jdbc.batch_versioned_data", "true");
         props.put("hibernate.jdbc.use_scrollable_resultset", "true");
-        props.put("hibernate.statement_cache.size", "0");
+        // in lists are padded to the next power of two, so their statements share a few plans instead of one per length
+        props.put("hibernate.query.in_clause_parameter_padding", "true");
         props.put("hibernate.current_session_context_class", "org.hibernate.context.internal.ThreadLocalSessionContext");
-        props.put("hibernate.c3p0.timeout", "300");
-        props.put("hibernate.c3p0.preferredTestQuery", "SELECT 1");
-        props.put("hibernate.c3p0.testConnectionOnCheckout", "true");
-        //props.put("hibernate.c3p0.unreturnedConnectionTimeout", "30");
-        //props.put("hibernate.c3p0.debugUnreturnedConnectionStackTraces", "true");
+        Settings.copy(map, "schemaFingerprint", props, Settings.SCHEMA_FINGERPRINT);
+        Settings.copy(map, "parallelStartup", props, Settings.PARALLEL_STARTUP);
+        Settings.copy(map, "fetchSize", props, Settings.FETCH_SIZE);
+        Settings.copy(map, "inChunkSize", props, Settings.IN_CHUNK_SIZE);
+        Settings.copy(map, "multiGetBatchSize", props, Settings.MULTI_GET_BATCH_SIZE);
+        Settings.copy(map, "planCacheSize", props, Settings.PLAN_CACHE_SIZE);
+        Settings.copy(map, "sharedPool", props, Settings.SHARED_POOL);
+        Settings.copy(map, "poolBackend", props, Settings.POOL_BACKEND);
+        Settings.copy(map, "poolMinSize", props, Settings.POOL_MIN_SIZE);
+        Settings.copy(map, "poolMaxSize", props, Settings.POOL_MAX_SIZE);
+        Settings.copy(map, "poolConnectionTimeout", props, Settings.POOL_CONNECTION_TIMEOUT);
+        Settings.copy(map, "poolIdleTimeout", props, Settings.POOL_IDLE_TIMEOUT);
+        Settings.copy(map, "poolMaxLifetime", props, Settings.POOL_MAX_LIFETIME);
+        Settings.copy(map, "poolValidationInterval", props, Settings.POOL_VALIDATION_INTERVAL);
+        Settings.copy(map, "poolStatementCacheSize", props, Settings.POOL_STATEMENT_CACHE_SIZE);
+        Settings.copy(map, "poolLeakDetectionThreshold", props, Settings.POOL_LEAK_DETECTION_THRESHOLD);
+        Settings.copy(map, "asyncThreads", props, Settings.ASYNC_THREADS);
+        Settings.copy(map, "asyncQueueSize", props, Settings.ASYNC_QUEUE_SIZE);
+        Settings.copy(map, "asyncShutdownTimeout", props, Settings.ASYNC_SHUTDOWN_TIMEOUT);
+        Settings.copy(map, "writeBehind", props, Settings.WRITE_BEHIND);
+        Settings.copy(map, "writeBehindInterval", props, Settings.WRITE_BEHIND_INTERVAL);
+        Settings.copy(map, "writeBehindMaxPending", props, Settings.WRITE_BEHIND_MAX_PENDING);
+        Settings.copy(map, "unitOfWork", props, Settings.UNIT_OF_WORK);
+        Settings.copy(map, "unitOfWorkWindow", props, Settings.UNIT_OF_WORK_WINDOW);
+        Settings.copy(map, "dirtyTracking", props, Settings.DIRTY_TRACKING);
+        Settings.copy(map, "secondLevelCache", props, Settings.SECOND_LEVEL_CACHE);
+        Settings.copy(map, "cacheMaxSize", props, Settings.CACHE_MAX_SIZE);
+        Settings.copy(map, "cacheTtl", props, Settings.CACHE_TTL);
+        Settings.copy(map, "cacheStrategy", props, Settings.CACHE_STRATEGY);
+        Settings.copy(map, "cacheMode", props, Settings.CACHE_MODE);
+        if (map.get("cacheRegions") instanceof Map) {
+            for (Map.Entry<?, ?> region : ((Map<?, ?>) map.get("cacheRegions")).entrySet()) {
+                @SuppressWarnings("unchecked")
+                Map<String, Object> regionMap = (Map<String, Object>) region.getValue();
+                Settings.copy(regionMap, "maxSize", props, Settings.CACHE_REGION + region.getKey() + ".max_size");
+                Settings.copy(regionMap, "ttl", props, Settings.CACHE_REGION + region.getKey() + ".ttl");
+            }
+        }
+        Settings.copy(map, "resultCache", props, Settings.RESULT_CACHE);
+        Settings.copy(map, "resultCacheMaxSize", props, Settings.RESULT_CACHE_MAX_SIZE);
+        Settings.copy(map, "resultCacheTtl", props, Settings.RESULT_CACHE_TTL);
+        if (map.get("replicas") instanceof List) {
+            List<?> replicas = (List<?>) map.get("replicas");
+            for (int i = 0; i < replicas.size(); i++) {
+                props.put(Settings.REPLICA + i + ".url", replicas.get(i).toString());
+            }
+        }
+        Settings.copy(map, "replicaConnectionTimeout", props, Settings.REPLICA_CONNECTION_TIMEOUT);
+        Settings.copy(map, "replicaRetryInterval", props, Settings.REPLICA_RETRY_INTERVAL);
+        Settings.copy(map, "replicaStickiness", props, Settings.REPLICA_STICKINESS);
+        if (map.get("shardKeys") instanceof Map) {
+            for (Map.Entry<?, ?> shardKey : ((Map<?, ?>) map.get("shardKeys")).entrySet()) {
+                props.put(Settings.SHARD_KEY + shardKey.getKey(), shardKey.getValue().toString());
+            }
+        }
+        Settings.copy(map, "shardFunction", props, Settings.SHARD_FUNCTION);
+        Settings.copy(map, "metrics", props, Settings.METRICS);
+        Settings.copy(map, "slowQueryThreshold", props, Settings.SLOW_QUERY_THRESHOLD);
         Logger.getLogger("org.hibernate").setLevel(Level.WARNING);
         Logger.getLogger("org.hibernate.SQL").setLevel(Level.WARNING);
         System.setProperty("com.mchange.v2.log.MLog", "com.mchange.v2.log.FallbackMLog");
         System.setProperty("com.mchange.v2.log.FallbackMLog.DEFAULT_CUTOFF_LEVEL", "WARNING");
         Class<?>[] classes = plugin == null ? (Class<?>[]) map.get("classes") : DatabaseUtils.scanClasses(plugin, map, Entity.class);
-        return new HibernateDatabase(props, Arrays.asList(classes == null? new Class<?>[0] : classes), plugin != null ? plugin.getLogger() : null);
+        List<Class<?>> classList = Arrays.asList(classes == null? new Class<?>[0] : classes);
+        Logger logger = plugin != null ? plugin.getLogger() : null;
+        if (map.get("shards") instanceof List) {
+            return sharded(props, (List<?>) map.get("shards"), classList, logger);
+        }
+        return new HibernateDatabase(props, classList, logger);
+    }
+
+    /**
+     * Opens one database per shard url, with the shared settings; replicas only apply to unsharded databases.
+     */
+    private static ShardedDatabase sharded(Properties props, List<?> urls, List<Class<?>> classes, Logger logger) {
+        List<HibernateDatabase> shards = new ArrayList<>(urls.size());
+        try {
+            for (Object url : urls) {
+                Properties shard = new Properties();
+                shard.putAll(props);
+                shard.keySet().removeIf(key -> key.toString().startsWith(Settings.REPLICA));
+                shard.put("hibernate.connection.url", url.toString());
+                shards.add(new HibernateDatabase(shard, classes, logger));
+            }
+            return new ShardedDatabase(shards, props, logger);
+        } catch (RuntimeException e) {
+            shards.forEach(HibernateDatabase::close);
+            throw e;
+        }
     }
 }
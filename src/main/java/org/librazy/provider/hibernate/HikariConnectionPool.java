@@ -0,0 +1,77 @@
+package org.librazy.provider.hibernate;
+
+import com.zaxxer.hikari.HikariConfig;
+import com.zaxxer.hikari.HikariDataSource;
+import com.zaxxer.hikari.HikariPoolMXBean;
+
+import javax.sql.DataSource;
+import java.util.Properties;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * HikariCP backend. Connections idle for more than half a second are checked with {@code Connection.isValid}
+ * on checkout; a connection held longer than the leak detection threshold is only logged.
+ * Statement caching is delegated to the driver and only enabled for MySQL and MariaDB urls.
+ */
+final class HikariConnectionPool extends ConnectionPool {
+    private static final AtomicInteger count = new AtomicInteger();
+    private final HikariDataSource dataSource;
+
+    HikariConnectionPool(Properties properties) {
+        super(properties);
+        HikariConfig config = new HikariConfig();
+        config.setPoolName("HibernateProvider-pool-" + count.incrementAndGet());
+        String driver = driver(properties);
+        if (driver != null) config.setDriverClassName(driver);
+        String url = url(properties);
+        config.setJdbcUrl(url);
+        config.setUsername(username(properties));
+        config.setPassword(password(properties));
+        config.setMinimumIdle(minSize);
+        config.setMaximumPoolSize(maxSize);
+        config.setConnectionTimeout(connectionTimeout);
+        config.setIdleTimeout(idleTimeout);
+        config.setMaxLifetime(maxLifetime);
+        config.setLeakDetectionThreshold(leakDetectionThreshold);
+        if (statementCacheSize > 0 && url != null && (url.startsWith("jdbc:mysql:") || url.startsWith("jdbc:mariadb:"))) {
+            config.addDataSourceProperty("cachePrepStmts", "true");
+            config.addDataSourceProperty("prepStmtCacheSize", String.valueOf(statementCacheSize));
+            config.addDataSourceProperty("prepStmtCacheSqlLimit", "2048");
+            config.addDataSourceProperty("useServerPrepStmts", "true");
+        }
+        dataSource = new HikariDataSource(config);
+    }
+
+    @Override
+    String getName() {
+        return "hikari";
+    }
+
+    @Override
+    DataSource getDataSource() {
+        return dataSource;
+    }
+
+    @Override
+    int getActiveConnections() {
+        HikariPoolMXBean pool = dataSource.getHikariPoolMXBean();
+        return pool == null ? 0 : pool.getActiveConnections();
+    }
+
+    @Override
+    int getIdleConnections() {
+        HikariPoolMXBean pool = dataSource.getHikariPoolMXBean();
+        return pool == null ? 0 : pool.getIdleConnections();
+    }
+
+    @Override
+    int getWaitingThreads() {
+        HikariPoolMXBean pool = dataSource.getHikariPoolMXBean();
+        return pool == null ? 0 : pool.getThreadsAwaitingConnection();
+    }
+
+    @Override
+    void close() {
+        dataSource.close();
+    }
+}
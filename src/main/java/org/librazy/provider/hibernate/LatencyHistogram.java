@@ -0,0 +1,82 @@
+package org.librazy.provider.hibernate;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Lock-free histogram of durations with microsecond resolution.
+ * <p>
+ * Values below 16 microseconds are counted exactly; larger values fall into 8 linear sub-buckets per power of two,
+ * so reported percentiles are within 12.5% of the recorded value.
+ */
+final class LatencyHistogram {
+    private static final int EXACT = 16;
+    private static final int SUB_BUCKETS = 8;
+    private static final int SUB_BITS = 3;
+
+    private final AtomicLongArray counts = new AtomicLongArray(EXACT + (63 - 4) * SUB_BUCKETS);
+    private final LongAdder total = new LongAdder();
+    private final LongAdder sum = new LongAdder();
+
+    void record(long nanos) {
+        long micros = Math.max(0, TimeUnit.NANOSECONDS.toMicros(nanos));
+        counts.incrementAndGet(index(micros));
+        total.increment();
+        sum.add(micros);
+    }
+
+    long getCount() {
+        return total.sum();
+    }
+
+    /**
+     * @return mean of the recorded values in microseconds
+     */
+    double getMean() {
+        long count = total.sum();
+        return count == 0 ? 0 : (double) sum.sum() / count;
+    }
+
+    /**
+     * @param percentile between 0 and 100
+     * @return upper bound, in microseconds, of the bucket holding the given percentile
+     */
+    long getPercentile(double percentile) {
+        long count = total.sum();
+        if (count == 0) return 0;
+        long rank = Math.max(1, (long) Math.ceil(count * percentile / 100));
+        long seen = 0;
+        int last = 0;
+        for (int i = 0; i < counts.length(); i++) {
+            long c = counts.get(i);
+            if (c == 0) continue;
+            last = i;
+            seen += c;
+            if (seen >= rank) return upperBound(i);
+        }
+        return upperBound(last);
+    }
+
+    void reset() {
+        for (int i = 0; i < counts.length(); i++) {
+            counts.set(i, 0);
+        }
+        total.reset();
+        sum.reset();
+    }
+
+    private static int index(long micros) {
+        if (micros < EXACT) return (int) micros;
+        int exponent = 63 - Long.numberOfLeadingZeros(micros);
+        int sub = (int) (micros >>> (exponent - SUB_BITS)) & (SUB_BUCKETS - 1);
+        return EXACT + (exponent - 4) * SUB_BUCKETS + sub;
+    }
+
+    private static long upperBound(int index) {
+        if (index < EXACT) return index;
+        int exponent = (index - EXACT) / SUB_BUCKETS + 4;
+        int sub = (index - EXACT) % SUB_BUCKETS;
+        return (1L << exponent) + ((long) (sub + 1) << (exponent - SUB_BITS)) - 1;
+    }
+}
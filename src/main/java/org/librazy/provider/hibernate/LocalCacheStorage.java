@@ -0,0 +1,134 @@
+package org.librazy.provider.hibernate;
+
+import org.hibernate.cache.spi.access.SoftLock;
+import org.hibernate.cache.spi.support.DomainDataStorageAccess;
+import org.hibernate.engine.spi.SharedSessionContractImplementor;
+
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * In-process storage of one cache region: entries expire after a time to live and the least recently used
+ * ones are evicted past the maximum size.
+ * <p>
+ * Soft locks placed by the read-write strategy are kept apart from the entries and never expire or get
+ * evicted with them, since dropping a lock early would let a transaction that read the old row put it back.
+ */
+final class LocalCacheStorage implements DomainDataStorageAccess {
+    /**
+     * How long a soft lock is kept at least, well past the timeout after which Hibernate ignores it.
+     */
+    private static final long LOCK_RETENTION = TimeUnit.MINUTES.toNanos(2);
+
+    private final int maxSize;
+    private final long ttlNanos;
+    private final LinkedHashMap<Object, Entry> entries;
+    private final Map<Object, Entry> locks = new HashMap<>();
+    /**
+     * Set on a thread while the next region-wide clear on it is to be skipped, see {@link #skipNextClear(boolean)}.
+     */
+    private final ThreadLocal<Boolean> skipClear = new ThreadLocal<>();
+
+    /**
+     * @param maxSize entries kept at most, 0 for no limit
+     * @param ttlMillis milliseconds an entry is served after it was put, 0 for no limit
+     */
+    LocalCacheStorage(int maxSize, long ttlMillis) {
+        this.maxSize = maxSize;
+        this.ttlNanos = ttlMillis > 0 ? TimeUnit.MILLISECONDS.toNanos(ttlMillis) : 0;
+        this.entries = new LinkedHashMap<Object, Entry>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<Object, Entry> eldest) {
+                return maxSize > 0 && size() > maxSize;
+            }
+        };
+    }
+
+    @Override
+    public synchronized Object getFromCache(Object key, SharedSessionContractImplementor session) {
+        Entry lock = locks.get(key);
+        if (lock != null) return lock.value;
+        Entry entry = entries.get(key);
+        if (entry == null) return null;
+        if (ttlNanos > 0 && System.nanoTime() - entry.written > ttlNanos) {
+            entries.remove(key);
+            return null;
+        }
+        return entry.value;
+    }
+
+    @Override
+    public synchronized void putIntoCache(Object key, Object value, SharedSessionContractImplementor session) {
+        if (value instanceof SoftLock) {
+            entries.remove(key);
+            locks.put(key, new Entry(value));
+            if (maxSize > 0 && locks.size() > maxSize) {
+                pruneLocks();
+            }
+        } else {
+            locks.remove(key);
+            entries.put(key, new Entry(value));
+        }
+    }
+
+    private void pruneLocks() {
+        long now = System.nanoTime();
+        for (Iterator<Entry> it = locks.values().iterator(); it.hasNext(); ) {
+            if (now - it.next().written > LOCK_RETENTION) it.remove();
+        }
+    }
+
+    /**
+     * @return whether a value that can be served is cached for the key; soft locks do not count
+     */
+    @Override
+    public synchronized boolean contains(Object key) {
+        return !locks.containsKey(key) && getFromCache(key, null) != null;
+    }
+
+    @Override
+    public void evictData() {
+        if (skipClear.get() != null) {
+            skipClear.remove();
+            return;
+        }
+        synchronized (this) {
+            entries.clear();
+        }
+    }
+
+    @Override
+    public synchronized void evictData(Object key) {
+        entries.remove(key);
+    }
+
+    @Override
+    public synchronized void release() {
+        entries.clear();
+        locks.clear();
+    }
+
+    /**
+     * Makes the next region-wide clear on this thread a no-op, or no longer if it has not happened yet. At most one
+     * clear is ever skipped, so a skip that is never called off costs one clear at most.
+     */
+    void skipNextClear(boolean skip) {
+        if (skip) {
+            skipClear.set(Boolean.TRUE);
+        } else {
+            skipClear.remove();
+        }
+    }
+
+    private static final class Entry {
+        private final Object value;
+        private final long written = System.nanoTime();
+
+        private Entry(Object value) {
+            this.value = value;
+        }
+    }
+}
@@ -0,0 +1,107 @@
+package org.librazy.provider.hibernate;
+
+import org.hibernate.boot.spi.SessionFactoryOptions;
+import org.hibernate.cache.CacheException;
+import org.hibernate.cache.cfg.spi.DomainDataRegionBuildingContext;
+import org.hibernate.cache.cfg.spi.DomainDataRegionConfig;
+import org.hibernate.cache.internal.DefaultCacheKeysFactory;
+import org.hibernate.cache.spi.DomainDataRegion;
+import org.hibernate.cache.spi.QueryResultsRegion;
+import org.hibernate.cache.spi.RegionFactory;
+import org.hibernate.cache.spi.TimestampsRegion;
+import org.hibernate.cache.spi.access.AccessType;
+import org.hibernate.cache.spi.support.DomainDataRegionTemplate;
+import org.hibernate.cache.spi.support.QueryResultsRegionTemplate;
+import org.hibernate.cache.spi.support.RegionNameQualifier;
+import org.hibernate.cache.spi.support.SimpleTimestamper;
+import org.hibernate.cache.spi.support.TimestampsRegionTemplate;
+import org.hibernate.engine.spi.SessionFactoryImplementor;
+
+import java.util.Map;
+import java.util.Properties;
+
+/**
+ * Second-level cache regions held in the heap of the server, one {@link LocalCacheStorage} per region.
+ * <p>
+ * Each region takes its size and time to live from {@code hibernateprovider.cache.region.<name>.max_size} and
+ * {@code .ttl}, where the name is the region name or its last segment (the simple class name for entity regions),
+ * falling back to {@code hibernateprovider.cache.max_size} and {@code hibernateprovider.cache.ttl}.
+ * <p>
+ * One instance serves every SessionFactory built from the same service registry. Regions are built per
+ * factory, so a factory swapped in by a schema change starts with empty regions and closing the old one
+ * does not disturb it; hence start and stop hold no state of their own.
+ */
+final class LocalRegionFactory implements RegionFactory {
+    private final Properties properties;
+    private volatile SessionFactoryOptions options;
+
+    LocalRegionFactory(Properties properties) {
+        this.properties = properties;
+    }
+
+    @Override
+    public void start(SessionFactoryOptions settings, Map configValues) throws CacheException {
+        this.options = settings;
+    }
+
+    @Override
+    public void stop() {
+    }
+
+    @Override
+    public boolean isMinimalPutsEnabledByDefault() {
+        return false;
+    }
+
+    @Override
+    public AccessType getDefaultAccessType() {
+        return AccessType.READ_WRITE;
+    }
+
+    @Override
+    public String qualify(String regionName) {
+        return RegionNameQualifier.INSTANCE.qualify(regionName, options);
+    }
+
+    @Override
+    public long nextTimestamp() {
+        return SimpleTimestamper.next();
+    }
+
+    @Override
+    public long getTimeout() {
+        return SimpleTimestamper.timeOut();
+    }
+
+    @Override
+    public DomainDataRegion buildDomainDataRegion(DomainDataRegionConfig regionConfig, DomainDataRegionBuildingContext buildingContext) {
+        return new DomainDataRegionTemplate(regionConfig, this, storage(regionConfig.getRegionName()), DefaultCacheKeysFactory.INSTANCE, buildingContext);
+    }
+
+    @Override
+    public QueryResultsRegion buildQueryResultsRegion(String regionName, SessionFactoryImplementor sessionFactory) {
+        return new QueryResultsRegionTemplate(regionName, this, storage(regionName));
+    }
+
+    /**
+     * The timestamps region is never bounded: losing the last update time of a table would let stale query results be served.
+     */
+    @Override
+    public TimestampsRegion buildTimestampsRegion(String regionName, SessionFactoryImplementor sessionFactory) {
+        return new TimestampsRegionTemplate(regionName, this, new LocalCacheStorage(0, 0));
+    }
+
+    private LocalCacheStorage storage(String regionName) {
+        String shortName = regionName.substring(regionName.lastIndexOf('.') + 1);
+        int maxSize = Settings.getInt(properties, regionSetting(regionName, shortName, "max_size", Settings.CACHE_MAX_SIZE), 10000);
+        int ttl = Settings.getInt(properties, regionSetting(regionName, shortName, "ttl", Settings.CACHE_TTL), 0);
+        return new LocalCacheStorage(maxSize, ttl);
+    }
+
+    private String regionSetting(String regionName, String shortName, String suffix, String fallback) {
+        String setting = Settings.CACHE_REGION + regionName + "." + suffix;
+        if (properties.containsKey(setting)) return setting;
+        setting = Settings.CACHE_REGION + shortName + "." + suffix;
+        return properties.containsKey(setting) ? setting : fallback;
+    }
+}
@@ -0,0 +1,76 @@
+package org.librazy.provider.hibernate;
+
+/**
+ * Point-in-time view of a connection pool. Latencies are in microseconds and cover every checkout since the pool was started.
+ */
+public final class PoolMetrics {
+    private final String backend;
+    private final int activeConnections;
+    private final int idleConnections;
+    private final int waitingThreads;
+    private final long checkouts;
+    private final double meanLatency;
+    private final long p50Latency;
+    private final long p95Latency;
+    private final long p99Latency;
+    private final long maxLatency;
+
+    PoolMetrics(ConnectionPool pool, LatencyHistogram checkoutLatency) {
+        this.backend = pool.getName();
+        this.activeConnections = pool.getActiveConnections();
+        this.idleConnections = pool.getIdleConnections();
+        this.waitingThreads = pool.getWaitingThreads();
+        this.checkouts = checkoutLatency.getCount();
+        this.meanLatency = checkoutLatency.getMean();
+        this.p50Latency = checkoutLatency.getPercentile(50);
+        this.p95Latency = checkoutLatency.getPercentile(95);
+        this.p99Latency = checkoutLatency.getPercentile(99);
+        this.maxLatency = checkoutLatency.getPercentile(100);
+    }
+
+    public String getBackend() {
+        return backend;
+    }
+
+    public int getActiveConnections() {
+        return activeConnections;
+    }
+
+    public int getIdleConnections() {
+        return idleConnections;
+    }
+
+    public int getWaitingThreads() {
+        return waitingThreads;
+    }
+
+    public long getCheckouts() {
+        return checkouts;
+    }
+
+    public double getMeanCheckoutLatency() {
+        return meanLatency;
+    }
+
+    public long getCheckoutLatencyP50() {
+        return p50Latency;
+    }
+
+    public long getCheckoutLatencyP95() {
+        return p95Latency;
+    }
+
+    public long getCheckoutLatencyP99() {
+        return p99Latency;
+    }
+
+    public long getMaxCheckoutLatency() {
+        return maxLatency;
+    }
+
+    @Override
+    public String toString() {
+        return String.format("%s: active=%d idle=%d waiting=%d checkouts=%d latency(us) mean=%.1f p50=%d p95=%d p99=%d max=%d",
+                backend, activeConnections, idleConnections, waitingThreads, checkouts, meanLatency, p50Latency, p95Latency, p99Latency, maxLatency);
+    }
+}
@@ -0,0 +1,169 @@
+package org.librazy.provider.hibernate;
+
+import org.apache.commons.lang.ClassUtils;
+import org.apache.commons.lang.Validate;
+
+import javax.persistence.Tuple;
+import javax.persistence.TupleElement;
+import java.lang.reflect.Constructor;
+import java.lang.reflect.InvocationTargetException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * The columns selected by a projection query, resolved to entity properties, and the conversions of
+ * its raw result rows into tuples and DTOs.
+ */
+final class Projection {
+    /**
+     * Constructors by DTO type and selected column types; kept in the DTO class, so that they do not keep it alive
+     */
+    private static final ClassValue<Map<List<Class<?>>, Constructor<?>>> constructors = new ClassValue<Map<List<Class<?>>, Constructor<?>>>() {
+        @Override
+        protected Map<List<Class<?>>, Constructor<?>> computeValue(Class<?> type) {
+            return new ConcurrentHashMap<>();
+        }
+    };
+
+    private final String[] aliases;
+    private final String[] properties;
+    private final Class<?>[] javaTypes;
+    private final List<TupleElement<?>> elements;
+
+    Projection(EntityDescriptor<?> descriptor, String... columns) {
+        Validate.isTrue(columns.length > 0, "At least one column must be selected");
+        this.aliases = columns.clone();
+        this.properties = new String[columns.length];
+        this.javaTypes = new Class<?>[columns.length];
+        List<TupleElement<?>> elements = new ArrayList<>(columns.length);
+        for (int i = 0; i < columns.length; i++) {
+            properties[i] = descriptor.property(columns[i]);
+            Validate.notNull(properties[i], "No suitable column or property found for '" + columns[i] + "'");
+            javaTypes[i] = descriptor.javaType(properties[i]);
+            elements.add(new Element<>(javaTypes[i], columns[i]));
+        }
+        this.elements = Collections.unmodifiableList(elements);
+    }
+
+    String[] getProperties() {
+        return properties;
+    }
+
+    /**
+     * @return the row as an array, also when a single column is selected
+     */
+    static Object[] row(Object result) {
+        return result instanceof Object[] ? (Object[]) result : new Object[]{result};
+    }
+
+    Tuple toTuple(Object[] row) {
+        return new ProjectionTuple(row);
+    }
+
+    /**
+     * @return the public constructor of {@code type} whose parameters accept the selected columns in order
+     */
+    @SuppressWarnings("unchecked")
+    <R> Constructor<R> constructor(Class<R> type) {
+        return (Constructor<R>) constructors.get(type).computeIfAbsent(Arrays.asList(javaTypes), k -> {
+            for (Constructor<?> constructor : type.getConstructors()) {
+                if (ClassUtils.isAssignable(javaTypes, constructor.getParameterTypes(), true)) {
+                    return constructor;
+                }
+            }
+            throw new IllegalArgumentException("No public constructor of " + type.getName() + " accepts " + Arrays.toString(javaTypes));
+        });
+    }
+
+    static <R> R construct(Constructor<R> constructor, Object[] row) {
+        try {
+            return constructor.newInstance(row);
+        } catch (InvocationTargetException e) {
+            throw new RuntimeException(e.getCause());
+        } catch (ReflectiveOperationException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    private static final class Element<X> implements TupleElement<X> {
+        private final Class<? extends X> javaType;
+        private final String alias;
+
+        private Element(Class<? extends X> javaType, String alias) {
+            this.javaType = javaType;
+            this.alias = alias;
+        }
+
+        @Override
+        public Class<? extends X> getJavaType() {
+            return javaType;
+        }
+
+        @Override
+        public String getAlias() {
+            return alias;
+        }
+    }
+
+    private final class ProjectionTuple implements Tuple {
+        private final Object[] values;
+
+        private ProjectionTuple(Object[] values) {
+            this.values = values;
+        }
+
+        @Override
+        public <X> X get(TupleElement<X> element) {
+            int index = elements.indexOf(element);
+            if (index < 0) {
+                throw new IllegalArgumentException("Element is not part of this tuple");
+            }
+            return element.getJavaType().cast(values[index]);
+        }
+
+        @Override
+        public <X> X get(String alias, Class<X> type) {
+            return type.cast(get(alias));
+        }
+
+        @Override
+        public Object get(String alias) {
+            for (int i = 0; i < aliases.length; i++) {
+                if (aliases[i].equals(alias)) return values[i];
+            }
+            throw new IllegalArgumentException("Unknown alias '" + alias + "'");
+        }
+
+        @Override
+        public <X> X get(int i, Class<X> type) {
+            return type.cast(get(i));
+        }
+
+        @Override
+        public Object get(int i) {
+            if (i < 0 || i >= values.length) {
+                throw new IllegalArgumentException("Index " + i + " out of range");
+            }
+            return values[i];
+        }
+
+        @Override
+        public Object[] toArray() {
+            return values.clone();
+        }
+
+        @Override
+        public List<TupleElement<?>> getElements() {
+            return elements;
+        }
+
+        @Override
+        public String toString() {
+            return Arrays.toString(values);
+        }
+    }
+}
@@ -0,0 +1,88 @@
+package org.librazy.provider.hibernate;
+
+import net.bytebuddy.ByteBuddy;
+import net.bytebuddy.ClassFileVersion;
+import net.bytebuddy.description.field.FieldDescription;
+import net.bytebuddy.description.method.MethodDescription;
+import net.bytebuddy.description.type.TypeDescription;
+import net.bytebuddy.dynamic.loading.ClassLoadingStrategy;
+import net.bytebuddy.implementation.Implementation;
+import net.bytebuddy.implementation.bytecode.StackManipulation;
+import net.bytebuddy.implementation.bytecode.assign.Assigner;
+import net.bytebuddy.implementation.bytecode.assign.TypeCasting;
+import net.bytebuddy.implementation.bytecode.member.FieldAccess;
+import net.bytebuddy.implementation.bytecode.member.MethodInvocation;
+import net.bytebuddy.implementation.bytecode.member.MethodReturn;
+import net.bytebuddy.implementation.bytecode.member.MethodVariableAccess;
+import org.hibernate.property.access.spi.Getter;
+
+import java.lang.reflect.Field;
+import java.lang.reflect.Member;
+import java.lang.reflect.Method;
+import java.lang.reflect.Modifier;
+import java.util.function.Function;
+
+import static net.bytebuddy.matcher.ElementMatchers.named;
+
+/**
+ * Property getters generated with ByteBuddy, reading a field or calling a getter method directly
+ * instead of going through reflection.
+ * <p>
+ * Generated classes live in their own class loader, so only public members of public classes are
+ * accessed this way; any other member keeps using the Hibernate {@link Getter}. Getters are not cached here:
+ * {@link EntityDescriptor} keeps them for as long as its session factory lives, so that nothing outlives the
+ * entity classes.
+ */
+final class PropertyAccessors {
+    private static final ByteBuddy byteBuddy = new ByteBuddy(ClassFileVersion.JAVA_V8);
+
+    private PropertyAccessors() {
+    }
+
+    static Function<Object, Object> getter(Getter getter) {
+        Member member = getter.getMember();
+        if (!isAccessible(member)) {
+            return getter::get;
+        }
+        try {
+            return generate(member);
+        } catch (RuntimeException | LinkageError | ReflectiveOperationException e) {
+            return getter::get;
+        }
+    }
+
+    private static boolean isAccessible(Member member) {
+        if (!(member instanceof Field) && !(member instanceof Method)) return false;
+        Class<?> owner = member.getDeclaringClass();
+        return Modifier.isPublic(member.getModifiers()) && !Modifier.isStatic(member.getModifiers())
+                && Modifier.isPublic(owner.getModifiers()) && owner.getClassLoader() != null;
+    }
+
+    @SuppressWarnings("unchecked")
+    private static Function<Object, Object> generate(Member member) throws ReflectiveOperationException {
+        Class<?> owner = member.getDeclaringClass();
+        StackManipulation read;
+        Class<?> type;
+        if (member instanceof Field) {
+            read = FieldAccess.forField(new FieldDescription.ForLoadedField((Field) member)).read();
+            type = ((Field) member).getType();
+        } else {
+            read = MethodInvocation.invoke(new MethodDescription.ForLoadedMethod((Method) member));
+            type = ((Method) member).getReturnType();
+        }
+        Implementation apply = new Implementation.Simple(
+                MethodVariableAccess.REFERENCE.loadFrom(1),
+                TypeCasting.to(new TypeDescription.ForLoadedType(owner)),
+                read,
+                // boxes primitives
+                Assigner.DEFAULT.assign(new TypeDescription.Generic.OfNonGenericType.ForLoadedType(type), TypeDescription.Generic.OBJECT, Assigner.Typing.STATIC),
+                MethodReturn.REFERENCE);
+        Class<?> generated = byteBuddy.subclass(Function.class)
+                .name(owner.getName() + "$PropertyGetter$" + member.getName())
+                .method(named("apply")).intercept(apply)
+                .make()
+                .load(owner.getClassLoader(), ClassLoadingStrategy.Default.WRAPPER)
+                .getLoaded();
+        return (Function<Object, Object>) generated.getDeclaredConstructor().newInstance();
+    }
+}
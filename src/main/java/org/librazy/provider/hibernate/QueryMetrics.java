@@ -0,0 +1,318 @@
+package org.librazy.provider.hibernate;
+
+import org.hibernate.SessionFactory;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Supplier;
+import java.util.logging.Logger;
+
+/**
+ * Counts and latencies of the operations run through the queries of a {@link HibernateDatabase},
+ * per entity and operation, along with how long sessions and transactions are held open.
+ * <p>
+ * Enabled with the {@code metrics} setting, which also turns on Hibernate's own {@link org.hibernate.stat.Statistics}.
+ * Operations slower than the {@code slowQueryThreshold} setting (milliseconds) are logged with their statement.
+ */
+public final class QueryMetrics {
+    public enum Operation {
+        SELECT, STREAM, COUNT, INSERT, UPDATE, UPSERT, DELETE, COMMIT, ROLLBACK
+    }
+
+    private final HibernateDatabase database;
+    private final Logger log;
+    private final long slowThresholdNanos;
+    private final Map<Key, Stats> stats = new ConcurrentHashMap<>();
+    private final LatencyHistogram sessionHold = new LatencyHistogram();
+    private final LatencyHistogram transactionHold = new LatencyHistogram();
+    private final LongAdder slowQueries = new LongAdder();
+
+    QueryMetrics(HibernateDatabase database, long slowThresholdMillis, Logger log) {
+        this.database = database;
+        this.log = log;
+        this.slowThresholdNanos = slowThresholdMillis > 0 ? TimeUnit.MILLISECONDS.toNanos(slowThresholdMillis) : Long.MAX_VALUE;
+    }
+
+    void record(Class<?> entity, Operation operation, long startNanos, long rows, Supplier<String> statement) {
+        long nanos = System.nanoTime() - startNanos;
+        Stats s = stats(entity, operation);
+        s.latency.record(nanos);
+        s.rows.add(rows);
+        if (nanos >= slowThresholdNanos) {
+            slowQueries.increment();
+            log.warning(String.format("Slow %s on %s took %.1f ms (%d rows): %s",
+                    operation.name().toLowerCase(), entity.getSimpleName(), nanos / 1e6, rows, statement.get()));
+        }
+    }
+
+    void recordFailure(Class<?> entity, Operation operation) {
+        stats(entity, operation).failures.increment();
+    }
+
+    void recordSessionHold(long startNanos) {
+        sessionHold.record(System.nanoTime() - startNanos);
+    }
+
+    void recordTransactionHold(long startNanos) {
+        transactionHold.record(System.nanoTime() - startNanos);
+    }
+
+    private Stats stats(Class<?> entity, Operation operation) {
+        return stats.computeIfAbsent(new Key(entity, operation), k -> new Stats());
+    }
+
+    /**
+     * @return the metrics recorded so far; Hibernate's counters cover the current SessionFactory only
+     */
+    public Snapshot snapshot() {
+        List<OperationStats> operations = new ArrayList<>(stats.size());
+        stats.forEach((key, s) -> operations.add(new OperationStats(key.entity, key.operation, new Timing(s.latency), s.rows.sum(), s.failures.sum())));
+        operations.sort((a, b) -> {
+            int c = a.entity.getName().compareTo(b.entity.getName());
+            return c != 0 ? c : a.operation.compareTo(b.operation);
+        });
+        return new Snapshot(operations, new Timing(sessionHold), new Timing(transactionHold), slowQueries.sum(), database.currentFactory());
+    }
+
+    public void reset() {
+        stats.clear();
+        sessionHold.reset();
+        transactionHold.reset();
+        slowQueries.reset();
+        database.currentFactory().getStatistics().clear();
+    }
+
+    private static final class Key {
+        private final Class<?> entity;
+        private final Operation operation;
+
+        private Key(Class<?> entity, Operation operation) {
+            this.entity = entity;
+            this.operation = operation;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (this == o) return true;
+            if (!(o instanceof Key)) return false;
+            Key key = (Key) o;
+            return entity == key.entity && operation == key.operation;
+        }
+
+        @Override
+        public int hashCode() {
+            return Objects.hash(entity, operation);
+        }
+    }
+
+    private static final class Stats {
+        private final LatencyHistogram latency = new LatencyHistogram();
+        private final LongAdder rows = new LongAdder();
+        private final LongAdder failures = new LongAdder();
+    }
+
+    /**
+     * Count and latency distribution of a timed activity, in microseconds.
+     */
+    public static final class Timing {
+        private final long count;
+        private final double mean;
+        private final long p50;
+        private final long p99;
+        private final long max;
+
+        private Timing(LatencyHistogram histogram) {
+            this.count = histogram.getCount();
+            this.mean = histogram.getMean();
+            this.p50 = histogram.getPercentile(50);
+            this.p99 = histogram.getPercentile(99);
+            this.max = histogram.getPercentile(100);
+        }
+
+        public long getCount() {
+            return count;
+        }
+
+        public double getMean() {
+            return mean;
+        }
+
+        public long getP50() {
+            return p50;
+        }
+
+        public long getP99() {
+            return p99;
+        }
+
+        public long getMax() {
+            return max;
+        }
+
+        @Override
+        public String toString() {
+            return String.format("count=%d mean=%.1fus p50=%dus p99=%dus max=%dus", count, mean, p50, p99, max);
+        }
+    }
+
+    public static final class OperationStats {
+        private final Class<?> entity;
+        private final Operation operation;
+        private final Timing latency;
+        private final long rows;
+        private final long failures;
+
+        private OperationStats(Class<?> entity, Operation operation, Timing latency, long rows, long failures) {
+            this.entity = entity;
+            this.operation = operation;
+            this.latency = latency;
+            this.rows = rows;
+            this.failures = failures;
+        }
+
+        public Class<?> getEntity() {
+            return entity;
+        }
+
+        public Operation getOperation() {
+            return operation;
+        }
+
+        public Timing getLatency() {
+            return latency;
+        }
+
+        /**
+         * @return rows returned, inserted, updated or deleted by the successful operations
+         */
+        public long getRows() {
+            return rows;
+        }
+
+        public long getFailures() {
+            return failures;
+        }
+
+        @Override
+        public String toString() {
+            return entity.getSimpleName() + " " + operation.name().toLowerCase() + ": " + latency + " rows=" + rows + " failures=" + failures;
+        }
+    }
+
+    public static final class Snapshot {
+        private final List<OperationStats> operations;
+        private final Timing sessionHold;
+        private final Timing transactionHold;
+        private final long slowQueries;
+        private final long queryExecutions;
+        private final long queryExecutionMaxTime;
+        private final String queryExecutionMaxTimeQuery;
+        private final long entityLoads;
+        private final long entityFetches;
+        private final long preparedStatements;
+        private final long flushes;
+        private final long sessionsOpened;
+
+        private Snapshot(List<OperationStats> operations, Timing sessionHold, Timing transactionHold, long slowQueries, SessionFactory factory) {
+            this.operations = operations;
+            this.sessionHold = sessionHold;
+            this.transactionHold = transactionHold;
+            this.slowQueries = slowQueries;
+            org.hibernate.stat.Statistics statistics = factory.getStatistics();
+            this.queryExecutions = statistics.getQueryExecutionCount();
+            this.queryExecutionMaxTime = statistics.getQueryExecutionMaxTime();
+            this.queryExecutionMaxTimeQuery = statistics.getQueryExecutionMaxTimeQueryString();
+            this.entityLoads = statistics.getEntityLoadCount();
+            this.entityFetches = statistics.getEntityFetchCount();
+            this.preparedStatements = statistics.getPrepareStatementCount();
+            this.flushes = statistics.getFlushCount();
+            this.sessionsOpened = statistics.getSessionOpenCount();
+        }
+
+        public List<OperationStats> getOperations() {
+            return operations;
+        }
+
+        /**
+         * @return the statistics of one operation on one entity, or null if it never ran
+         */
+        public OperationStats get(Class<?> entity, Operation operation) {
+            for (OperationStats stats : operations) {
+                if (stats.entity == entity && stats.operation == operation) return stats;
+            }
+            return null;
+        }
+
+        /**
+         * @return how long the sessions of queries run outside a transaction were open
+         */
+        public Timing getSessionHold() {
+            return sessionHold;
+        }
+
+        /**
+         * @return how long transactions opened by {@link HibernateDatabase#beginTransaction()} or
+         * {@link HibernateDatabase#transaction(Class)} stayed open
+         */
+        public Timing getTransactionHold() {
+            return transactionHold;
+        }
+
+        public long getSlowQueries() {
+            return slowQueries;
+        }
+
+        public long getQueryExecutions() {
+            return queryExecutions;
+        }
+
+        /**
+         * @return milliseconds taken by the slowest HQL query, as measured by Hibernate
+         */
+        public long getQueryExecutionMaxTime() {
+            return queryExecutionMaxTime;
+        }
+
+        public String getQueryExecutionMaxTimeQuery() {
+            return queryExecutionMaxTimeQuery;
+        }
+
+        public long getEntityLoads() {
+            return entityLoads;
+        }
+
+        public long getEntityFetches() {
+            return entityFetches;
+        }
+
+        public long getPreparedStatements() {
+            return preparedStatements;
+        }
+
+        public long getFlushes() {
+            return flushes;
+        }
+
+        public long getSessionsOpened() {
+            return sessionsOpened;
+        }
+
+        @Override
+        public String toString() {
+            StringBuilder sb = new StringBuilder();
+            for (OperationStats stats : operations) {
+                sb.append(stats).append('\n');
+            }
+            sb.append("sessions: ").append(sessionHold).append('\n');
+            sb.append("transactions: ").append(transactionHold).append('\n');
+            sb.append("slow queries: ").append(slowQueries).append(", hibernate queries: ").append(queryExecutions)
+                    .append(", statements: ").append(preparedStatements).append(", entity loads: ").append(entityLoads);
+            return sb.toString();
+        }
+    }
+}
@@ -0,0 +1,277 @@
+package org.librazy.provider.hibernate;
+
+import com.google.common.collect.Table;
+import org.hibernate.dialect.Dialect;
+import org.hibernate.dialect.MySQLDialect;
+import org.hibernate.dialect.PostgreSQL81Dialect;
+import org.hibernate.dialect.SQLServerDialect;
+import org.hibernate.query.Query;
+
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.List;
+import java.util.Objects;
+import java.util.UUID;
+
+/**
+ * A parameterised HQL statement compiled from a where-clause shape.
+ * Plans hold no values; they are bound to a fresh {@link Query} on every execution.
+ */
+final class QueryPlan {
+    enum Operation {
+        SELECT, PROJECT, COUNT, UPDATE, DELETE
+    }
+
+    private final Shape shape;
+    private final String hql;
+    private final boolean[] coerceUuid;
+
+    private QueryPlan(Shape shape, String hql, boolean[] coerceUuid) {
+        this.shape = shape;
+        this.hql = hql;
+        this.coerceUuid = coerceUuid;
+    }
+
+    static QueryPlan compile(EntityDescriptor<?> descriptor, Shape shape) {
+        StringBuilder hql = new StringBuilder(64);
+        switch (shape.operation) {
+            case SELECT:
+                hql.append("select e from ").append(descriptor.getEntityName()).append(" e");
+                break;
+            case PROJECT:
+                hql.append("select ");
+                for (int i = 0; i < shape.setProperties.length; i++) {
+                    if (i > 0) hql.append(", ");
+                    hql.append("e.").append(shape.setProperties[i]);
+                }
+                hql.append(" from ").append(descriptor.getEntityName()).append(" e");
+                break;
+            case COUNT:
+                hql.append("select count(e) from ").append(descriptor.getEntityName()).append(" e");
+                break;
+            case DELETE:
+                hql.append("delete from ").append(descriptor.getEntityName()).append(" e");
+                break;
+            case UPDATE:
+                hql.append("update ").append(descriptor.getEntityName()).append(" e set ");
+                for (int i = 0; i < shape.setProperties.length; i++) {
+                    if (i > 0) hql.append(", ");
+                    hql.append("e.").append(shape.setProperties[i]).append(" = :s").append(i);
+                }
+                break;
+        }
+        boolean[] coerceUuid = new boolean[shape.properties.length];
+        for (int i = 0; i < shape.properties.length; i++) {
+            hql.append(i == 0 ? " where " : " and ").append("e.").append(shape.properties[i]);
+            switch (shape.comparators[i]) {
+                case "=":
+                    coerceUuid[i] = descriptor.javaType(shape.properties[i]) == UUID.class;
+                    hql.append(" = ");
+                    break;
+                case ">=":
+                case "<=":
+                case ">":
+                case "<":
+                    hql.append(' ').append(shape.comparators[i]).append(' ');
+                    break;
+                case " LIKE ":
+                    hql.append(" like ");
+                    break;
+                case " IN ":
+                    coerceUuid[i] = descriptor.javaType(shape.properties[i]) == UUID.class;
+                    hql.append(" in (:p").append(i).append(')');
+                    continue;
+                default:
+                    throw new RuntimeException(new SQLException("Operator not supported"));
+            }
+            hql.append(":p").append(i);
+        }
+        if (shape.keyset) {
+            // (a > :k0) or (a = :k0 and b > :k1) ..., which every dialect can use with an index on (a, b)
+            hql.append(shape.properties.length == 0 ? " where (" : " and (");
+            for (int i = 0; i < shape.orderBy.length; i++) {
+                if (i > 0) hql.append(" or ");
+                hql.append('(');
+                for (int j = 0; j < i; j++) {
+                    hql.append("e.").append(shape.orderBy[j]).append(" = :k").append(j).append(" and ");
+                }
+                hql.append("e.").append(shape.orderBy[i]).append(shape.descending[i] ? " < :k" : " > :k").append(i).append(')');
+            }
+            hql.append(')');
+        }
+        for (int i = 0; i < shape.orderBy.length; i++) {
+            hql.append(i == 0 ? " order by " : ", ").append("e.").append(shape.orderBy[i]).append(shape.descending[i] ? " desc" : " asc");
+        }
+        return new QueryPlan(shape, hql.toString(), coerceUuid);
+    }
+
+    String getHql() {
+        return hql;
+    }
+
+    Shape getShape() {
+        return shape;
+    }
+
+    /**
+     * Binds the where-clause values, and for updates the values of the set properties, to the query.
+     */
+    <Q extends Query<?>> Q bind(Q query, Table<String, String, Object> where, Object[] setValues) {
+        for (int i = 0; i < shape.properties.length; i++) {
+            Object value = Objects.requireNonNull(where.get(shape.comparators[i], shape.properties[i]));
+            switch (shape.comparators[i]) {
+                case "=":
+                    if (coerceUuid[i] && value instanceof String) {
+                        value = UUID.fromString((String) value);
+                    }
+                    break;
+                case " LIKE ":
+                    value = value.toString();
+                    break;
+                case " IN ":
+                    Collection<?> values = (Collection<?>) value;
+                    if (coerceUuid[i]) {
+                        List<Object> uuids = new ArrayList<>(values.size());
+                        for (Object v : values) {
+                            uuids.add(v instanceof String ? UUID.fromString((String) v) : v);
+                        }
+                        values = uuids;
+                    }
+                    query.setParameterList("p" + i, values);
+                    continue;
+                default:
+                    // range comparators only accept numbers
+                    value = (Number) value;
+            }
+            query.setParameter("p" + i, value);
+        }
+        if (setValues != null) {
+            for (int i = 0; i < setValues.length; i++) {
+                query.setParameter("s" + i, setValues[i]);
+            }
+        }
+        return query;
+    }
+
+    /**
+     * @return the where-clause values in the order {@link #bind} binds them
+     */
+    Object[] values(Table<String, String, Object> where) {
+        Object[] values = new Object[shape.properties.length];
+        for (int i = 0; i < values.length; i++) {
+            values[i] = where.get(shape.comparators[i], shape.properties[i]);
+        }
+        return values;
+    }
+
+    /**
+     * @return how many bind parameters one statement of the dialect may hold, as far as known
+     */
+    static int parameterLimit(Dialect dialect) {
+        if (dialect.getClass().getSimpleName().startsWith("SQLite")) return 999;
+        if (dialect instanceof SQLServerDialect) return 2100;
+        if (dialect instanceof PostgreSQL81Dialect) return 32767;
+        if (dialect instanceof MySQLDialect) return 65535;
+        // Oracle limits the elements of a single in list rather than the whole statement
+        int inLimit = dialect.getInExpressionCountLimit();
+        return inLimit > 0 ? inLimit : 1000;
+    }
+
+    /**
+     * Binds the sort key of the last row of the previous page to a keyset query.
+     */
+    <Q extends Query<?>> Q bindAfter(Q query, Object[] after) {
+        for (int i = 0; i < after.length; i++) {
+            query.setParameter("k" + i, Objects.requireNonNull(after[i], "Sort key values cannot be null"));
+        }
+        return query;
+    }
+
+    /**
+     * Cache key of a plan: the entity, the operation, the sorted (property, comparator) pairs
+     * of the where clause, the assigned properties of updates or the selected properties of projections,
+     * and the ordering.
+     */
+    static final class Shape {
+        private final Class<?> entity;
+        private final Operation operation;
+        private final String[] properties;
+        private final String[] comparators;
+        private final String[] setProperties;
+        private final String[] orderBy;
+        private final boolean[] descending;
+        private final boolean keyset;
+        private final int hash;
+
+        private Shape(Class<?> entity, Operation operation, String[] properties, String[] comparators, String[] setProperties,
+                      String[] orderBy, boolean[] descending, boolean keyset) {
+            this.entity = entity;
+            this.operation = operation;
+            this.properties = properties;
+            this.comparators = comparators;
+            this.setProperties = setProperties;
+            this.orderBy = orderBy;
+            this.descending = descending;
+            this.keyset = keyset;
+            int h = entity.hashCode();
+            h = 31 * h + operation.hashCode();
+            h = 31 * h + Arrays.hashCode(properties);
+            h = 31 * h + Arrays.hashCode(comparators);
+            h = 31 * h + Arrays.hashCode(setProperties);
+            h = 31 * h + Arrays.hashCode(orderBy);
+            h = 31 * h + Arrays.hashCode(descending);
+            h = 31 * h + Boolean.hashCode(keyset);
+            this.hash = h;
+        }
+
+        static Shape of(Class<?> entity, Operation operation, Table<String, String, Object> where, String[] setProperties) {
+            return of(entity, operation, where, setProperties, null, null, false);
+        }
+
+        /**
+         * @param orderBy  properties to sort by, or null
+         * @param keyset   whether rows must sort after a given key of the {@code orderBy} properties
+         */
+        static Shape of(Class<?> entity, Operation operation, Table<String, String, Object> where, String[] setProperties,
+                        String[] orderBy, boolean[] descending, boolean keyset) {
+            List<Table.Cell<String, String, Object>> cells = new ArrayList<>(where.cellSet());
+            if (cells.size() > 1) {
+                cells.sort((a, b) -> {
+                    int c = a.getColumnKey().compareTo(b.getColumnKey());
+                    return c != 0 ? c : a.getRowKey().compareTo(b.getRowKey());
+                });
+            }
+            String[] properties = new String[cells.size()];
+            String[] comparators = new String[cells.size()];
+            for (int i = 0; i < cells.size(); i++) {
+                properties[i] = cells.get(i).getColumnKey();
+                comparators[i] = cells.get(i).getRowKey();
+            }
+            return new Shape(entity, operation, properties, comparators, setProperties == null ? new String[0] : setProperties,
+                    orderBy == null ? new String[0] : orderBy, descending == null ? new boolean[0] : descending, keyset);
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (this == o) return true;
+            if (!(o instanceof Shape)) return false;
+            Shape shape = (Shape) o;
+            return hash == shape.hash
+                    && entity == shape.entity
+                    && operation == shape.operation
+                    && Arrays.equals(properties, shape.properties)
+                    && Arrays.equals(comparators, shape.comparators)
+                    && Arrays.equals(setProperties, shape.setProperties)
+                    && Arrays.equals(orderBy, shape.orderBy)
+                    && Arrays.equals(descending, shape.descending)
+                    && keyset == shape.keyset;
+        }
+
+        @Override
+        public int hashCode() {
+            return hash;
+        }
+    }
+}
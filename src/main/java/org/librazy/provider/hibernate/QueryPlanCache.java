@@ -0,0 +1,58 @@
+package org.librazy.provider.hibernate;
+
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Function;
+
+/**
+ * Bounded LRU cache of compiled {@link QueryPlan}s.
+ * <p>
+ * Lookups take no lock shared by every query, and plans are compiled outside of any lock; two threads missing the
+ * same shape at once may both compile it, and the first plan stored is kept.
+ */
+public final class QueryPlanCache {
+    private final int maxSize;
+    private final Cache<QueryPlan.Shape, QueryPlan> plans;
+    private final AtomicLong hits = new AtomicLong();
+    private final AtomicLong misses = new AtomicLong();
+
+    QueryPlanCache(int maxSize) {
+        this.maxSize = maxSize;
+        // a single segment keeps the bound exact; only misses write to it
+        this.plans = CacheBuilder.newBuilder().maximumSize(maxSize).concurrencyLevel(1).build();
+    }
+
+    QueryPlan get(QueryPlan.Shape shape, Function<QueryPlan.Shape, QueryPlan> compiler) {
+        QueryPlan plan = plans.getIfPresent(shape);
+        if (plan != null) {
+            hits.incrementAndGet();
+            return plan;
+        }
+        misses.incrementAndGet();
+        plan = compiler.apply(shape);
+        QueryPlan stored = plans.asMap().putIfAbsent(shape, plan);
+        return stored != null ? stored : plan;
+    }
+
+    void clear() {
+        plans.invalidateAll();
+    }
+
+    public long getHitCount() {
+        return hits.get();
+    }
+
+    public long getMissCount() {
+        return misses.get();
+    }
+
+    public int size() {
+        return (int) plans.size();
+    }
+
+    public int getMaxSize() {
+        return maxSize;
+    }
+}
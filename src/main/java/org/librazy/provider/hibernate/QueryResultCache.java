@@ -0,0 +1,207 @@
+package org.librazy.provider.hibernate;
+
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Objects;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Bounded LRU cache of the results of selects and counts, keyed by statement and bound values.
+ * <p>
+ * Every table has a version, bumped whenever a query of the owning {@link HibernateDatabase} writes to it and
+ * again when the writing transaction completes. An entry remembers the versions of its tables from before its
+ * statement ran and is served only while none of them changed, so results never outlive a write made through
+ * the database. Writes made around it, by other servers or through the raw session, are only caught by the
+ * time to live, 10 seconds unless set with the 'resultCacheTtl' config entry. A time to live of 0 keeps entries
+ * until a write through the database, which is only safe when nothing else writes to its tables.
+ */
+public final class QueryResultCache {
+    private final int maxSize;
+    private final long ttlNanos;
+    private final Map<Key, Entry> entries;
+    private final Map<String, AtomicLong> versions = new ConcurrentHashMap<>();
+    private final AtomicLong hits = new AtomicLong();
+    private final AtomicLong misses = new AtomicLong();
+    private final AtomicLong invalidated = new AtomicLong();
+    private final AtomicLong evictions = new AtomicLong();
+
+    QueryResultCache(int maxSize, long ttlMillis) {
+        this.maxSize = maxSize;
+        this.ttlNanos = ttlMillis > 0 ? TimeUnit.MILLISECONDS.toNanos(ttlMillis) : 0;
+        this.entries = new LinkedHashMap<Key, Entry>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<Key, Entry> eldest) {
+                if (size() > QueryResultCache.this.maxSize) {
+                    evictions.incrementAndGet();
+                    return true;
+                }
+                return false;
+            }
+        };
+    }
+
+    /**
+     * @return the cached result, or null if there is none or its tables were written since
+     */
+    Object get(Key key) {
+        synchronized (entries) {
+            Entry entry = entries.get(key);
+            if (entry != null) {
+                if (ttlNanos > 0 && System.nanoTime() - entry.written > ttlNanos) {
+                    entries.remove(key);
+                } else if (!Arrays.equals(entry.versions, versions(entry.spaces))) {
+                    entries.remove(key);
+                    invalidated.incrementAndGet();
+                } else {
+                    hits.incrementAndGet();
+                    return entry.value;
+                }
+            }
+        }
+        misses.incrementAndGet();
+        return null;
+    }
+
+    /**
+     * @return the current versions of the tables, to be taken before running the statement whose result is put
+     */
+    long[] versions(String[] spaces) {
+        long[] current = new long[spaces.length];
+        for (int i = 0; i < spaces.length; i++) {
+            current[i] = version(spaces[i]).get();
+        }
+        return current;
+    }
+
+    /**
+     * @param versions the versions of the tables from before the statement ran
+     */
+    void put(Key key, String[] spaces, long[] versions, Object value) {
+        if (!Arrays.equals(versions, versions(spaces))) return;
+        synchronized (entries) {
+            entries.put(key, new Entry(spaces, versions, value));
+        }
+    }
+
+    /**
+     * Makes every cached result read from the tables stale.
+     */
+    void invalidate(String[] spaces) {
+        for (String space : spaces) {
+            version(space).incrementAndGet();
+        }
+    }
+
+    private AtomicLong version(String space) {
+        AtomicLong version = versions.get(space);
+        return version != null ? version : versions.computeIfAbsent(space, s -> new AtomicLong());
+    }
+
+    /**
+     * Drops every cached result, e.g. after writing to the database behind the provider's back.
+     */
+    public void clear() {
+        synchronized (entries) {
+            entries.clear();
+        }
+    }
+
+    public long getHitCount() {
+        return hits.get();
+    }
+
+    public long getMissCount() {
+        return misses.get();
+    }
+
+    /**
+     * @return hits per lookup, 0 before the first lookup
+     */
+    public double getHitRatio() {
+        long h = hits.get();
+        long total = h + misses.get();
+        return total == 0 ? 0 : (double) h / total;
+    }
+
+    /**
+     * @return entries found stale because one of their tables was written
+     */
+    public long getInvalidationCount() {
+        return invalidated.get();
+    }
+
+    /**
+     * @return entries dropped to stay within the maximum size
+     */
+    public long getEvictionCount() {
+        return evictions.get();
+    }
+
+    public int size() {
+        synchronized (entries) {
+            return entries.size();
+        }
+    }
+
+    public int getMaxSize() {
+        return maxSize;
+    }
+
+    /**
+     * @return milliseconds an entry is served after it was put, 0 for no limit
+     */
+    public long getTtlMillis() {
+        return TimeUnit.NANOSECONDS.toMillis(ttlNanos);
+    }
+
+    /**
+     * A statement together with everything bound to it.
+     */
+    static final class Key {
+        private final String statement;
+        private final Object[] values;
+        private final Object[] after;
+        private final int limit;
+        private final int offset;
+        private final int hash;
+
+        Key(String statement, Object[] values, Object[] after, int limit, int offset) {
+            this.statement = statement;
+            this.values = values;
+            this.after = after;
+            this.limit = limit;
+            this.offset = offset;
+            this.hash = Objects.hash(statement, Arrays.deepHashCode(values), Arrays.deepHashCode(after), limit, offset);
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (this == o) return true;
+            if (!(o instanceof Key)) return false;
+            Key key = (Key) o;
+            return hash == key.hash && limit == key.limit && offset == key.offset && statement.equals(key.statement)
+                    && Arrays.deepEquals(values, key.values) && Arrays.deepEquals(after, key.after);
+        }
+
+        @Override
+        public int hashCode() {
+            return hash;
+        }
+    }
+
+    private static final class Entry {
+        private final String[] spaces;
+        private final long[] versions;
+        private final Object value;
+        private final long written = System.nanoTime();
+
+        private Entry(String[] spaces, long[] versions, Object value) {
+            this.spaces = spaces;
+            this.versions = versions;
+            this.value = value;
+        }
+    }
+}
@@ -0,0 +1,167 @@
+package org.librazy.provider.hibernate;
+
+import com.google.common.collect.MapMaker;
+
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.logging.Logger;
+
+/**
+ * Read replicas that reads outside of a transaction are spread over, taking turns.
+ * <p>
+ * Replicas share the primary's credentials and pool settings, except for the connection timeout which can be
+ * set apart to fail over quickly. A replica whose pool fails to hand out a connection is skipped until the retry
+ * interval has passed; while no replica is healthy, reads go to the primary. Once a thread's write has completed,
+ * its reads go to the primary for the stickiness period, so it reads its own writes despite replication lag.
+ */
+final class ReplicaRouter {
+    private final List<Replica> replicas;
+    private final long retryInterval;
+    private final long stickiness;
+    private final Map<Thread, Long> lastWrite = new MapMaker().weakKeys().makeMap();
+    private final AtomicInteger next = new AtomicInteger();
+    private final Logger log;
+
+    private ReplicaRouter(List<Replica> replicas, Properties properties, Logger log) {
+        this.replicas = replicas;
+        this.retryInterval = TimeUnit.MILLISECONDS.toNanos(Settings.getInt(properties, Settings.REPLICA_RETRY_INTERVAL, 30000));
+        this.stickiness = TimeUnit.MILLISECONDS.toNanos(Settings.getInt(properties, Settings.REPLICA_STICKINESS, 0));
+        this.log = log;
+    }
+
+    /**
+     * @return the router over the replicas listed in the properties, or null if there are none
+     */
+    static ReplicaRouter create(Properties properties, Logger log) {
+        List<Replica> replicas = new ArrayList<>();
+        for (int i = 0; properties.containsKey(Settings.REPLICA + i + ".url"); i++) {
+            Properties replica = new Properties();
+            replica.putAll(properties);
+            replica.put("hibernate.connection.url", properties.get(Settings.REPLICA + i + ".url"));
+            Object timeout = properties.get(Settings.REPLICA_CONNECTION_TIMEOUT);
+            if (timeout != null) {
+                replica.put(Settings.POOL_CONNECTION_TIMEOUT, timeout);
+            }
+            replicas.add(new Replica(replica));
+        }
+        return replicas.isEmpty() ? null : new ReplicaRouter(replicas, properties, log);
+    }
+
+    /**
+     * @return a connection to the next healthy replica, to be closed by the caller; null if the read should go to
+     * the primary
+     */
+    Connection getConnection() {
+        Long written = lastWrite.get(Thread.currentThread());
+        if (written != null) {
+            if (System.nanoTime() - written < stickiness) return null;
+            lastWrite.remove(Thread.currentThread());
+        }
+        int start = Math.floorMod(next.getAndIncrement(), replicas.size());
+        for (int i = 0; i < replicas.size(); i++) {
+            Connection connection = connect(replicas.get((start + i) % replicas.size()));
+            if (connection != null) return connection;
+        }
+        return null;
+    }
+
+    private Connection connect(Replica replica) {
+        long now = System.nanoTime();
+        if (replica.down && now - replica.retryAt < 0) return null;
+        try {
+            Connection connection = replica.pool().getConnectionProvider().getConnection();
+            if (replica.down) {
+                replica.down = false;
+                log.info("Replica " + replica.url() + " is reachable again");
+            }
+            return connection;
+        } catch (SQLException | RuntimeException e) {
+            replica.retryAt = now + retryInterval;
+            if (!replica.down) {
+                replica.down = true;
+                log.warning("Replica " + replica.url() + " is unreachable, retrying in "
+                        + TimeUnit.NANOSECONDS.toMillis(retryInterval) + " ms: " + e.getMessage());
+            }
+            return null;
+        }
+    }
+
+    /**
+     * Sends the reads of the calling thread to the primary for the stickiness period.
+     */
+    void written() {
+        written(Thread.currentThread());
+    }
+
+    /**
+     * Sends the reads of the thread to the primary for the stickiness period, e.g. once its unit of work has been
+     * committed by another thread.
+     */
+    void written(Thread writer) {
+        if (stickiness > 0) {
+            lastWrite.put(writer, System.nanoTime());
+        }
+    }
+
+    /**
+     * @return the pool metrics of every replica by url, for the replicas connected to so far
+     */
+    Map<String, PoolMetrics> getMetrics() {
+        Map<String, PoolMetrics> metrics = new LinkedHashMap<>();
+        for (Replica replica : replicas) {
+            ConnectionPools.SharedPool pool = replica.pool;
+            if (pool != null) {
+                metrics.put(replica.url(), pool.getMetrics());
+            }
+        }
+        return Collections.unmodifiableMap(metrics);
+    }
+
+    void close() {
+        replicas.forEach(Replica::close);
+    }
+
+    private static final class Replica {
+        private final Properties properties;
+        private volatile ConnectionPools.SharedPool pool;
+        private volatile boolean down;
+        private volatile long retryAt;
+        private boolean closed;
+
+        private Replica(Properties properties) {
+            this.properties = properties;
+        }
+
+        private String url() {
+            return ConnectionPool.url(properties);
+        }
+
+        /**
+         * Pools are opened on first use, so that a replica that is down at startup only fails its reads.
+         */
+        private synchronized ConnectionPools.SharedPool pool() {
+            if (closed) {
+                throw new IllegalStateException("Database is closed");
+            }
+            if (pool == null) {
+                pool = Settings.getBoolean(properties, Settings.SHARED_POOL, true) ? ConnectionPools.acquire(properties) : ConnectionPools.open(properties);
+            }
+            return pool;
+        }
+
+        private synchronized void close() {
+            closed = true;
+            if (pool != null) {
+                pool.release();
+            }
+        }
+    }
+}
@@ -0,0 +1,53 @@
+package org.librazy.provider.hibernate;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+
+/**
+ * A batch of table changes applied to a {@link HibernateDatabase} with a single SessionFactory rebuild.
+ */
+public class SchemaChanges {
+    private final HibernateDatabase database;
+    private final List<Class<?>> create = new ArrayList<>();
+    private final List<Class<?>> update = new ArrayList<>();
+    private final List<Class<?>> delete = new ArrayList<>();
+
+    SchemaChanges(HibernateDatabase database) {
+        this.database = database;
+    }
+
+    public SchemaChanges create(Class<?>... classes) {
+        create.addAll(Arrays.asList(classes));
+        return this;
+    }
+
+    public SchemaChanges update(Class<?>... classes) {
+        update.addAll(Arrays.asList(classes));
+        return this;
+    }
+
+    public SchemaChanges delete(Class<?>... classes) {
+        delete.addAll(Arrays.asList(classes));
+        return this;
+    }
+
+    /**
+     * Builds the new SessionFactory in the background; queries keep running on the current one until it is swapped in.
+     */
+    public CompletableFuture<Void> applyAsync() {
+        return database.applySchemaChanges(new ArrayList<>(create), new ArrayList<>(update), new ArrayList<>(delete));
+    }
+
+    public void apply() {
+        try {
+            applyAsync().join();
+        } catch (CompletionException e) {
+            if (e.getCause() instanceof RuntimeException) throw (RuntimeException) e.getCause();
+            if (e.getCause() instanceof Error) throw (Error) e.getCause();
+            throw e;
+        }
+    }
+}
@@ -0,0 +1,162 @@
+package org.librazy.provider.hibernate;
+
+import com.google.common.hash.Hasher;
+import com.google.common.hash.Hashing;
+import org.hibernate.boot.Metadata;
+import org.hibernate.boot.model.relational.Namespace;
+import org.hibernate.boot.model.relational.Sequence;
+import org.hibernate.dialect.Dialect;
+import org.hibernate.mapping.ForeignKey;
+import org.hibernate.mapping.Table;
+
+import java.nio.charset.StandardCharsets;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * Fingerprints of the tables and sequences of a mapping, i.e. hashes of the DDL the dialect would create them with,
+ * kept in a bookkeeping table of the database once the schema has been updated to match them. While every
+ * fingerprint is found there, the schema update, and the metadata introspection it runs, can be skipped.
+ * <p>
+ * Schema changes made outside of the provider, e.g. a dropped table, go unnoticed; turn the check off with the
+ * 'schemaFingerprint' config entry in that case.
+ */
+final class SchemaFingerprints {
+    static final String TABLE = "hibernateprovider_schema";
+
+    private SchemaFingerprints() {
+    }
+
+    /**
+     * @return the fingerprint of every physical table and sequence of the mapping, by export identifier
+     */
+    static Map<String, String> of(Metadata metadata) {
+        Dialect dialect = metadata.getDatabase().getJdbcEnvironment().getDialect();
+        Map<String, String> fingerprints = new TreeMap<>();
+        for (Table table : metadata.collectTableMappings()) {
+            if (!table.isPhysicalTable()) continue;
+            Hasher hasher = Hashing.sha256().newHasher();
+            put(hasher, dialect.getTableExporter().getSqlCreateStrings(table, metadata));
+            table.getIndexIterator().forEachRemaining(index -> put(hasher, dialect.getIndexExporter().getSqlCreateStrings(index, metadata)));
+            table.getUniqueKeyIterator().forEachRemaining(key -> put(hasher, dialect.getUniqueKeyExporter().getSqlCreateStrings(key, metadata)));
+            for (Iterator<?> keys = table.getForeignKeyIterator(); keys.hasNext(); ) {
+                ForeignKey key = (ForeignKey) keys.next();
+                if (key.isCreationEnabled() && key.isPhysicalConstraint()) {
+                    put(hasher, dialect.getForeignKeyExporter().getSqlCreateStrings(key, metadata));
+                }
+            }
+            fingerprints.put(table.getExportIdentifier(), hasher.hash().toString());
+        }
+        for (Namespace namespace : metadata.getDatabase().getNamespaces()) {
+            for (Sequence sequence : namespace.getSequences()) {
+                Hasher hasher = Hashing.sha256().newHasher();
+                put(hasher, dialect.getSequenceExporter().getSqlCreateStrings(sequence, metadata));
+                fingerprints.put(sequence.getExportIdentifier(), hasher.hash().toString());
+            }
+        }
+        return fingerprints;
+    }
+
+    private static void put(Hasher hasher, String[] statements) {
+        for (String statement : statements) {
+            hasher.putString(statement, StandardCharsets.UTF_8).putChar('\n');
+        }
+    }
+
+    /**
+     * @return whether every fingerprint is stored in the database; false if the bookkeeping table does not exist yet
+     */
+    static boolean stored(Connection connection, Map<String, String> fingerprints) {
+        Map<String, String> stored = new HashMap<>();
+        try (Statement statement = connection.createStatement();
+             ResultSet rows = statement.executeQuery("SELECT object_name, fingerprint FROM " + TABLE)) {
+            while (rows.next()) {
+                stored.put(rows.getString(1), rows.getString(2));
+            }
+        } catch (SQLException e) {
+            try {
+                // some databases, e.g. PostgreSQL, abort the transaction the failed select ran in
+                if (!connection.getAutoCommit()) connection.rollback();
+            } catch (SQLException ignored) {
+            }
+            return false;
+        }
+        return stored.entrySet().containsAll(fingerprints.entrySet());
+    }
+
+    /**
+     * Stores the fingerprints, replacing those of the same objects, creating the bookkeeping table if needed.
+     */
+    static void store(Connection connection, Map<String, String> fingerprints) throws SQLException {
+        createTable(connection);
+        inTransaction(connection, () -> {
+            try (PreparedStatement delete = connection.prepareStatement("DELETE FROM " + TABLE + " WHERE object_name = ?");
+                 PreparedStatement insert = connection.prepareStatement("INSERT INTO " + TABLE + " (object_name, fingerprint) VALUES (?, ?)")) {
+                for (Map.Entry<String, String> fingerprint : fingerprints.entrySet()) {
+                    delete.setString(1, fingerprint.getKey());
+                    delete.executeUpdate();
+                    insert.setString(1, fingerprint.getKey());
+                    insert.setString(2, fingerprint.getValue());
+                    insert.executeUpdate();
+                }
+            }
+        });
+    }
+
+    /**
+     * Removes the fingerprints of dropped objects, so that they are created again by the next schema update.
+     */
+    static void remove(Connection connection, Collection<String> objects) throws SQLException {
+        createTable(connection);
+        inTransaction(connection, () -> {
+            try (PreparedStatement delete = connection.prepareStatement("DELETE FROM " + TABLE + " WHERE object_name = ?")) {
+                for (String object : objects) {
+                    delete.setString(1, object);
+                    delete.executeUpdate();
+                }
+            }
+        });
+    }
+
+    private static void createTable(Connection connection) throws SQLException {
+        try (Statement statement = connection.createStatement()) {
+            statement.executeQuery("SELECT object_name FROM " + TABLE + " WHERE 1 = 0").close();
+            return;
+        } catch (SQLException ignored) {
+            // not created yet
+        }
+        boolean autoCommit = connection.getAutoCommit();
+        try (Statement statement = connection.createStatement()) {
+            if (!autoCommit) connection.rollback();
+            statement.executeUpdate("CREATE TABLE " + TABLE + " (object_name VARCHAR(255) NOT NULL PRIMARY KEY, fingerprint VARCHAR(64) NOT NULL)");
+            if (!autoCommit) connection.commit();
+        }
+    }
+
+    private static void inTransaction(Connection connection, Work work) throws SQLException {
+        boolean autoCommit = connection.getAutoCommit();
+        connection.setAutoCommit(false);
+        try {
+            work.execute();
+            connection.commit();
+        } catch (SQLException | RuntimeException e) {
+            connection.rollback();
+            throw e;
+        } finally {
+            connection.setAutoCommit(autoCommit);
+        }
+    }
+
+    @FunctionalInterface
+    private interface Work {
+        void execute() throws SQLException;
+    }
+}
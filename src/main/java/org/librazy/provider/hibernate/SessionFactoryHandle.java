@@ -0,0 +1,72 @@
+package org.librazy.provider.hibernate;
+
+import org.hibernate.SessionFactory;
+import org.hibernate.engine.spi.SessionFactoryImplementor;
+
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Consumer;
+
+/**
+ * Reference-counted SessionFactory together with the metadata derived from it.
+ * <p>
+ * The owning database holds one reference while the handle is current; every open session holds another.
+ * When a new factory is swapped in, the old handle is retired and its factory closed as soon as the last
+ * session opened from it is released, so no caller ever uses a closed factory.
+ */
+final class SessionFactoryHandle {
+    private final SessionFactory sessionFactory;
+    private final EntityDescriptors descriptors;
+    private final int parameterLimit;
+    private final Consumer<SessionFactoryHandle> onClose;
+    private final AtomicInteger references = new AtomicInteger(1);
+
+    SessionFactoryHandle(SessionFactory sessionFactory, Consumer<SessionFactoryHandle> onClose) {
+        this.sessionFactory = sessionFactory;
+        this.descriptors = new EntityDescriptors(sessionFactory);
+        this.parameterLimit = QueryPlan.parameterLimit(sessionFactory.unwrap(SessionFactoryImplementor.class).getJdbcServices().getDialect());
+        this.onClose = onClose;
+    }
+
+    SessionFactory getSessionFactory() {
+        return sessionFactory;
+    }
+
+    EntityDescriptors getDescriptors() {
+        return descriptors;
+    }
+
+    /**
+     * @return bind parameters one statement may hold with the factory's dialect
+     */
+    int getParameterLimit() {
+        return parameterLimit;
+    }
+
+    /**
+     * @return false if the handle has already been retired and released by everyone
+     */
+    boolean acquire() {
+        for (; ; ) {
+            int count = references.get();
+            if (count <= 0) return false;
+            if (references.compareAndSet(count, count + 1)) return true;
+        }
+    }
+
+    void release() {
+        if (references.decrementAndGet() == 0) {
+            try {
+                sessionFactory.close();
+            } finally {
+                onClose.accept(this);
+            }
+        }
+    }
+
+    /**
+     * Drops the reference held by the database.
+     */
+    void retire() {
+        release();
+    }
+}
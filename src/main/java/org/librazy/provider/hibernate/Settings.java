@@ -0,0 +1,90 @@
+package org.librazy.provider.hibernate;
+
+import java.util.Map;
+import java.util.Properties;
+
+/**
+ * Provider-specific settings, passed to {@link HibernateDatabase} alongside the Hibernate properties.
+ */
+final class Settings {
+    static final String PLAN_CACHE_SIZE = "hibernateprovider.plan_cache_size";
+    static final String SCHEMA_FINGERPRINT = "hibernateprovider.schema.fingerprint";
+    static final String PARALLEL_STARTUP = "hibernateprovider.startup.parallel";
+    static final String BATCH_SIZE = "hibernate.jdbc.batch_size";
+    static final String FETCH_SIZE = "hibernateprovider.fetch_size";
+    static final String IN_CHUNK_SIZE = "hibernateprovider.in_chunk_size";
+    static final String MULTI_GET_BATCH_SIZE = "hibernateprovider.multi_get_batch_size";
+    static final String ASYNC_THREADS = "hibernateprovider.async.threads";
+    static final String ASYNC_QUEUE_SIZE = "hibernateprovider.async.queue_size";
+    static final String ASYNC_SHUTDOWN_TIMEOUT = "hibernateprovider.async.shutdown_timeout";
+    static final String SHARED_POOL = "hibernateprovider.shared_pool";
+    static final String POOL_BACKEND = "hibernateprovider.pool.backend";
+    static final String POOL_MIN_SIZE = "hibernateprovider.pool.min_size";
+    static final String POOL_MAX_SIZE = "hibernateprovider.pool.max_size";
+    static final String POOL_CONNECTION_TIMEOUT = "hibernateprovider.pool.connection_timeout";
+    static final String POOL_IDLE_TIMEOUT = "hibernateprovider.pool.idle_timeout";
+    static final String POOL_MAX_LIFETIME = "hibernateprovider.pool.max_lifetime";
+    static final String POOL_VALIDATION_INTERVAL = "hibernateprovider.pool.validation_interval";
+    static final String POOL_STATEMENT_CACHE_SIZE = "hibernateprovider.pool.statement_cache_size";
+    static final String POOL_LEAK_DETECTION_THRESHOLD = "hibernateprovider.pool.leak_detection_threshold";
+    static final String WRITE_BEHIND = "hibernateprovider.write_behind";
+    static final String WRITE_BEHIND_INTERVAL = "hibernateprovider.write_behind.interval";
+    static final String WRITE_BEHIND_MAX_PENDING = "hibernateprovider.write_behind.max_pending";
+    static final String UNIT_OF_WORK = "hibernateprovider.unit_of_work";
+    static final String UNIT_OF_WORK_WINDOW = "hibernateprovider.unit_of_work.window";
+    static final String DIRTY_TRACKING = "hibernateprovider.dirty_tracking";
+    static final String SECOND_LEVEL_CACHE = "hibernateprovider.cache";
+    static final String CACHE_MAX_SIZE = "hibernateprovider.cache.max_size";
+    static final String CACHE_TTL = "hibernateprovider.cache.ttl";
+    /**
+     * Prefix of the per-region settings, followed by the region name and {@code .max_size} or {@code .ttl}
+     */
+    static final String CACHE_REGION = "hibernateprovider.cache.region.";
+    static final String CACHE_STRATEGY = "hibernate.cache.default_cache_concurrency_strategy";
+    static final String CACHE_MODE = "javax.persistence.sharedCache.mode";
+    static final String RESULT_CACHE = "hibernateprovider.result_cache";
+    static final String RESULT_CACHE_MAX_SIZE = "hibernateprovider.result_cache.max_size";
+    static final String RESULT_CACHE_TTL = "hibernateprovider.result_cache.ttl";
+    /**
+     * Prefix of the read replica urls, followed by the index of the replica and {@code .url}
+     */
+    static final String REPLICA = "hibernateprovider.replica.";
+    static final String REPLICA_CONNECTION_TIMEOUT = "hibernateprovider.replicas.connection_timeout";
+    static final String REPLICA_RETRY_INTERVAL = "hibernateprovider.replicas.retry_interval";
+    static final String REPLICA_STICKINESS = "hibernateprovider.replicas.stickiness";
+    /**
+     * Prefix of the shard key settings of a sharded database, followed by the entity's class or simple class name
+     */
+    static final String SHARD_KEY = "hibernateprovider.shard.key.";
+    static final String SHARD_FUNCTION = "hibernateprovider.shard.function";
+    static final String METRICS = "hibernateprovider.metrics";
+    static final String SLOW_QUERY_THRESHOLD = "hibernateprovider.metrics.slow_query_threshold";
+
+    private Settings() {
+    }
+
+    /**
+     * Copies {@code key} from the plugin configuration map into {@code props} as {@code setting}, if present.
+     */
+    static void copy(Map<String, Object> map, String key, Properties props, String setting) {
+        Object value = map.get(key);
+        if (value != null) {
+            props.put(setting, value.toString());
+        }
+    }
+
+    static boolean getBoolean(Properties props, String setting, boolean def) {
+        Object value = props.get(setting);
+        return value == null ? def : Boolean.parseBoolean(value.toString());
+    }
+
+    static String getString(Properties props, String setting, String def) {
+        Object value = props.get(setting);
+        return value == null ? def : value.toString();
+    }
+
+    static int getInt(Properties props, String setting, int def) {
+        Object value = props.get(setting);
+        return value == null ? def : Integer.parseInt(value.toString());
+    }
+}
@@ -0,0 +1,49 @@
+package org.librazy.provider.hibernate;
+
+import com.google.common.hash.Hashing;
+
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Maps the shard key of an entity to the index of the shard holding it. The result must only depend on the key
+ * and the number of shards, so that rows are found again after a restart.
+ */
+@FunctionalInterface
+public interface ShardFunction {
+    /**
+     * Integral keys modulo the number of shards, other keys by their hash code; keeps ranges of numeric keys evenly spread.
+     */
+    ShardFunction MODULO = (key, shards) -> key instanceof Number && !(key instanceof Float || key instanceof Double)
+            ? (int) Math.floorMod(((Number) key).longValue(), (long) shards)
+            : Math.floorMod(key.hashCode(), shards);
+
+    /**
+     * Jump consistent hashing of the murmur3 hash of the key's string form; adding a shard only moves the keys
+     * that land on the new shard.
+     */
+    ShardFunction CONSISTENT = (key, shards) -> Hashing.consistentHash(Hashing.murmur3_128().hashString(key.toString(), StandardCharsets.UTF_8), shards);
+
+    /**
+     * @param key the non-null value of the shard key property
+     * @return the index of the shard, from 0 to {@code shards - 1}
+     */
+    int shard(Object key, int shards);
+
+    /**
+     * @param name {@code modulo}, {@code consistent} or the name of a class implementing this interface with a public no-argument constructor
+     */
+    static ShardFunction of(String name) {
+        switch (name.toLowerCase()) {
+            case "modulo":
+                return MODULO;
+            case "consistent":
+                return CONSISTENT;
+            default:
+                try {
+                    return Class.forName(name).asSubclass(ShardFunction.class).getConstructor().newInstance();
+                } catch (ReflectiveOperationException | ClassCastException e) {
+                    throw new IllegalArgumentException("Unknown shard function: " + name, e);
+                }
+        }
+    }
+}
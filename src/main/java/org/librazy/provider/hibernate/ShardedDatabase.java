@@ -0,0 +1,595 @@
+package org.librazy.provider.hibernate;
+
+import cat.nyaa.nyaacore.database.Database;
+import cat.nyaa.nyaacore.database.RelationalDB;
+import cat.nyaa.nyaacore.database.TransactionalQuery;
+import org.apache.commons.lang.Validate;
+import org.hibernate.NonUniqueResultException;
+import org.hibernate.id.Assigned;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+import java.util.TreeMap;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Function;
+import java.util.logging.Logger;
+import java.util.stream.Stream;
+
+/**
+ * Entities spread over several databases, each a {@link HibernateDatabase} with its own SessionFactory and pool.
+ * <p>
+ * Every entity is stored on the shard picked by the {@link ShardFunction} from the value of its shard key property,
+ * the identifier unless configured otherwise. Queries whose where clause pins the shard key, with whereEq or whereIn,
+ * only run on the shards holding those keys; all others run on every shard in parallel and their results are merged,
+ * sorted again if ordered, and paged as a whole. Inserts are grouped and batched per shard.
+ * <p>
+ * Outside a transaction every shard runs its part in a transaction of its own, reads like {@link HibernateDatabase#readOnly(Class)}.
+ * A transaction spans every shard and runs them one after the other on the calling thread. Shards are committed
+ * in order without two-phase commit: if one fails to commit, the following ones are rolled back, but those before
+ * it stay committed.
+ */
+public class ShardedDatabase implements RelationalDB {
+    private final List<HibernateDatabase> shards;
+    private final Properties properties;
+    private final ShardFunction function;
+    private final Map<Class<?>, String> shardKeys = new ConcurrentHashMap<>();
+    private final ExecutorService executor;
+    private final ThreadLocal<Boolean> transactions = new ThreadLocal<>();
+    private Logger log = Logger.getLogger("HibernateProvider");
+
+    ShardedDatabase(List<HibernateDatabase> shards, Properties properties, Logger logger) {
+        Validate.notEmpty(shards, "At least one shard is required");
+        if (logger != null) log = logger;
+        this.shards = Collections.unmodifiableList(new ArrayList<>(shards));
+        this.properties = properties;
+        this.function = ShardFunction.of(Settings.getString(properties, Settings.SHARD_FUNCTION, "consistent"));
+        this.shards.get(0).getClasses().forEach(this::shardKey);
+        AtomicInteger count = new AtomicInteger();
+        this.executor = Executors.newFixedThreadPool(shards.size(), r -> {
+            Thread thread = new Thread(r, "HibernateProvider-shard-" + count.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        });
+    }
+
+    public List<HibernateDatabase> getShards() {
+        return shards;
+    }
+
+    /**
+     * @return the index in {@link #getShards()} of the shard holding the entities with the given shard key
+     */
+    public int shardOf(Object key) {
+        Validate.notNull(key, "Shard key can not be null");
+        int shard = function.shard(key, shards.size());
+        if (shard < 0 || shard >= shards.size()) {
+            throw new IllegalStateException("Shard function returned " + shard + " for " + shards.size() + " shards");
+        }
+        return shard;
+    }
+
+    /**
+     * @return the property entities of the class are sharded by, from the 'shardKeys' config entry or else the identifier
+     * @throws IllegalArgumentException if that is a generated identifier, which is not known before the insert
+     */
+    String shardKey(Class<?> cls) {
+        return shardKeys.computeIfAbsent(cls, c -> {
+            EntityDescriptor<?> descriptor = shards.get(0).descriptor(c);
+            String configured = Settings.getString(properties, Settings.SHARD_KEY + c.getName(),
+                    Settings.getString(properties, Settings.SHARD_KEY + c.getSimpleName(), null));
+            String property = configured == null ? descriptor.getIdProperty() : descriptor.property(configured);
+            Validate.notNull(property, "No suitable column or property found for shard key '" + configured + "'");
+            Validate.isTrue(!property.equals(descriptor.getIdProperty()) || descriptor.getPersister().getIdentifierGenerator() instanceof Assigned,
+                    "The identifier of " + c.getName() + " is generated; configure an assigned shard key with the 'shardKeys' config entry");
+            return property;
+        });
+    }
+
+    @Override
+    public <T> ShardedQuery<T> query(Class<T> cls) {
+        return new ShardedQuery<>(cls, transactions.get() != null, false, false);
+    }
+
+    @Override
+    public <T> ShardedQuery<T> transaction(Class<T> cls) {
+        return transaction(cls, false);
+    }
+
+    @Override
+    public <T> ShardedQuery<T> transaction(Class<T> cls, boolean manualCommit) {
+        beginTransaction();
+        return new ShardedQuery<>(cls, true, true, manualCommit);
+    }
+
+    /**
+     * Every operation of the returned query runs on its own, or in the transaction of the calling thread if there is one.
+     */
+    @Override
+    public <T> ShardedQuery<T> auto(Class<T> cls) {
+        return query(cls);
+    }
+
+    @Override
+    public void createTable(Class<?> cls) {
+        shards.forEach(shard -> shard.createTable(cls));
+    }
+
+    @Override
+    public void updateTable(Class<?> cls) {
+        shards.forEach(shard -> shard.updateTable(cls));
+    }
+
+    @Override
+    public void deleteTable(Class<?> cls) {
+        shards.forEach(shard -> shard.deleteTable(cls));
+        shardKeys.remove(cls);
+    }
+
+    @Override
+    public void beginTransaction() {
+        if (transactions.get() != null) {
+            throw new IllegalStateException("Another transaction is in progress");
+        }
+        int begun = 0;
+        try {
+            for (HibernateDatabase shard : shards) {
+                shard.beginTransaction();
+                begun++;
+            }
+        } catch (RuntimeException e) {
+            for (int i = 0; i < begun; i++) {
+                try {
+                    shards.get(i).rollbackTransaction();
+                } catch (RuntimeException suppressed) {
+                    e.addSuppressed(suppressed);
+                }
+            }
+            throw e;
+        }
+        transactions.set(Boolean.TRUE);
+    }
+
+    /**
+     * Commits the shards one after the other; once one fails, the remaining ones are rolled back and the failure rethrown.
+     */
+    @Override
+    public void commitTransaction() {
+        finishTransaction(true);
+    }
+
+    @Override
+    public void rollbackTransaction() {
+        finishTransaction(false);
+    }
+
+    private void finishTransaction(boolean commit) {
+        if (transactions.get() == null) {
+            throw new IllegalStateException("No transaction found in this database or is not active");
+        }
+        transactions.remove();
+        RuntimeException failure = null;
+        for (HibernateDatabase shard : shards) {
+            try {
+                if (commit && failure == null) {
+                    shard.commitTransaction();
+                } else {
+                    shard.rollbackTransaction();
+                }
+            } catch (RuntimeException e) {
+                if (failure == null) {
+                    failure = e;
+                } else {
+                    failure.addSuppressed(e);
+                }
+            }
+        }
+        if (failure != null) throw failure;
+    }
+
+    @Override
+    @SuppressWarnings("unchecked")
+    public <T extends Database> T connect() {
+        shards.forEach(HibernateDatabase::connect);
+        return (T) this;
+    }
+
+    @Override
+    public void close() {
+        if (transactions.get() != null) {
+            try {
+                commitTransaction();
+            } catch (RuntimeException e) {
+                log.warning("Failed to commit the open transaction on close: " + e.getMessage());
+            }
+        }
+        executor.shutdown();
+        try {
+            executor.awaitTermination(1, TimeUnit.MINUTES);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        shards.forEach(HibernateDatabase::close);
+    }
+
+    private static final class Condition {
+        private final String column;
+        private final String comparator;
+        private final Object value;
+        private final boolean onShardKey;
+
+        private Condition(String column, String comparator, Object value, boolean onShardKey) {
+            this.column = column;
+            this.comparator = comparator;
+            this.value = value;
+            this.onShardKey = onShardKey;
+        }
+    }
+
+    public class ShardedQuery<T> implements TransactionalQuery<T> {
+        private final Class<T> cls;
+        private final EntityDescriptor<T> descriptor;
+        private final String shardKey;
+        private final List<Condition> where = new ArrayList<>();
+        private final List<String> orderBy = new ArrayList<>(2);
+        private final List<Boolean> descending = new ArrayList<>(2);
+        private int limit;
+        private int offset;
+        /**
+         * Whether operations run in the transaction of the calling thread instead of one of their own per shard
+         */
+        private final boolean bound;
+        /**
+         * Whether the query opened that transaction, and closing it commits or rolls back
+         */
+        private final boolean owner;
+        private final boolean manualCommit;
+        private boolean failed;
+
+        ShardedQuery(Class<T> cls, boolean bound, boolean owner, boolean manualCommit) {
+            this.cls = cls;
+            this.descriptor = shards.get(0).descriptor(cls);
+            this.shardKey = shardKey(cls);
+            this.bound = bound;
+            this.owner = owner;
+            this.manualCommit = manualCommit;
+        }
+
+        @Override
+        public ShardedQuery<T> reset() {
+            where.clear();
+            orderBy.clear();
+            descending.clear();
+            limit = 0;
+            offset = 0;
+            return this;
+        }
+
+        @Override
+        public ShardedQuery<T> whereEq(String columnName, Object obj) {
+            return where(columnName, "=", obj);
+        }
+
+        @Override
+        public ShardedQuery<T> where(String columnName, String comparator, Object obj) {
+            String property = descriptor.property(columnName);
+            Validate.notNull(property, "No suitable column or property found for '" + columnName + "'");
+            boolean onShardKey = shardKey.equals(property);
+            if (onShardKey && comparator.equals("=")) {
+                // hashed as the type of the shard key, so that e.g. a string id finds the shard of the number it stands for;
+                // a value out of the range of that type is rejected here, as it would be hashed as another key once narrowed
+                obj = descriptor.coerce(property, obj);
+            } else if (onShardKey && comparator.equals(" IN ") && obj instanceof Collection) {
+                List<Object> values = new ArrayList<>(((Collection<?>) obj).size());
+                for (Object value : (Collection<?>) obj) {
+                    values.add(descriptor.coerce(property, value));
+                }
+                obj = values;
+            }
+            where.add(new Condition(columnName, comparator, obj, onShardKey));
+            return this;
+        }
+
+        /**
+         * On the shard key, only the shards holding one of the values are queried, each for its own values.
+         */
+        public ShardedQuery<T> whereIn(String columnName, Collection<?> values) {
+            Validate.notNull(values, "values can not be null");
+            return where(columnName, " IN ", new ArrayList<>(values));
+        }
+
+        public ShardedQuery<T> orderBy(String columnName) {
+            return orderBy(columnName, false);
+        }
+
+        public ShardedQuery<T> orderBy(String columnName, boolean descending) {
+            String property = descriptor.property(columnName);
+            Validate.notNull(property, "No suitable column or property found for '" + columnName + "'");
+            this.orderBy.add(property);
+            this.descending.add(descending);
+            return this;
+        }
+
+        /**
+         * Returns at most {@code limit} rows from select, 0 for no limit. Every shard queried returns up to
+         * {@code offset + limit} rows, which are merged before the page is cut.
+         */
+        public ShardedQuery<T> limit(int limit) {
+            Validate.isTrue(limit >= 0, "limit cannot be negative");
+            this.limit = limit;
+            return this;
+        }
+
+        public ShardedQuery<T> offset(int offset) {
+            Validate.isTrue(offset >= 0, "offset cannot be negative");
+            this.offset = offset;
+            return this;
+        }
+
+        /**
+         * @return the shards rows matching the where clause can be on, each with the values of the in list on the
+         * shard key it is queried for, or null if the list is not narrowed
+         */
+        private Map<Integer, Collection<?>> targets() {
+            Map<Integer, Collection<?>> targets = new TreeMap<>();
+            for (Condition condition : where) {
+                if (!condition.onShardKey || condition.value == null) continue;
+                if (condition.comparator.equals("=")) {
+                    targets.put(ShardedDatabase.this.shardOf(condition.value), null);
+                    return targets;
+                }
+                if (condition.comparator.equals(" IN ")) {
+                    for (Object value : (Collection<?>) condition.value) {
+                        if (value == null) continue;
+                        @SuppressWarnings("unchecked")
+                        List<Object> values = (List<Object>) targets.computeIfAbsent(ShardedDatabase.this.shardOf(value), shard -> new ArrayList<>());
+                        values.add(value);
+                    }
+                    return targets;
+                }
+            }
+            for (int i = 0; i < shards.size(); i++) {
+                targets.put(i, null);
+            }
+            return targets;
+        }
+
+        /**
+         * Copies the conditions into the query of one shard.
+         *
+         * @param in the values of the first in list on the shard key to query this shard for, null to keep them all
+         * @param paged whether the shard cuts the page itself, rather than returning every row up to its end
+         */
+        private HibernateDatabase.HibernateQuery<T> prepare(HibernateDatabase.HibernateQuery<T> query, Collection<?> in, boolean paged) {
+            boolean narrowed = false;
+            for (Condition condition : where) {
+                if (condition.comparator.equals(" IN ") && condition.value instanceof Collection) {
+                    boolean narrow = in != null && condition.onShardKey && !narrowed;
+                    narrowed |= narrow;
+                    query.whereIn(condition.column, narrow ? in : (Collection<?>) condition.value);
+                } else {
+                    query.where(condition.column, condition.comparator, condition.value);
+                }
+            }
+            for (int i = 0; i < orderBy.size(); i++) {
+                query.orderBy(orderBy.get(i), descending.get(i));
+            }
+            if (paged) {
+                query.limit(limit).offset(offset);
+            } else if (limit > 0) {
+                query.limit(limit + offset);
+            }
+            return query;
+        }
+
+        /**
+         * Runs one operation per shard, in parallel unless bound to the calling thread's transaction.
+         *
+         * @return the results in shard order
+         */
+        private <R> List<R> scatter(Map<Integer, Function<HibernateDatabase.HibernateQuery<T>, R>> operations, boolean write) {
+            List<R> results = new ArrayList<>(operations.size());
+            try {
+                if (bound || operations.size() == 1) {
+                    for (Map.Entry<Integer, Function<HibernateDatabase.HibernateQuery<T>, R>> operation : operations.entrySet()) {
+                        results.add(run(operation.getKey(), operation.getValue(), write));
+                    }
+                    return results;
+                }
+                List<CompletableFuture<R>> futures = new ArrayList<>(operations.size());
+                for (Map.Entry<Integer, Function<HibernateDatabase.HibernateQuery<T>, R>> operation : operations.entrySet()) {
+                    futures.add(CompletableFuture.supplyAsync(() -> run(operation.getKey(), operation.getValue(), write), executor));
+                }
+                RuntimeException failure = null;
+                for (CompletableFuture<R> future : futures) {
+                    try {
+                        results.add(future.join());
+                    } catch (CompletionException e) {
+                        RuntimeException cause = e.getCause() instanceof RuntimeException ? (RuntimeException) e.getCause() : e;
+                        if (failure == null) {
+                            failure = cause;
+                        } else {
+                            failure.addSuppressed(cause);
+                        }
+                    }
+                }
+                if (failure != null) throw failure;
+                return results;
+            } catch (RuntimeException e) {
+                failed = true;
+                throw e;
+            }
+        }
+
+        private <R> R run(int shard, Function<HibernateDatabase.HibernateQuery<T>, R> operation, boolean write) {
+            HibernateDatabase database = shards.get(shard);
+            try (HibernateDatabase.HibernateQuery<T> query = bound ? database.query(cls) : write ? database.inlineQuery(cls) : database.readOnlyQuery(cls)) {
+                return operation.apply(query);
+            }
+        }
+
+        /**
+         * Runs the operation on every shard the where clause can match rows on.
+         */
+        private <R> List<R> scatter(Function<HibernateDatabase.HibernateQuery<T>, R> operation, boolean write) {
+            Map<Integer, Collection<?>> targets = targets();
+            boolean paged = targets.size() == 1;
+            Map<Integer, Function<HibernateDatabase.HibernateQuery<T>, R>> operations = new TreeMap<>();
+            targets.forEach((shard, in) -> operations.put(shard, query -> operation.apply(prepare(query, in, paged))));
+            return scatter(operations, write);
+        }
+
+        @Override
+        public List<T> select() {
+            List<List<T>> results = scatter(HibernateDatabase.HibernateQuery::select, false);
+            if (results.size() == 1) return results.get(0);
+            List<T> merged = new ArrayList<>();
+            results.forEach(merged::addAll);
+            if (!orderBy.isEmpty()) {
+                merged.sort(ordering());
+            }
+            int from = Math.min(offset, merged.size());
+            int to = limit > 0 ? Math.min(from + limit, merged.size()) : merged.size();
+            return from == 0 && to == merged.size() ? merged : new ArrayList<>(merged.subList(from, to));
+        }
+
+        @SuppressWarnings("unchecked")
+        private Comparator<T> ordering() {
+            Comparator<T> ordering = null;
+            for (int i = 0; i < orderBy.size(); i++) {
+                String property = orderBy.get(i);
+                Comparator<Comparable<Object>> values = Comparator.nullsFirst(Comparator.naturalOrder());
+                Comparator<T> next = Comparator.comparing(t -> (Comparable<Object>) descriptor.getValue(t, property), values);
+                if (descending.get(i)) next = next.reversed();
+                ordering = ordering == null ? next : ordering.thenComparing(next);
+            }
+            return ordering;
+        }
+
+        @Override
+        public T selectUnique() {
+            List<T> list = select();
+            if (list.size() > 1) {
+                throw new NonUniqueResultException(list.size());
+            }
+            return list.isEmpty() ? null : list.get(0);
+        }
+
+        @Override
+        public T selectUniqueUnchecked() {
+            List<T> list = select();
+            return list.size() == 1 ? list.get(0) : null;
+        }
+
+        @Override
+        public int count() {
+            int count = 0;
+            for (int shardCount : scatter(HibernateDatabase.HibernateQuery::count, false)) {
+                count += shardCount;
+            }
+            return count;
+        }
+
+        @Override
+        public void delete() {
+            scatter(query -> {
+                query.delete();
+                return null;
+            }, true);
+        }
+
+        /**
+         * Updates the matching rows on every shard they can be on. The shard key can not be updated,
+         * as that would require moving rows between shards, so unless it is the identifier the columns
+         * to update must be listed.
+         */
+        @Override
+        public void update(T obj, String... columns) {
+            Validate.isTrue(columns.length > 0 || shardKey.equals(descriptor.getIdProperty()),
+                    "The columns to update must be listed, as the shard key '" + shardKey + "' can not be updated");
+            for (String column : columns) {
+                Validate.isTrue(!shardKey.equals(descriptor.property(column)), "Can not update the shard key '" + column + "'");
+            }
+            scatter(query -> {
+                query.update(obj, columns);
+                return null;
+            }, true);
+        }
+
+        @Override
+        public void insert(T object) {
+            Map<Integer, Function<HibernateDatabase.HibernateQuery<T>, Void>> operations = Collections.singletonMap(shardOf(object), query -> {
+                query.insert(object);
+                return null;
+            });
+            scatter(operations, true);
+        }
+
+        /**
+         * Groups the entities by shard and inserts every group with {@link HibernateDatabase.HibernateQuery#insertAll(Iterable)}.
+         *
+         * @return the number of entities inserted
+         */
+        public int insertAll(Iterable<? extends T> entities) {
+            return insertAll(entities.iterator());
+        }
+
+        public int insertAll(Stream<? extends T> entities) {
+            try (Stream<? extends T> stream = entities) {
+                return insertAll(stream.iterator());
+            }
+        }
+
+        private int insertAll(Iterator<? extends T> entities) {
+            Map<Integer, List<T>> groups = new TreeMap<>();
+            while (entities.hasNext()) {
+                T entity = entities.next();
+                groups.computeIfAbsent(shardOf(entity), shard -> new ArrayList<>()).add(entity);
+            }
+            Map<Integer, Function<HibernateDatabase.HibernateQuery<T>, Integer>> operations = new TreeMap<>();
+            groups.forEach((shard, group) -> operations.put(shard, query -> query.insertAll(group)));
+            int count = 0;
+            for (int inserted : scatter(operations, true)) {
+                count += inserted;
+            }
+            return count;
+        }
+
+        private int shardOf(T entity) {
+            Object key = descriptor.getValue(entity, shardKey);
+            Validate.notNull(key, "Shard key '" + shardKey + "' of the entity can not be null");
+            return ShardedDatabase.this.shardOf(key);
+        }
+
+        @Override
+        public void rollback() {
+            if (bound) rollbackTransaction();
+        }
+
+        @Override
+        public void commit() {
+            if (bound) commitTransaction();
+        }
+
+        @Override
+        public void close() {
+            if (!owner || transactions.get() == null) return;
+            if (failed || manualCommit) {
+                rollbackTransaction();
+            } else {
+                commitTransaction();
+            }
+        }
+    }
+}
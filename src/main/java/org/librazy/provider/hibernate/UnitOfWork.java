@@ -0,0 +1,294 @@
+package org.librazy.provider.hibernate;
+
+import org.hibernate.JDBCException;
+
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.sql.Savepoint;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Properties;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.Function;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Groups the writes {@link HibernateDatabase#auto(Class)} makes outside of a transaction into one transaction per
+ * thread and window, e.g. one server tick, that is committed once at the end of the window.
+ * <p>
+ * The first write of a thread opens its unit on a connection of its own. The unit is committed when the window has
+ * passed, on {@link #commit()}, before the thread begins a transaction and when the database is closed. Every
+ * operation runs in a session of its own behind a savepoint of the unit: an operation that fails is rolled back to
+ * its savepoint and throws to its caller, while the rest of the batch is kept. Reads of a thread with an open unit
+ * run in it and see its writes, except for streams and forEach, which commit it first. Other threads see the writes
+ * once the unit is committed. The sessions of a unit neither read nor fill the second-level cache; the entities it
+ * wrote are evicted from it, and their cached results made stale, when it completes.
+ */
+public class UnitOfWork {
+    private final HibernateDatabase database;
+    private final Logger log;
+    private final long window;
+    private final Map<Thread, Unit> units = new ConcurrentHashMap<>();
+    private final ScheduledExecutorService scheduler;
+    private final AtomicLong commits = new AtomicLong();
+    private final AtomicLong operations = new AtomicLong();
+    private final AtomicLong failedOperations = new AtomicLong();
+    private final AtomicLong failedCommits = new AtomicLong();
+    private volatile boolean closed;
+
+    UnitOfWork(HibernateDatabase database, Properties properties, Logger log) {
+        this.database = database;
+        this.log = log;
+        this.window = Settings.getInt(properties, Settings.UNIT_OF_WORK_WINDOW, 50);
+        this.scheduler = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread thread = new Thread(r, "HibernateProvider-unit-of-work");
+            thread.setDaemon(true);
+            return thread;
+        });
+    }
+
+    /**
+     * Commits the open unit of the calling thread now, e.g. at the end of a server tick; does nothing if there is none.
+     *
+     * @throws JDBCException if the commit fails, in which case every write of the unit is rolled back
+     */
+    public void commit() {
+        Unit unit = units.get(Thread.currentThread());
+        if (unit != null) {
+            unit.commit(true);
+        }
+    }
+
+    public long getCommitCount() {
+        return commits.get();
+    }
+
+    public long getOperationCount() {
+        return operations.get();
+    }
+
+    public long getFailedOperationCount() {
+        return failedOperations.get();
+    }
+
+    /**
+     * @return the number of units whose commit failed, losing their writes; failures of units committed at the end
+     * of their window are logged
+     */
+    public long getFailedCommitCount() {
+        return failedCommits.get();
+    }
+
+    /**
+     * Runs the operation on a query with the conditions of the given one, in the open unit of the calling thread.
+     * Writes open a unit if there is none; reads without one run on the given query. The given query is closed.
+     */
+    <T, R> R run(HibernateDatabase.HibernateQuery<T> conditions, boolean write, Function<HibernateDatabase.HibernateQuery<T>, R> operation) {
+        Unit unit;
+        try {
+            unit = write ? open() : lock(units.get(Thread.currentThread()));
+            if (unit == null) {
+                return operation.apply(conditions);
+            }
+        } finally {
+            conditions.close();
+        }
+        try {
+            try {
+                unit.savepoint = unit.connection.setSavepoint();
+            } catch (SQLException e) {
+                throw new JDBCException("Could not set a savepoint in the unit of work", e);
+            }
+            try (HibernateDatabase.HibernateQuery<T> query = conditions.onConnection(unit.proxy)) {
+                R result = operation.apply(query);
+                if (write) {
+                    unit.written.add(query.getDescriptor());
+                }
+                unit.operations++;
+                operations.incrementAndGet();
+                return result;
+            } catch (RuntimeException e) {
+                failedOperations.incrementAndGet();
+                try {
+                    unit.rollbackOperation();
+                } catch (SQLException rollback) {
+                    e.addSuppressed(rollback);
+                }
+                throw e;
+            }
+        } finally {
+            unit.savepoint = null;
+            unit.lock.unlock();
+        }
+    }
+
+    /**
+     * @return the open unit of the calling thread, opened if there is none, locked by the caller
+     * @throws IllegalStateException if the unit of work is closed
+     */
+    private Unit open() {
+        while (true) {
+            if (closed) {
+                throw new IllegalStateException("Database is closed");
+            }
+            Unit unit = units.computeIfAbsent(Thread.currentThread(), Unit::new);
+            if (lock(unit) != null) return unit;
+            // committed by its deadline before it was registered
+            units.remove(unit.owner, unit);
+        }
+    }
+
+    /**
+     * @return the unit, locked, or null if it is null or was committed meanwhile
+     */
+    private static Unit lock(Unit unit) {
+        if (unit == null) return null;
+        unit.lock.lock();
+        if (!unit.closed) return unit;
+        unit.lock.unlock();
+        return null;
+    }
+
+    /**
+     * Commits the units of every thread, including those a deadline is committing meanwhile.
+     */
+    void close() {
+        closed = true;
+        units.values().forEach(unit -> unit.commit(false));
+        scheduler.shutdown();
+        try {
+            // deadlines that already fired, or of units opened while closing, still commit
+            if (!scheduler.awaitTermination(1, TimeUnit.MINUTES)) {
+                log.warning("Units of work still committing after closing");
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private final class Unit {
+        private final Thread owner;
+        private final Connection connection;
+        /**
+         * The connection the sessions of the operations run on; committing, rolling back and closing it only
+         * affect the current operation
+         */
+        private final Connection proxy;
+        private final ScheduledFuture<?> deadline;
+        private final ReentrantLock lock = new ReentrantLock();
+        private final Set<EntityDescriptor<?>> written = new HashSet<>();
+        private volatile Savepoint savepoint;
+        private boolean closed;
+        private int operations;
+
+        private Unit(Thread owner) {
+            this.owner = owner;
+            try {
+                this.connection = database.connectionPool().getConnectionProvider().getConnection();
+            } catch (SQLException e) {
+                throw new JDBCException("Could not open a connection for the unit of work", e);
+            }
+            try {
+                connection.setAutoCommit(false);
+            } catch (SQLException e) {
+                closeQuietly();
+                throw new JDBCException("Could not open a transaction for the unit of work", e);
+            }
+            this.proxy = (Connection) Proxy.newProxyInstance(Connection.class.getClassLoader(), new Class<?>[]{Connection.class}, this::invoke);
+            try {
+                this.deadline = scheduler.schedule(() -> commit(false), window, TimeUnit.MILLISECONDS);
+            } catch (RejectedExecutionException e) {
+                // closed after open() checked
+                closeQuietly();
+                throw new IllegalStateException("Database is closed", e);
+            }
+        }
+
+        private Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+            switch (method.getName()) {
+                case "commit":
+                case "setAutoCommit":
+                case "close":
+                    return null;
+                case "getAutoCommit":
+                    return false;
+                case "rollback":
+                    if (args == null) {
+                        rollbackOperation();
+                        return null;
+                    }
+                    break;
+                case "equals":
+                    return proxy == args[0];
+                case "hashCode":
+                    return System.identityHashCode(proxy);
+                default:
+                    break;
+            }
+            try {
+                return method.invoke(connection, args);
+            } catch (InvocationTargetException e) {
+                throw e.getCause();
+            }
+        }
+
+        private void rollbackOperation() throws SQLException {
+            if (savepoint != null) {
+                connection.rollback(savepoint);
+            }
+        }
+
+        private void commit(boolean rethrow) {
+            lock.lock();
+            try {
+                if (closed) return;
+                closed = true;
+                units.remove(owner, this);
+                deadline.cancel(false);
+                try {
+                    connection.commit();
+                    commits.incrementAndGet();
+                    database.unitOfWorkCompleted(written, owner, true);
+                } catch (SQLException | RuntimeException e) {
+                    failedCommits.incrementAndGet();
+                    try {
+                        connection.rollback();
+                    } catch (SQLException ignored) {
+                    }
+                    database.unitOfWorkCompleted(written, owner, false);
+                    if (rethrow) {
+                        throw e instanceof SQLException ? new JDBCException("Could not commit the unit of work", (SQLException) e) : (RuntimeException) e;
+                    }
+                    log.log(Level.WARNING, "Failed to commit a unit of work of " + operations + " operations", e);
+                } finally {
+                    try {
+                        connection.setAutoCommit(true);
+                    } catch (SQLException ignored) {
+                    }
+                    closeQuietly();
+                }
+            } finally {
+                lock.unlock();
+            }
+        }
+
+        private void closeQuietly() {
+            try {
+                connection.close();
+            } catch (SQLException ignored) {
+            }
+        }
+    }
+}
@@ -0,0 +1,153 @@
+package org.librazy.provider.hibernate;
+
+import org.hibernate.dialect.Dialect;
+import org.hibernate.dialect.H2Dialect;
+import org.hibernate.dialect.MySQLDialect;
+import org.hibernate.dialect.PostgreSQL81Dialect;
+import org.hibernate.engine.spi.SharedSessionContractImplementor;
+import org.hibernate.persister.entity.AbstractEntityPersister;
+import org.hibernate.type.Type;
+
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+import java.util.Arrays;
+import java.util.StringJoiner;
+
+/**
+ * A compiled insert-or-update statement of one entity in the native form of the dialect, updating only the
+ * selected properties of existing rows. Immutable once compiled.
+ * <ul>
+ * <li>MySQL/MariaDB: {@code INSERT ... ON DUPLICATE KEY UPDATE}</li>
+ * <li>PostgreSQL (9.5+) and SQLite (3.24+): {@code INSERT ... ON CONFLICT (id) DO UPDATE}</li>
+ * <li>H2: {@code MERGE INTO ... KEY (id)}, where properties that are not updated are read back from the
+ * existing row, as H2 merges every listed column</li>
+ * </ul>
+ */
+final class Upsert {
+    private enum Form {
+        ON_DUPLICATE_KEY, ON_CONFLICT, MERGE
+    }
+
+    private final String sql;
+    private final Type idType;
+    private final int idSpan;
+    private final Type[] types;
+    private final boolean[] inserted;
+    /**
+     * Properties whose columns are selected from the existing row instead of bound directly, H2 only
+     */
+    private final boolean[] kept;
+    private final int[] spans;
+
+    private Upsert(EntityDescriptor<?> descriptor, Form form, boolean[] updated) {
+        AbstractEntityPersister persister = descriptor.getPersister();
+        this.idType = persister.getIdentifierType();
+        this.types = persister.getPropertyTypes();
+        String table = descriptor.getTableName();
+        String[] idColumns = descriptor.getIdColumns();
+        this.idSpan = idColumns.length;
+        int count = descriptor.getPropertyCount();
+        this.inserted = new boolean[count];
+        this.kept = new boolean[count];
+        this.spans = new int[count];
+        boolean[] insertability = persister.getPropertyInsertability();
+        boolean[] updateability = persister.getPropertyUpdateability();
+
+        StringJoiner columns = new StringJoiner(", ");
+        StringJoiner values = new StringJoiner(", ");
+        StringJoiner updates = new StringJoiner(", ");
+        for (String column : idColumns) {
+            columns.add(column);
+            values.add("?");
+        }
+        String idMatch = where(idColumns);
+        for (int i = 0; i < count; i++) {
+            String[] propertyColumns = descriptor.getPropertyColumns(i);
+            if (!insertability[i] || propertyColumns.length == 0) continue;
+            inserted[i] = true;
+            spans[i] = propertyColumns.length;
+            boolean update = updated[i] && updateability[i];
+            kept[i] = form == Form.MERGE && !update;
+            for (String column : propertyColumns) {
+                columns.add(column);
+                if (kept[i]) {
+                    values.add("case when exists (select 1 from " + table + " where " + idMatch + ") then (select " + column
+                            + " from " + table + " where " + idMatch + ") else ? end");
+                } else {
+                    values.add("?");
+                }
+                if (update && form == Form.ON_DUPLICATE_KEY) {
+                    updates.add(column + " = values(" + column + ")");
+                } else if (update && form == Form.ON_CONFLICT) {
+                    updates.add(column + " = excluded." + column);
+                }
+            }
+        }
+        String insert = "(" + columns + ") values (" + values + ")";
+        switch (form) {
+            case ON_DUPLICATE_KEY:
+                // a no-op assignment keeps existing rows untouched when nothing is updated
+                this.sql = "insert into " + table + " " + insert + " on duplicate key update "
+                        + (updates.length() > 0 ? updates : idColumns[0] + " = " + idColumns[0]);
+                break;
+            case ON_CONFLICT:
+                this.sql = "insert into " + table + " " + insert + " on conflict (" + String.join(", ", idColumns) + ") "
+                        + (updates.length() > 0 ? "do update set " + updates : "do nothing");
+                break;
+            default:
+                this.sql = "merge into " + table + " (" + columns + ") key (" + String.join(", ", idColumns) + ") values (" + values + ")";
+        }
+    }
+
+    private static String where(String[] idColumns) {
+        StringJoiner where = new StringJoiner(" and ");
+        for (String column : idColumns) {
+            where.add(column + " = ?");
+        }
+        return where.toString();
+    }
+
+    /**
+     * @param updated per property, whether an existing row gets the new value
+     * @throws UnsupportedOperationException if the dialect has no native upsert known to this class
+     */
+    static Upsert compile(EntityDescriptor<?> descriptor, Dialect dialect, boolean[] updated) {
+        Form form;
+        if (dialect instanceof MySQLDialect) {
+            form = Form.ON_DUPLICATE_KEY;
+        } else if (dialect instanceof PostgreSQL81Dialect || dialect.getClass().getSimpleName().startsWith("SQLite")) {
+            form = Form.ON_CONFLICT;
+        } else if (dialect instanceof H2Dialect) {
+            form = Form.MERGE;
+        } else {
+            throw new UnsupportedOperationException("No native upsert for " + dialect.getClass().getName());
+        }
+        return new Upsert(descriptor, form, updated.clone());
+    }
+
+    String getSql() {
+        return sql;
+    }
+
+    void bind(PreparedStatement statement, Object id, Object[] state, SharedSessionContractImplementor session) throws SQLException {
+        idType.nullSafeSet(statement, id, 1, session);
+        int index = 1 + idSpan;
+        for (int i = 0; i < state.length; i++) {
+            if (!inserted[i]) continue;
+            if (!kept[i]) {
+                types[i].nullSafeSet(statement, state[i], index, session);
+                index += spans[i];
+                continue;
+            }
+            boolean[] settable = new boolean[spans[i]];
+            for (int column = 0; column < spans[i]; column++) {
+                idType.nullSafeSet(statement, id, index, session);
+                idType.nullSafeSet(statement, id, index + idSpan, session);
+                index += 2 * idSpan;
+                Arrays.fill(settable, false);
+                settable[column] = true;
+                types[i].nullSafeSet(statement, state[i], index++, settable, session);
+            }
+        }
+    }
+}
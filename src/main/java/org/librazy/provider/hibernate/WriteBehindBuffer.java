@@ -0,0 +1,377 @@
+package org.librazy.provider.hibernate;
+
+import org.hibernate.Session;
+import org.hibernate.Transaction;
+import org.hibernate.engine.spi.EntityEntry;
+import org.hibernate.engine.spi.SessionImplementor;
+import org.hibernate.engine.spi.SharedSessionContractImplementor;
+import org.hibernate.persister.entity.AbstractEntityPersister;
+import org.hibernate.type.Type;
+
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Properties;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Coalesces entity updates in memory and writes them in batched transactions.
+ * <p>
+ * The latest pending value of every updated property is kept per (entity class, id); repeated updates
+ * of the same row only widen its set of dirty properties. Pending rows are flushed on a timer, when
+ * the number of pending rows reaches a threshold, on {@link #flush()} and when the database is closed.
+ * Entities read through the owning database see their pending values. Queries of an entity in a transaction of the
+ * database write its pending rows in that transaction, which buffers them again if it rolls back.
+ */
+public class WriteBehindBuffer {
+    private final HibernateDatabase database;
+    private final Logger log;
+    private final int maxPending;
+    private final Map<Key, Pending> pending = new ConcurrentHashMap<>();
+    private final Map<Key, Pending> flushing = new ConcurrentHashMap<>();
+    private final ScheduledExecutorService scheduler;
+    private final AtomicLong flushedRows = new AtomicLong();
+    private final AtomicLong flushes = new AtomicLong();
+    private volatile boolean flushScheduled;
+
+    WriteBehindBuffer(HibernateDatabase database, Properties properties, Logger log) {
+        this.database = database;
+        this.log = log;
+        this.maxPending = Settings.getInt(properties, Settings.WRITE_BEHIND_MAX_PENDING, 1000);
+        long interval = Settings.getInt(properties, Settings.WRITE_BEHIND_INTERVAL, 1000);
+        this.scheduler = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread thread = new Thread(r, "HibernateProvider-write-behind");
+            thread.setDaemon(true);
+            return thread;
+        });
+        scheduler.scheduleWithFixedDelay(this::backgroundFlush, interval, interval, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Buffers an update of the given properties (all properties if none are given) of the row identified by the entity's id.
+     */
+    @SuppressWarnings("unchecked")
+    public <T> void update(T entity, String... columns) {
+        EntityDescriptor<T> descriptor = database.descriptor((Class<T>) entity.getClass());
+        Object id = Objects.requireNonNull(descriptor.getIdentifier(entity), "Entity has no id");
+        int count = descriptor.getPropertyCount();
+        boolean[] dirty = new boolean[count];
+        if (columns.length == 0) {
+            Arrays.fill(dirty, true);
+        } else {
+            for (String column : columns) {
+                int index = descriptor.indexOf(descriptor.property(column));
+                if (index < 0) {
+                    throw new IllegalArgumentException("No suitable column or property found for '" + column + "'");
+                }
+                dirty[index] = true;
+            }
+        }
+        boolean[] updatable = descriptor.getPersister().getPropertyUpdateability();
+        Object[] values = new Object[count];
+        boolean any = false;
+        for (int i = 0; i < count; i++) {
+            dirty[i] &= updatable[i] && descriptor.getPropertyColumns(i).length > 0;
+            if (dirty[i]) {
+                values[i] = descriptor.getPropertyValue(entity, i);
+                any = true;
+            }
+        }
+        if (!any) return;
+        pending.merge(new Key(descriptor.getType(), id), new Pending(descriptor, id, values, dirty), Pending::merge);
+        if (pending.size() >= maxPending && !flushScheduled) {
+            flushScheduled = true;
+            scheduler.execute(this::backgroundFlush);
+        }
+    }
+
+    public int getPendingCount() {
+        return pending.size();
+    }
+
+    public long getFlushedRowCount() {
+        return flushedRows.get();
+    }
+
+    public long getFlushCount() {
+        return flushes.get();
+    }
+
+    /**
+     * Writes all pending updates in a single transaction. Updates that fail to flush stay buffered.
+     */
+    public void flush() {
+        flush(null);
+    }
+
+    synchronized void flush(Class<?> cls) {
+        List<Pending> batch = take(cls);
+        if (batch.isEmpty()) return;
+        SessionFactoryHandle handle = database.acquire();
+        Session session = handle.getSessionFactory().openSession();
+        Transaction tx = null;
+        try {
+            tx = session.beginTransaction();
+            Set<EntityDescriptor<?>> written = write(batch, session);
+            tx.commit();
+            written.forEach(database::invalidateResults);
+            flushedRows.addAndGet(batch.size());
+            flushes.incrementAndGet();
+        } catch (RuntimeException e) {
+            if (tx != null && tx.isActive()) tx.rollback();
+            requeue(batch);
+            throw e;
+        } finally {
+            session.close();
+            handle.release();
+            release(batch);
+        }
+    }
+
+    /**
+     * Writes the pending updates of the entity in the active transaction of {@code session}, which may already hold
+     * locks on their rows. They are buffered again if the transaction rolls back.
+     */
+    void flush(Class<?> cls, Session session) {
+        List<Pending> batch = take(cls);
+        if (batch.isEmpty()) return;
+        Set<EntityDescriptor<?>> written;
+        try {
+            written = write(batch, session);
+        } catch (RuntimeException e) {
+            requeue(batch);
+            release(batch);
+            throw e;
+        }
+        session.unwrap(SessionImplementor.class).getActionQueue().registerProcess((success, s) -> {
+            if (success) {
+                written.forEach(database::invalidateResults);
+                flushedRows.addAndGet(batch.size());
+                flushes.incrementAndGet();
+            } else {
+                requeue(batch);
+            }
+            release(batch);
+        });
+    }
+
+    /**
+     * Moves the pending updates of the entity, or of every entity if {@code cls} is null, to the ones being flushed.
+     */
+    private synchronized List<Pending> take(Class<?> cls) {
+        flushScheduled = false;
+        List<Pending> batch = new ArrayList<>();
+        for (Key key : pending.keySet()) {
+            if (cls != null && key.cls != cls) continue;
+            Pending entry = pending.remove(key);
+            if (entry != null) {
+                // stays visible to readers until committed
+                flushing.put(key, entry);
+                batch.add(entry);
+            }
+        }
+        return batch;
+    }
+
+    /**
+     * @return the entities written
+     */
+    private Set<EntityDescriptor<?>> write(List<Pending> batch, Session session) {
+        SessionImplementor implementor = session.unwrap(SessionImplementor.class);
+        Map<EntityDescriptor<?>, CacheInvalidation> invalidations = new HashMap<>();
+        try {
+            for (Pending entry : batch) {
+                invalidations.computeIfAbsent(entry.descriptor, d -> CacheInvalidation.of(implementor, d)).invalidate(entry.id);
+            }
+            invalidations.keySet().forEach(database::invalidateResults);
+            session.doWork(connection -> {
+                for (Map.Entry<String, List<Pending>> group : groupByStatement(batch).entrySet()) {
+                    try (PreparedStatement ps = connection.prepareStatement(group.getKey())) {
+                        for (Pending entry : group.getValue()) {
+                            entry.bind(ps, implementor);
+                            ps.addBatch();
+                        }
+                        ps.executeBatch();
+                    }
+                }
+            });
+        } finally {
+            invalidations.values().forEach(CacheInvalidation::close);
+        }
+        return invalidations.keySet();
+    }
+
+    private void requeue(List<Pending> batch) {
+        for (Pending entry : batch) {
+            pending.merge(entry.key(), entry, (newer, older) -> older.merge(newer));
+        }
+    }
+
+    private void release(List<Pending> batch) {
+        for (Pending entry : batch) {
+            flushing.remove(entry.key(), entry);
+        }
+    }
+
+    private static Map<String, List<Pending>> groupByStatement(List<Pending> batch) {
+        Map<String, List<Pending>> groups = new LinkedHashMap<>();
+        for (Pending entry : batch) {
+            groups.computeIfAbsent(entry.sql(), k -> new ArrayList<>()).add(entry);
+        }
+        return groups;
+    }
+
+    private void backgroundFlush() {
+        try {
+            flush();
+        } catch (RuntimeException e) {
+            log.log(Level.WARNING, "Failed to flush buffered updates, will retry", e);
+        }
+    }
+
+    /**
+     * Copies pending values onto an entity loaded by {@code session}, keeping its loaded state in sync so that
+     * the session does not consider it dirty.
+     */
+    <T> void overlay(EntityDescriptor<T> descriptor, T entity, SessionImplementor session) {
+        if (entity == null || (pending.isEmpty() && flushing.isEmpty())) return;
+        Key key = new Key(descriptor.getType(), descriptor.getIdentifier(entity));
+        Pending entry = pending.get(key);
+        Pending inFlight = flushing.get(key);
+        if (inFlight != null) {
+            entry = entry == null ? inFlight : inFlight.merge(entry);
+        }
+        if (entry == null) return;
+        EntityEntry managed = session == null ? null : session.getPersistenceContext().getEntry(entity);
+        Object[] loadedState = managed == null ? null : managed.getLoadedState();
+        for (int i = 0; i < entry.dirty.length; i++) {
+            if (entry.dirty[i]) {
+                descriptor.setPropertyValue(entity, i, entry.values[i]);
+                if (loadedState != null) loadedState[i] = entry.values[i];
+            }
+        }
+    }
+
+    boolean hasPending(Class<?> cls) {
+        if (pending.isEmpty()) return false;
+        for (Key key : pending.keySet()) {
+            if (key.cls == cls) return true;
+        }
+        return false;
+    }
+
+    void close() {
+        scheduler.shutdown();
+        try {
+            scheduler.awaitTermination(30, TimeUnit.SECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        try {
+            flush();
+        } catch (RuntimeException e) {
+            // nothing flushes them anymore
+            int lost = pending.size();
+            pending.clear();
+            log.log(Level.SEVERE, "Failed to flush buffered updates on close, " + lost + " updates dropped", e);
+        }
+    }
+
+    private static final class Key {
+        private final Class<?> cls;
+        private final Object id;
+
+        private Key(Class<?> cls, Object id) {
+            this.cls = cls;
+            this.id = id;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (this == o) return true;
+            if (!(o instanceof Key)) return false;
+            Key key = (Key) o;
+            return cls == key.cls && id.equals(key.id);
+        }
+
+        @Override
+        public int hashCode() {
+            return 31 * cls.hashCode() + id.hashCode();
+        }
+    }
+
+    private static final class Pending {
+        private final EntityDescriptor<?> descriptor;
+        private final Object id;
+        private final Object[] values;
+        private final boolean[] dirty;
+
+        private Pending(EntityDescriptor<?> descriptor, Object id, Object[] values, boolean[] dirty) {
+            this.descriptor = descriptor;
+            this.id = id;
+            this.values = values;
+            this.dirty = dirty;
+        }
+
+        private Key key() {
+            return new Key(descriptor.getType(), id);
+        }
+
+        private Pending merge(Pending newer) {
+            Object[] values = this.values.clone();
+            boolean[] dirty = this.dirty.clone();
+            for (int i = 0; i < dirty.length; i++) {
+                if (newer.dirty[i]) {
+                    values[i] = newer.values[i];
+                    dirty[i] = true;
+                }
+            }
+            return new Pending(newer.descriptor, id, values, dirty);
+        }
+
+        private String sql() {
+            StringBuilder sql = new StringBuilder("update ").append(descriptor.getTableName()).append(" set ");
+            boolean first = true;
+            for (int i = 0; i < dirty.length; i++) {
+                if (!dirty[i]) continue;
+                for (String column : descriptor.getPropertyColumns(i)) {
+                    if (!first) sql.append(", ");
+                    sql.append(column).append(" = ?");
+                    first = false;
+                }
+            }
+            sql.append(" where ");
+            String[] idColumns = descriptor.getIdColumns();
+            for (int i = 0; i < idColumns.length; i++) {
+                if (i > 0) sql.append(" and ");
+                sql.append(idColumns[i]).append(" = ?");
+            }
+            return sql.toString();
+        }
+
+        private void bind(PreparedStatement ps, SharedSessionContractImplementor session) throws SQLException {
+            AbstractEntityPersister persister = descriptor.getPersister();
+            Type[] types = persister.getPropertyTypes();
+            int index = 1;
+            for (int i = 0; i < dirty.length; i++) {
+                if (!dirty[i]) continue;
+                types[i].nullSafeSet(ps, values[i], index, session);
+                index += types[i].getColumnSpan(session.getFactory());
+            }
+            persister.getIdentifierType().nullSafeSet(ps, id, index, session);
+        }
+    }
+}
@@ -0,0 +1,207 @@
+package org.librazy.provider.hibernate;
+
+import cat.nyaa.nyaacore.database.DatabaseUtils;
+import com.google.common.util.concurrent.Uninterruptibles;
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+
+public class AsyncDatabaseTest {
+    private HibernateDatabase db;
+    private ExecutorService mainThread;
+
+    @BeforeClass
+    public static void register() {
+        DatabaseUtils.registerProvider("hibernate", new HibernateProvider());
+    }
+
+    @Before
+    public void prepareDatabase() {
+        db = open();
+        db.auto(TestTable.class).delete();
+        mainThread = Executors.newSingleThreadExecutor(r -> new Thread(r, "main"));
+    }
+
+    private static HibernateDatabase open() {
+        return open(Collections.emptyMap());
+    }
+
+    private static HibernateDatabase open(Map<String, Object> extra) {
+        Map<String, Object> conf = new HashMap<>();
+        conf.put("username", "sa");
+        conf.put("password", "");
+        conf.put("jdbc", "org.h2.Driver");
+        conf.put("url", "jdbc:h2:mem:async_db;");
+        conf.put("dialect", "org.hibernate.dialect.H2Dialect");
+        conf.put("classes", new Class<?>[]{TestTable.class});
+        conf.put("asyncThreads", 1);
+        conf.put("asyncQueueSize", 1);
+        conf.putAll(extra);
+        return DatabaseUtils.<HibernateDatabase>get("hibernate", null, conf).connect();
+    }
+
+    @After
+    public void closeDatabase() {
+        db.close();
+        mainThread.shutdown();
+    }
+
+    @Test
+    public void runsOperationsOffThread() throws Exception {
+        AsyncDatabase async = db.async(mainThread);
+        async.insert(TestTable.class, new TestTable(1L, "a", UUID.randomUUID(), UUID.randomUUID())).get();
+        async.insert(TestTable.class, new TestTable(2L, "b", UUID.randomUUID(), UUID.randomUUID())).get();
+        Assert.assertEquals(1, (int) async.count(TestTable.class, q -> q.whereEq("string", "a")).get());
+        UUID uuid = UUID.randomUUID();
+        async.update(TestTable.class, q -> q.whereEq("id", 2L), new TestTable(2L, "c", uuid, uuid), "string").get();
+        Assert.assertEquals("c", async.selectUnique(TestTable.class, q -> q.whereEq("id", 2L)).get().string);
+        async.delete(TestTable.class, q -> q.whereEq("string", "a")).get();
+        Assert.assertEquals(1, async.select(TestTable.class, q -> {}).get().size());
+        String thread = async.count(TestTable.class, q -> {}).thenApply(c -> Thread.currentThread().getName()).get();
+        Assert.assertEquals("main", thread);
+    }
+
+    @Test
+    public void transactionRollsBackOnFailure() throws Exception {
+        AsyncDatabase async = db.async(null);
+        CompletableFuture<Object> failed = async.transaction(TestTable.class, q -> {
+            q.insert(new TestTable(1L, "a", UUID.randomUUID(), UUID.randomUUID()));
+            throw new IllegalStateException("boom");
+        });
+        try {
+            failed.get();
+            Assert.fail();
+        } catch (ExecutionException e) {
+            Assert.assertEquals(IllegalStateException.class, e.getCause().getClass());
+        }
+        int inserted = async.transaction(TestTable.class, q -> {
+            q.insert(new TestTable(1L, "a", UUID.randomUUID(), UUID.randomUUID()));
+            return q.count();
+        }).get();
+        Assert.assertEquals(1, inserted);
+        Assert.assertEquals(1, db.auto(TestTable.class).count());
+    }
+
+    @Test
+    public void rejectsWhenQueueIsFull() throws Exception {
+        AsyncDatabase async = db.async(null);
+        CountDownLatch started = new CountDownLatch(1);
+        CountDownLatch release = new CountDownLatch(1);
+        CompletableFuture<Integer> blocking = async.transaction(TestTable.class, q -> {
+            started.countDown();
+            try {
+                release.await();
+            } catch (InterruptedException e) {
+                throw new RuntimeException(e);
+            }
+            return q.count();
+        });
+        started.await();
+        CompletableFuture<Integer> queued = async.count(TestTable.class, q -> {});
+        CompletableFuture<Integer> rejected = async.count(TestTable.class, q -> {});
+        try {
+            rejected.get();
+            Assert.fail();
+        } catch (ExecutionException e) {
+            Assert.assertEquals(RejectedExecutionException.class, e.getCause().getClass());
+        }
+        release.countDown();
+        Assert.assertEquals(0, (int) blocking.get());
+        Assert.assertEquals(0, (int) queued.get());
+    }
+
+    @Test
+    public void closeDrainsQueuedOperations() throws Exception {
+        HibernateDatabase closing = open();
+        AsyncDatabase async = closing.async(null);
+        List<CompletableFuture<Void>> futures = new ArrayList<>();
+        CountDownLatch release = new CountDownLatch(1);
+        futures.add(async.transaction(TestTable.class, q -> {
+            try {
+                release.await(1, TimeUnit.SECONDS);
+            } catch (InterruptedException e) {
+                throw new RuntimeException(e);
+            }
+            q.insert(new TestTable(1L, "a", UUID.randomUUID(), UUID.randomUUID()));
+            return null;
+        }));
+        futures.add(async.insert(TestTable.class, new TestTable(2L, "b", UUID.randomUUID(), UUID.randomUUID())));
+        release.countDown();
+        closing.close();
+        for (CompletableFuture<Void> future : futures) {
+            Assert.assertTrue(future.isDone());
+            future.get();
+        }
+        Assert.assertEquals(2, db.auto(TestTable.class).count());
+    }
+
+    @Test
+    public void closeFailsDroppedOperations() throws Exception {
+        HibernateDatabase closing = open(Collections.singletonMap("asyncShutdownTimeout", 50));
+        AsyncDatabase async = closing.async(null);
+        CountDownLatch started = new CountDownLatch(1);
+        CountDownLatch release = new CountDownLatch(1);
+        CompletableFuture<Integer> blocking = async.transaction(TestTable.class, q -> {
+            started.countDown();
+            Uninterruptibles.awaitUninterruptibly(release);
+            return 0;
+        });
+        started.await();
+        CompletableFuture<Integer> dropped = async.count(TestTable.class, q -> {});
+        closing.close();
+        try {
+            dropped.get(1, TimeUnit.SECONDS);
+            Assert.fail();
+        } catch (ExecutionException e) {
+            Assert.assertEquals(RejectedExecutionException.class, e.getCause().getClass());
+        } finally {
+            release.countDown();
+        }
+        blocking.handle((result, e) -> null).get(1, TimeUnit.SECONDS);
+    }
+
+    @Test
+    public void asyncIsRejectedOnceCloseBegins() throws Exception {
+        HibernateDatabase closing = open();
+        AsyncDatabase async = closing.async(null);
+        CountDownLatch started = new CountDownLatch(1);
+        CountDownLatch release = new CountDownLatch(1);
+        CompletableFuture<Integer> blocking = async.transaction(TestTable.class, q -> {
+            started.countDown();
+            Uninterruptibles.awaitUninterruptibly(release);
+            return q.count();
+        });
+        started.await();
+        Thread closer = new Thread(closing::close);
+        closer.start();
+        try {
+            // close() waits for the blocking operation to drain
+            while (closer.getState() != Thread.State.TIMED_WAITING && closer.getState() != Thread.State.WAITING) {
+                Thread.sleep(10);
+            }
+            closing.async(null);
+            Assert.fail();
+        } catch (IllegalArgumentException expected) {
+        } finally {
+            release.countDown();
+            closer.join(10000);
+        }
+        Assert.assertEquals(0, (int) blocking.get(1, TimeUnit.SECONDS));
+    }
+}
@@ -0,0 +1,144 @@
+package org.librazy.provider.hibernate;
+
+import cat.nyaa.nyaacore.database.DatabaseUtils;
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Assume;
+import org.junit.Before;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+import java.util.stream.Collectors;
+import java.util.stream.LongStream;
+import java.util.stream.Stream;
+
+public class BulkInsertTest {
+    private HibernateDatabase db;
+
+    @BeforeClass
+    public static void register() {
+        DatabaseUtils.registerProvider("hibernate", new HibernateProvider());
+    }
+
+    @Before
+    public void prepareDatabase() {
+        db = open("bulk_db", 50);
+    }
+
+    @After
+    public void closeDatabase() {
+        db.close();
+    }
+
+    private static HibernateDatabase open(String name, int batchSize) {
+        Map<String, Object> conf = new HashMap<>();
+        conf.put("username", "sa");
+        conf.put("password", "");
+        conf.put("jdbc", "org.h2.Driver");
+        conf.put("url", "jdbc:h2:mem:" + name + ";");
+        conf.put("dialect", "org.hibernate.dialect.H2Dialect");
+        conf.put("classes", new Class<?>[]{TestTable.class, TestEntity.class});
+        conf.put("batchSize", batchSize);
+        HibernateDatabase db = DatabaseUtils.get("hibernate", null, conf);
+        db.connect();
+        db.auto(TestTable.class).delete();
+        db.auto(TestEntity.class).delete();
+        return db;
+    }
+
+    private static List<TestTable> rows(long from, long to) {
+        return LongStream.range(from, to)
+                .mapToObj(i -> new TestTable(i, "bulk", UUID.randomUUID(), UUID.randomUUID()))
+                .collect(Collectors.toList());
+    }
+
+    @Test
+    public void canInsertAllAuto() {
+        Assert.assertEquals(120, db.auto(TestTable.class).insertAll(rows(0, 120)));
+        Assert.assertEquals(120, db.auto(TestTable.class).whereEq("string", "bulk").count());
+    }
+
+    @Test
+    public void canInsertAllStream() {
+        Stream<TestTable> stream = rows(0, 75).stream();
+        Assert.assertEquals(75, db.auto(TestTable.class).insertAll(stream));
+        Assert.assertEquals(75, db.auto(TestTable.class).count());
+    }
+
+    @Test
+    public void canInsertAllInTransaction() {
+        TestTable kept = new TestTable(1000L, "kept", UUID.randomUUID(), UUID.randomUUID());
+        try (HibernateDatabase.HibernateQuery<TestTable> query = db.transaction(TestTable.class)) {
+            query.insert(kept);
+            Assert.assertEquals(130, query.insertAll(rows(0, 130)));
+            Assert.assertEquals(131, query.count());
+        }
+        Assert.assertEquals(131, db.auto(TestTable.class).count());
+    }
+
+    @Test
+    public void insertAllRunsGeneratorsForNonStatelessEntities() {
+        List<TestEntity> entities = new ArrayList<>();
+        for (int i = 0; i < 60; i++) {
+            entities.add(new TestEntity().setTest("gen"));
+        }
+        db.auto(TestEntity.class).insertAll(entities);
+        Assert.assertTrue(db.auto(TestEntity.class).select().stream().allMatch(e -> e.getDateTime() != null));
+    }
+
+    @Test
+    public void failedInsertAllRollsBack() {
+        List<TestTable> duplicated = rows(0, 60);
+        duplicated.add(new TestTable(3L, "duplicate", UUID.randomUUID(), UUID.randomUUID()));
+        try (HibernateDatabase.HibernateQuery<TestTable> query = db.transaction(TestTable.class)) {
+            query.insertAll(duplicated);
+            Assert.fail();
+        } catch (RuntimeException ignored) {
+        }
+        Assert.assertEquals(0, db.auto(TestTable.class).count());
+        try {
+            db.auto(TestTable.class).insertAll(duplicated);
+            Assert.fail();
+        } catch (RuntimeException ignored) {
+        }
+        Assert.assertEquals(0, db.auto(TestTable.class).count());
+    }
+
+    /**
+     * Rows/sec of insertAll against one insert() per row. Run with e.g. {@code -Dbench.rows=1000,100000,1000000}.
+     */
+    @Test
+    public void benchmarkInsertAll() {
+        String sizes = System.getProperty("bench.rows");
+        Assume.assumeNotNull(sizes);
+        for (String size : sizes.split(",")) {
+            int rows = Integer.parseInt(size.trim());
+            List<TestTable> data = rows(0, rows);
+
+            HibernateDatabase single = open("bulk_bench_single", 50);
+            long start = System.nanoTime();
+            try (HibernateDatabase.HibernateQuery<TestTable> query = single.transaction(TestTable.class)) {
+                for (TestTable row : data) {
+                    query.insert(row);
+                }
+            }
+            long singleNanos = System.nanoTime() - start;
+            single.close();
+
+            HibernateDatabase bulk = open("bulk_bench_bulk", 50);
+            start = System.nanoTime();
+            bulk.auto(TestTable.class).insertAll(data);
+            long bulkNanos = System.nanoTime() - start;
+            Assert.assertEquals(rows, bulk.auto(TestTable.class).count());
+            bulk.close();
+
+            System.out.printf("%,d rows: insert() %,.0f rows/s, insertAll() %,.0f rows/s%n",
+                    rows, rows * 1e9 / singleNanos, rows * 1e9 / bulkNanos);
+        }
+    }
+}
@@ -0,0 +1,168 @@
+package org.librazy.provider.hibernate;
+
+import cat.nyaa.nyaacore.database.DatabaseUtils;
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Assume;
+import org.junit.Before;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+public class ConcurrentTransactionTest {
+    private HibernateDatabase db;
+
+    @BeforeClass
+    public static void register() {
+        DatabaseUtils.registerProvider("hibernate", new HibernateProvider());
+    }
+
+    @Before
+    public void prepareDatabase() {
+        db = open(16);
+    }
+
+    @After
+    public void closeDatabase() {
+        db.close();
+    }
+
+    private static HibernateDatabase open(int poolSize) {
+        Map<String, Object> conf = new HashMap<>();
+        conf.put("username", "sa");
+        conf.put("password", "");
+        conf.put("jdbc", "org.h2.Driver");
+        conf.put("url", "jdbc:h2:mem:concurrent_db;");
+        conf.put("dialect", "org.hibernate.dialect.H2Dialect");
+        conf.put("classes", new Class<?>[]{TestTable.class});
+        conf.put("poolMaxSize", poolSize);
+        HibernateDatabase db = DatabaseUtils.get("hibernate", null, conf);
+        db.connect();
+        db.auto(TestTable.class).delete();
+        return db;
+    }
+
+    private static void runTransaction(HibernateDatabase db, long id, boolean commit) {
+        db.beginTransaction();
+        db.query(TestTable.class).insert(new TestTable(id, "t", UUID.randomUUID(), UUID.randomUUID()));
+        Assert.assertEquals(1, db.query(TestTable.class).whereEq("id", id).count());
+        if (commit) {
+            db.commitTransaction();
+        } else {
+            db.rollbackTransaction();
+        }
+    }
+
+    @Test
+    public void threadsRunIndependentTransactions() throws Exception {
+        int threads = 8;
+        int perThread = 50;
+        ExecutorService pool = Executors.newFixedThreadPool(threads);
+        CountDownLatch start = new CountDownLatch(1);
+        List<Future<?>> futures = new ArrayList<>();
+        for (int t = 0; t < threads; t++) {
+            long base = t * perThread;
+            futures.add(pool.submit(() -> {
+                start.await();
+                for (int i = 0; i < perThread; i++) {
+                    // every thread rolls back its odd transactions
+                    runTransaction(db, base + i, i % 2 == 0);
+                }
+                return null;
+            }));
+        }
+        start.countDown();
+        for (Future<?> future : futures) {
+            future.get(60, TimeUnit.SECONDS);
+        }
+        pool.shutdown();
+        Assert.assertEquals(threads * perThread / 2, db.auto(TestTable.class).count());
+    }
+
+    @Test
+    public void transactionsAreBoundToTheirThread() throws Exception {
+        db.beginTransaction();
+        db.query(TestTable.class).insert(new TestTable(1L, "mine", UUID.randomUUID(), UUID.randomUUID()));
+        ExecutorService other = Executors.newSingleThreadExecutor();
+        try {
+            Assert.assertEquals(0, (int) other.submit(() -> db.auto(TestTable.class).count()).get(10, TimeUnit.SECONDS));
+            other.submit(() -> {
+                db.beginTransaction();
+                db.query(TestTable.class).insert(new TestTable(2L, "theirs", UUID.randomUUID(), UUID.randomUUID()));
+                db.commitTransaction();
+            }).get(10, TimeUnit.SECONDS);
+            try {
+                other.submit(db::commitTransaction).get(10, TimeUnit.SECONDS);
+                Assert.fail();
+            } catch (ExecutionException e) {
+                Assert.assertTrue(e.getCause() instanceof IllegalStateException);
+            }
+        } finally {
+            other.shutdown();
+        }
+        Assert.assertEquals(2, db.query(TestTable.class).count());
+        db.rollbackTransaction();
+        Assert.assertEquals(1, db.auto(TestTable.class).count());
+    }
+
+    @Test(expected = IllegalStateException.class)
+    public void rejectsNestedTransactionOnSameThread() {
+        db.beginTransaction();
+        try {
+            db.transaction(TestTable.class);
+        } finally {
+            db.rollbackTransaction();
+        }
+    }
+
+    /**
+     * Transactions/sec with 1..N threads sharing one database. Run with e.g. {@code -Dbench.threads=1,2,4,8};
+     * {@code -Dbench.rttMicros=500} adds a pause inside every transaction standing in for the network round trip
+     * to a remote server, which an in-memory database does not have.
+     */
+    @Test
+    public void benchmarkConcurrentTransactions() throws Exception {
+        String counts = System.getProperty("bench.threads");
+        Assume.assumeNotNull(counts);
+        long millis = Long.getLong("bench.millis", 3000);
+        long rtt = TimeUnit.MICROSECONDS.toNanos(Long.getLong("bench.rttMicros", 0));
+        AtomicLong ids = new AtomicLong();
+        for (String count : counts.split(",")) {
+            int threads = Integer.parseInt(count.trim());
+            ExecutorService pool = Executors.newFixedThreadPool(threads);
+            AtomicLong done = new AtomicLong();
+            long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(millis);
+            List<Future<?>> futures = new ArrayList<>();
+            for (int t = 0; t < threads; t++) {
+                futures.add(pool.submit(() -> {
+                    while (System.nanoTime() < deadline) {
+                        db.beginTransaction();
+                        db.query(TestTable.class).insert(new TestTable(ids.incrementAndGet(), "t", UUID.randomUUID(), UUID.randomUUID()));
+                        if (rtt > 0) LockSupport.parkNanos(rtt);
+                        db.commitTransaction();
+                        done.incrementAndGet();
+                    }
+                    return null;
+                }));
+            }
+            for (Future<?> future : futures) {
+                future.get();
+            }
+            pool.shutdown();
+            System.out.printf("%d threads: %,.0f transactions/s%n", threads, done.get() * 1000.0 / millis);
+        }
+    }
+}
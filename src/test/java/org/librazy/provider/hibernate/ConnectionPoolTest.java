@@ -0,0 +1,117 @@
+package org.librazy.provider.hibernate;
+
+import cat.nyaa.nyaacore.database.DatabaseUtils;
+import org.junit.Assert;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+import java.sql.Connection;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+
+public class ConnectionPoolTest {
+    @BeforeClass
+    public static void register() {
+        DatabaseUtils.registerProvider("hibernate", new HibernateProvider());
+    }
+
+    private static HibernateDatabase open(String backend, int maxSize) {
+        Map<String, Object> conf = new HashMap<>();
+        conf.put("username", "sa");
+        conf.put("password", "");
+        conf.put("jdbc", "org.h2.Driver");
+        conf.put("url", "jdbc:h2:mem:pool_" + backend + ";");
+        conf.put("dialect", "org.hibernate.dialect.H2Dialect");
+        conf.put("classes", new Class<?>[]{TestTable.class});
+        conf.put("poolBackend", backend);
+        conf.put("poolMaxSize", maxSize);
+        conf.put("poolConnectionTimeout", 5000);
+        return DatabaseUtils.<HibernateDatabase>get("hibernate", null, conf).connect();
+    }
+
+    private static void runsQueries(String backend) throws InterruptedException {
+        HibernateDatabase db = open(backend, 4);
+        try {
+            db.auto(TestTable.class).delete();
+            db.auto(TestTable.class).insert(new TestTable(1L, "pool", UUID.randomUUID(), UUID.randomUUID()));
+            Assert.assertEquals(1, db.auto(TestTable.class).count());
+            // c3p0 tests returned connections asynchronously before they become idle again
+            long deadline = System.currentTimeMillis() + 3000;
+            while (db.getPoolMetrics().getActiveConnections() > 0 && System.currentTimeMillis() < deadline) {
+                Thread.sleep(10);
+            }
+            PoolMetrics metrics = db.getPoolMetrics();
+            Assert.assertEquals(backend, metrics.getBackend());
+            Assert.assertTrue(metrics.getCheckouts() >= 3);
+            Assert.assertEquals(0, metrics.getActiveConnections());
+            Assert.assertTrue(metrics.getIdleConnections() >= 1);
+            Assert.assertTrue(metrics.getCheckoutLatencyP50() <= metrics.getCheckoutLatencyP99());
+            Assert.assertTrue(metrics.getCheckoutLatencyP99() <= metrics.getMaxCheckoutLatency());
+        } finally {
+            db.close();
+        }
+    }
+
+    private static void reportsWaitingThreads(String backend) throws Exception {
+        HibernateDatabase db = open(backend, 1);
+        try {
+            Connection held = db.connectionPool().getDataSource().getConnection();
+            Assert.assertEquals(1, db.getPoolMetrics().getActiveConnections());
+            CompletableFuture<Integer> waiter = CompletableFuture.supplyAsync(() -> db.auto(TestTable.class).count());
+            long deadline = System.currentTimeMillis() + 3000;
+            while (db.getPoolMetrics().getWaitingThreads() == 0 && System.currentTimeMillis() < deadline) {
+                Thread.sleep(10);
+            }
+            Assert.assertEquals(1, db.getPoolMetrics().getWaitingThreads());
+            held.close();
+            waiter.get(5, TimeUnit.SECONDS);
+            Assert.assertEquals(0, db.getPoolMetrics().getWaitingThreads());
+        } finally {
+            db.close();
+        }
+    }
+
+    @Test
+    public void c3p0RunsQueries() throws Exception {
+        runsQueries("c3p0");
+    }
+
+    @Test
+    public void hikariRunsQueries() throws Exception {
+        runsQueries("hikari");
+    }
+
+    @Test
+    public void c3p0ReportsWaitingThreads() throws Exception {
+        reportsWaitingThreads("c3p0");
+    }
+
+    @Test
+    public void hikariReportsWaitingThreads() throws Exception {
+        reportsWaitingThreads("hikari");
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void rejectsUnknownBackend() {
+        open("dbcp", 1);
+    }
+
+    @Test
+    public void histogramPercentiles() {
+        LatencyHistogram histogram = new LatencyHistogram();
+        for (int i = 1; i <= 1000; i++) {
+            histogram.record(TimeUnit.MICROSECONDS.toNanos(i));
+        }
+        Assert.assertEquals(1000, histogram.getCount());
+        Assert.assertEquals(500.5, histogram.getMean(), 0.001);
+        Assert.assertEquals(500, histogram.getPercentile(50), 500 / 8);
+        Assert.assertEquals(990, histogram.getPercentile(99), 990 / 8);
+        Assert.assertTrue(histogram.getPercentile(100) >= 1000);
+        histogram.reset();
+        histogram.record(TimeUnit.MICROSECONDS.toNanos(7));
+        Assert.assertEquals(7, histogram.getPercentile(50));
+    }
+}
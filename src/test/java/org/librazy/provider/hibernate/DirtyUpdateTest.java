@@ -0,0 +1,128 @@
+package org.librazy.provider.hibernate;
+
+import cat.nyaa.nyaacore.database.DatabaseUtils;
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+
+public class DirtyUpdateTest {
+    private HibernateDatabase db;
+
+    @BeforeClass
+    public static void register() {
+        DatabaseUtils.registerProvider("hibernate", new HibernateProvider());
+    }
+
+    private void open(boolean dirtyTracking) {
+        Map<String, Object> conf = new HashMap<>();
+        conf.put("username", "sa");
+        conf.put("password", "");
+        conf.put("jdbc", "org.h2.Driver");
+        conf.put("url", "jdbc:h2:mem:dirty_db;");
+        conf.put("dialect", "org.hibernate.dialect.H2Dialect");
+        conf.put("classes", new Class<?>[]{TestTable.class});
+        conf.put("dirtyTracking", dirtyTracking);
+        conf.put("metrics", true);
+        db = DatabaseUtils.get("hibernate", null, conf);
+        db.connect();
+        db.auto(TestTable.class).delete();
+        for (long i = 0; i < 3; i++) {
+            db.auto(TestTable.class).insert(new TestTable(i, "row" + i, UUID.randomUUID(), UUID.randomUUID()));
+        }
+    }
+
+    @After
+    public void closeDatabase() {
+        db.close();
+    }
+
+    private TestTable load(long id) {
+        return db.auto(TestTable.class).whereEq("id", id).selectUnique();
+    }
+
+    /**
+     * Changes uuid behind the back of an entity loaded earlier; a later full update would overwrite it.
+     */
+    private UUID changeUuid(long id) {
+        UUID uuid = UUID.randomUUID();
+        db.auto(TestTable.class).whereEq("id", id).update(new TestTable(id, null, uuid, null), "uuid");
+        return uuid;
+    }
+
+    @Test
+    public void writesOnlyChangedColumns() {
+        open(true);
+        TestTable row = load(1);
+        UUID uuid = changeUuid(1);
+        row.string = "changed";
+        Assert.assertEquals(1, db.auto(TestTable.class).updateChanged(row));
+        TestTable reloaded = load(1);
+        Assert.assertEquals("changed", reloaded.string);
+        Assert.assertEquals(uuid, reloaded.uuid);
+        Assert.assertEquals("row0", load(0).string);
+    }
+
+    @Test
+    public void unchangedEntitySendsNothing() {
+        open(true);
+        TestTable row = load(1);
+        db.getQueryMetrics().reset();
+        Assert.assertEquals(0, db.auto(TestTable.class).updateChanged(row));
+        Assert.assertEquals(0, db.getQueryMetrics().snapshot().getPreparedStatements());
+        row.string = "changed";
+        Assert.assertEquals(1, db.auto(TestTable.class).updateChanged(row));
+        // the snapshot now holds the written state
+        Assert.assertEquals(0, db.auto(TestTable.class).updateChanged(row));
+        Assert.assertEquals(1, db.getQueryMetrics().snapshot().get(TestTable.class, QueryMetrics.Operation.UPDATE).getRows());
+    }
+
+    @Test
+    public void comparesAgainstDatabaseWithoutTracking() {
+        open(false);
+        TestTable row = load(2);
+        Assert.assertEquals(0, db.auto(TestTable.class).updateChanged(row));
+        row.string = "changed";
+        Assert.assertEquals(1, db.auto(TestTable.class).updateChanged(row));
+        Assert.assertEquals("changed", load(2).string);
+        Assert.assertEquals(0, db.auto(TestTable.class).updateChanged(new TestTable(5L, "missing", UUID.randomUUID(), UUID.randomUUID())));
+    }
+
+    @Test
+    public void updatesManagedEntityOnce() {
+        open(false);
+        UUID uuid;
+        try (HibernateDatabase.HibernateQuery<TestTable> query = db.transaction(TestTable.class)) {
+            TestTable row = query.whereEq("id", 0L).selectUnique();
+            uuid = row.uuid;
+            row.string = "changed";
+            db.getQueryMetrics().reset();
+            Assert.assertEquals(1, db.query(TestTable.class).updateChanged(row));
+            Assert.assertEquals(0, db.query(TestTable.class).updateChanged(row));
+        }
+        // the commit found the entity clean and did not flush it again
+        Assert.assertEquals(1, db.getQueryMetrics().snapshot().getPreparedStatements());
+        TestTable reloaded = load(0);
+        Assert.assertEquals("changed", reloaded.string);
+        Assert.assertEquals(uuid, reloaded.uuid);
+    }
+
+    @Test
+    public void leavesTheConditionsOfTheQueryAlone() {
+        open(true);
+        try (HibernateDatabase.HibernateQuery<TestTable> query = db.transaction(TestTable.class)) {
+            List<TestTable> rows = query.select();
+            rows.get(1).string = "first";
+            Assert.assertEquals(1, query.updateChanged(rows.get(1)));
+            rows.get(2).string = "second";
+            Assert.assertEquals(1, query.updateChanged(rows.get(2)));
+            Assert.assertEquals(3, query.count());
+        }
+        Assert.assertEquals("second", load(2).string);
+    }
+}
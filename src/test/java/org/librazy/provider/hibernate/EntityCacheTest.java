@@ -0,0 +1,192 @@
+package org.librazy.provider.hibernate;
+
+import cat.nyaa.nyaacore.database.DatabaseUtils;
+import org.hibernate.Cache;
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.UUID;
+import java.util.stream.Collectors;
+import java.util.stream.LongStream;
+
+public class EntityCacheTest {
+    private HibernateDatabase db;
+
+    @BeforeClass
+    public static void register() {
+        DatabaseUtils.registerProvider("hibernate", new HibernateProvider());
+    }
+
+    private void open(Map<String, Object> extra) {
+        Map<String, Object> conf = new HashMap<>();
+        conf.put("username", "sa");
+        conf.put("password", "");
+        conf.put("jdbc", "org.h2.Driver");
+        conf.put("url", "jdbc:h2:mem:cache_db;");
+        conf.put("dialect", "org.hibernate.dialect.H2Dialect");
+        conf.put("classes", new Class<?>[]{TestTable.class});
+        conf.put("secondLevelCache", true);
+        conf.put("cacheMode", "ALL");
+        conf.put("metrics", true);
+        conf.putAll(extra);
+        db = DatabaseUtils.get("hibernate", null, conf);
+        db.connect();
+        db.auto(TestTable.class).delete();
+        db.auto(TestTable.class).insertAll(LongStream.range(0, 10)
+                .mapToObj(i -> new TestTable(i, "row" + i, UUID.randomUUID(), UUID.randomUUID()))
+                .collect(Collectors.toList()));
+    }
+
+    private void open() {
+        open(Collections.emptyMap());
+    }
+
+    @After
+    public void closeDatabase() {
+        db.close();
+    }
+
+    private boolean cached(long id) {
+        Cache cache = db.currentFactory().getCache();
+        return cache.containsEntity(TestTable.class, id);
+    }
+
+    private static TestTable row(long id, String string) {
+        return new TestTable(id, string, UUID.randomUUID(), UUID.randomUUID());
+    }
+
+    @Test
+    public void servesEntitiesLoadedById() {
+        open();
+        Assert.assertFalse(cached(1));
+        Assert.assertEquals("row1", db.auto(TestTable.class).getById(1L).string);
+        Assert.assertTrue(cached(1));
+        db.currentFactory().getStatistics().clear();
+        Assert.assertEquals("row1", db.auto(TestTable.class).getById(1).string);
+        Assert.assertEquals(1, db.currentFactory().getStatistics().getSecondLevelCacheHitCount());
+    }
+
+    @Test
+    public void writesByIdInvalidateOnlyTheirEntries() {
+        open();
+        db.auto(TestTable.class).getAllById(Arrays.asList(0L, 1L, 2L, 3L));
+        db.auto(TestTable.class).whereEq("id", 1L).update(row(1, "changed"), "string");
+        Assert.assertFalse(cached(1));
+        Assert.assertTrue(cached(0));
+        Assert.assertTrue(cached(2));
+        Assert.assertEquals("changed", db.auto(TestTable.class).getById(1L).string);
+        Assert.assertTrue(cached(1));
+
+        db.auto(TestTable.class).whereIn("id", Arrays.asList(2L, 3L)).delete();
+        Assert.assertFalse(cached(2));
+        Assert.assertFalse(cached(3));
+        Assert.assertTrue(cached(0));
+        Assert.assertNull(db.auto(TestTable.class).getById(2L));
+
+        TestTable row = db.auto(TestTable.class).getById(0L);
+        row.string = "dirty";
+        db.auto(TestTable.class).updateChanged(row);
+        Assert.assertFalse(cached(0));
+        Assert.assertTrue(cached(1));
+        Assert.assertEquals("dirty", db.auto(TestTable.class).getById(0L).string);
+    }
+
+    @Test
+    public void otherWritesClearTheRegion() {
+        open();
+        db.auto(TestTable.class).getAllById(Arrays.asList(0L, 1L, 2L));
+        db.auto(TestTable.class).whereEq("string", "row0").update(row(0, "changed"), "string");
+        Assert.assertFalse(cached(0));
+        Assert.assertFalse(cached(1));
+        Assert.assertFalse(cached(2));
+        Assert.assertEquals("changed", db.auto(TestTable.class).getById(0L).string);
+    }
+
+    @Test
+    public void writesByIdDoNotKeepOtherWritesFromClearingTheRegion() {
+        open();
+        db.auto(TestTable.class).getAllById(Arrays.asList(0L, 1L, 2L));
+        try (HibernateDatabase.HibernateQuery<TestTable> query = db.transaction(TestTable.class)) {
+            query.whereEq("id", 1L).update(row(1, "by id"), "string");
+            Assert.assertTrue(cached(0));
+        }
+        db.beginTransaction();
+        db.auto(TestTable.class).whereEq("id", 1L).update(row(1, "by id again"), "string");
+        db.auto(TestTable.class).whereEq("string", "row2").update(row(2, "by string"), "string");
+        Assert.assertFalse(cached(0));
+        db.commitTransaction();
+        Assert.assertFalse(cached(0));
+        Assert.assertEquals("by string", db.auto(TestTable.class).getById(2L).string);
+    }
+
+    @Test
+    public void upsertsInvalidateTheirEntries() {
+        open();
+        db.auto(TestTable.class).getAllById(Arrays.asList(1L, 2L));
+        db.auto(TestTable.class).upsert(row(1, "upserted"), "string");
+        Assert.assertFalse(cached(1));
+        Assert.assertTrue(cached(2));
+        Assert.assertEquals("upserted", db.auto(TestTable.class).getById(1L).string);
+    }
+
+    @Test
+    public void rolledBackWritesLeaveNoStaleEntry() {
+        open();
+        db.auto(TestTable.class).getById(1L);
+        try (HibernateDatabase.HibernateQuery<TestTable> query = db.transaction(TestTable.class)) {
+            query.whereEq("id", 1L).update(row(1, "changed"), "string");
+            query.markRollbackOnly();
+        }
+        Assert.assertEquals("row1", db.auto(TestTable.class).getById(1L).string);
+        Assert.assertTrue(cached(1));
+    }
+
+    @Test
+    public void entriesExpireAfterTheirRegionTtl() throws InterruptedException {
+        Map<String, Object> region = new HashMap<>();
+        region.put("ttl", 50);
+        Map<String, Object> conf = new HashMap<>();
+        conf.put("cacheRegions", Collections.singletonMap("TestTable", region));
+        open(conf);
+        db.auto(TestTable.class).getById(1L);
+        Assert.assertTrue(cached(1));
+        Thread.sleep(150);
+        Assert.assertFalse(cached(1));
+    }
+
+    @Test
+    public void leastRecentlyUsedEntriesAreEvicted() {
+        open(Collections.singletonMap("cacheMaxSize", 2));
+        db.auto(TestTable.class).getById(0L);
+        db.auto(TestTable.class).getById(1L);
+        db.auto(TestTable.class).getById(0L);
+        db.auto(TestTable.class).getById(2L);
+        Assert.assertTrue(cached(0));
+        Assert.assertFalse(cached(1));
+        Assert.assertTrue(cached(2));
+    }
+
+    @Test
+    public void readOnlyStrategyEvictsWrittenEntries() {
+        open(Collections.singletonMap("cacheStrategy", "read-only"));
+        db.auto(TestTable.class).getAllById(Arrays.asList(1L, 2L));
+        Assert.assertTrue(cached(1));
+        db.auto(TestTable.class).whereEq("id", 1L).delete();
+        Assert.assertFalse(cached(1));
+        Assert.assertTrue(cached(2));
+        Assert.assertNull(db.auto(TestTable.class).getById(1L));
+    }
+
+    @Test
+    public void cacheIsOffByDefault() {
+        open(Collections.singletonMap("secondLevelCache", false));
+        db.auto(TestTable.class).getById(1L);
+        Assert.assertFalse(cached(1));
+    }
+}
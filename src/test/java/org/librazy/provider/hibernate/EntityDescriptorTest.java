@@ -0,0 +1,123 @@
+package org.librazy.provider.hibernate;
+
+import cat.nyaa.nyaacore.database.DatabaseUtils;
+import org.hibernate.UnknownEntityTypeException;
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.UUID;
+
+public class EntityDescriptorTest {
+    private HibernateDatabase db;
+
+    @BeforeClass
+    public static void register() {
+        DatabaseUtils.registerProvider("hibernate", new HibernateProvider());
+    }
+
+    @Before
+    public void prepareDatabase() {
+        Map<String, Object> conf = new HashMap<>();
+        conf.put("username", "sa");
+        conf.put("password", "");
+        conf.put("jdbc", "org.h2.Driver");
+        conf.put("url", "jdbc:h2:mem:descriptor_db;");
+        conf.put("dialect", "org.hibernate.dialect.H2Dialect");
+        conf.put("classes", new Class<?>[]{TestEntity.class, TestTable.class});
+        db = DatabaseUtils.get("hibernate", null, conf);
+        db.connect();
+    }
+
+    @After
+    public void closeDatabase() {
+        db.close();
+    }
+
+    @Test
+    public void mapsColumnsAndProperties() {
+        EntityDescriptor<TestTable> descriptor = db.descriptor(TestTable.class);
+        Assert.assertEquals("id", descriptor.getIdProperty());
+        Assert.assertEquals(Long.class, descriptor.getIdType());
+        Assert.assertEquals("uuid_indirect", descriptor.property("uuid_indirect"));
+        Assert.assertEquals("string", descriptor.property("string"));
+        Assert.assertNull(descriptor.property("missing"));
+        Assert.assertEquals(UUID.class, descriptor.javaType("uuid"));
+
+        EntityDescriptor<TestEntity> entity = db.descriptor(TestEntity.class);
+        Assert.assertEquals("dateTime", entity.property("timestamp"));
+        int index = entity.indexOf("test");
+        Assert.assertEquals("t1", entity.getPropertyValue(new TestEntity().setTest("t1"), index));
+    }
+
+    @Test
+    public void readsPropertiesThroughGeneratedGetters() {
+        EntityDescriptor<TestTable> descriptor = db.descriptor(TestTable.class);
+        TestTable row = new TestTable(1L, "s", UUID.randomUUID(), UUID.randomUUID());
+        for (int i = 0; i < descriptor.getPropertyCount(); i++) {
+            Assert.assertEquals(descriptor.getPersister().getPropertyValue(row, i), descriptor.getPropertyValue(row, i));
+            String getter = PropertyAccessors.getter(descriptor.getPersister().getEntityTuplizer().getGetter(i)).getClass().getName();
+            Assert.assertTrue(getter, getter.startsWith(TestTable.class.getName() + "$PropertyGetter$"));
+        }
+        Assert.assertArrayEquals(descriptor.getPersister().getPropertyValues(row), descriptor.getPropertyValues(row));
+
+        EntityDescriptor<TestEntity> entity = db.descriptor(TestEntity.class);
+        TestEntity value = new TestEntity().setTest("t").setUuid(UUID.randomUUID()).setDateTime(new java.util.Date());
+        Assert.assertArrayEquals(entity.getPersister().getPropertyValues(value), entity.getPropertyValues(value));
+    }
+
+    @Test
+    public void queriesDoNotLookUpTheMetamodel() {
+        db.auto(TestTable.class).count();
+        long lookups = EntityDescriptors.getMetamodelLookupCount();
+        for (long i = 0; i < 100; i++) {
+            db.auto(TestTable.class).insert(new TestTable(i, "s", UUID.randomUUID(), UUID.randomUUID()));
+            db.auto(TestTable.class).whereEq("uuid_indirect", UUID.randomUUID().toString()).select();
+            db.auto(TestTable.class).whereEq("id", i).update(new TestTable(i, "t", UUID.randomUUID(), UUID.randomUUID()), "string");
+        }
+        Assert.assertEquals(100, db.auto(TestTable.class).whereEq("string", "t").count());
+        Assert.assertEquals(lookups, EntityDescriptors.getMetamodelLookupCount());
+        db.updateTable(TestTable.class);
+        Assert.assertEquals(lookups + 1, EntityDescriptors.getMetamodelLookupCount());
+    }
+
+    @Test
+    public void descriptorsAreReplacedOnRebuild() {
+        EntityDescriptor<TestTable> before = db.descriptor(TestTable.class);
+        db.updateTable(TestTable.class);
+        Assert.assertNotSame(before, db.descriptor(TestTable.class));
+    }
+
+    @Test
+    public void coercesIntegralValuesWithinTheirRange() {
+        EntityDescriptor<TestEntity> entity = db.descriptor(TestEntity.class);
+        Assert.assertEquals(5, entity.coerceId(5L));
+        Assert.assertEquals(5, entity.coerceId("5"));
+        Assert.assertEquals(Integer.MIN_VALUE, entity.coerceId((long) Integer.MIN_VALUE));
+        Assert.assertEquals(4294967297L, db.descriptor(TestTable.class).coerceId(4294967297L));
+        for (Object id : new Object[]{4294967297L, (long) Integer.MAX_VALUE + 1, "4294967297", "row1"}) {
+            try {
+                entity.coerceId(id);
+                Assert.fail("coerced " + id);
+            } catch (IllegalArgumentException e) {
+                Assert.assertTrue(e.getMessage(), e.getMessage().contains("id"));
+            }
+        }
+        db.auto(TestEntity.class).insert(new TestEntity().setTest("row"));
+        try {
+            db.auto(TestEntity.class).getById(4294967297L);
+            Assert.fail();
+        } catch (IllegalArgumentException e) {
+            Assert.assertTrue(e.getMessage(), e.getMessage().contains("4294967297"));
+        }
+    }
+
+    @Test(expected = UnknownEntityTypeException.class)
+    public void rejectsUnknownEntity() {
+        db.descriptor(String.class);
+    }
+}
@@ -0,0 +1,99 @@
+package org.librazy.provider.hibernate;
+
+import cat.nyaa.nyaacore.database.DatabaseUtils;
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+import java.util.stream.Collectors;
+
+public class MultiGetTest {
+    private HibernateDatabase db;
+
+    @BeforeClass
+    public static void register() {
+        DatabaseUtils.registerProvider("hibernate", new HibernateProvider());
+    }
+
+    @Before
+    public void prepareDatabase() {
+        Map<String, Object> conf = new HashMap<>();
+        conf.put("username", "sa");
+        conf.put("password", "");
+        conf.put("jdbc", "org.h2.Driver");
+        conf.put("url", "jdbc:h2:mem:multiget_db;");
+        conf.put("dialect", "org.hibernate.dialect.H2Dialect");
+        conf.put("classes", new Class<?>[]{TestTable.class});
+        conf.put("multiGetBatchSize", 10);
+        conf.put("inChunkSize", 10);
+        conf.put("metrics", true);
+        db = DatabaseUtils.get("hibernate", null, conf);
+        db.connect();
+        db.auto(TestTable.class).delete();
+        List<TestTable> rows = new ArrayList<>();
+        for (long i = 0; i < 100; i++) {
+            rows.add(new TestTable(i, "row" + i, UUID.randomUUID(), UUID.randomUUID()));
+        }
+        db.auto(TestTable.class).insertAll(rows);
+    }
+
+    @After
+    public void closeDatabase() {
+        db.close();
+    }
+
+    private static List<Long> ids(List<TestTable> rows) {
+        return rows.stream().map(r -> r == null ? null : r.id).collect(Collectors.toList());
+    }
+
+    @Test
+    public void getsById() {
+        Assert.assertEquals("row42", db.auto(TestTable.class).getById(42L).string);
+        Assert.assertEquals("row42", db.auto(TestTable.class).getById(42).string);
+        Assert.assertNull(db.auto(TestTable.class).getById(1000L));
+        Assert.assertEquals("row7", db.readOnly(TestTable.class).getById(7L).string);
+    }
+
+    @Test
+    public void returnsResultsInInputOrder() {
+        List<Long> wanted = new ArrayList<>();
+        for (long i = 99; i >= 0; i -= 3) {
+            wanted.add(i);
+        }
+        db.getQueryMetrics().reset();
+        Assert.assertEquals(wanted, ids(db.auto(TestTable.class).getAllById(wanted)));
+        // 34 ids in batches of 10
+        Assert.assertEquals(4, db.getQueryMetrics().snapshot().getPreparedStatements());
+        Assert.assertEquals(wanted, ids(db.readOnly(TestTable.class).getAllById(wanted)));
+    }
+
+    @Test
+    public void missingIdsAreNullOrSkipped() {
+        List<Integer> wanted = Arrays.asList(5, 500, 3, 300);
+        Assert.assertEquals(Arrays.asList(5L, null, 3L, null), ids(db.auto(TestTable.class).getAllById(wanted)));
+        Assert.assertEquals(Arrays.asList(5L, 3L), ids(db.auto(TestTable.class).getAllById(wanted, false)));
+        Assert.assertEquals(Arrays.asList(5L, null, 3L, null), ids(db.readOnly(TestTable.class).getAllById(wanted)));
+        Assert.assertEquals(Arrays.asList(5L, 3L), ids(db.readOnly(TestTable.class).getAllById(wanted, false)));
+    }
+
+    @Test
+    public void usesEntitiesHeldBySession() {
+        try (HibernateDatabase.HibernateQuery<TestTable> query = db.transaction(TestTable.class)) {
+            TestTable held = query.getById(1L);
+            held.string = "unsaved";
+            List<TestTable> rows = db.query(TestTable.class).getAllById(Arrays.asList(2L, 1L));
+            Assert.assertSame(held, rows.get(1));
+            Assert.assertEquals("unsaved", rows.get(1).string);
+            query.markRollbackOnly();
+        }
+        Assert.assertEquals("row1", db.auto(TestTable.class).getById(1L).string);
+    }
+}
@@ -0,0 +1,101 @@
+package org.librazy.provider.hibernate;
+
+import cat.nyaa.nyaacore.database.DatabaseUtils;
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+import java.util.stream.Collectors;
+import java.util.stream.LongStream;
+import java.util.stream.Stream;
+
+public class PaginationTest {
+    private HibernateDatabase db;
+
+    @BeforeClass
+    public static void register() {
+        DatabaseUtils.registerProvider("hibernate", new HibernateProvider());
+    }
+
+    @Before
+    public void prepareDatabase() {
+        Map<String, Object> conf = new HashMap<>();
+        conf.put("username", "sa");
+        conf.put("password", "");
+        conf.put("jdbc", "org.h2.Driver");
+        conf.put("url", "jdbc:h2:mem:page_db;");
+        conf.put("dialect", "org.hibernate.dialect.H2Dialect");
+        conf.put("classes", new Class<?>[]{TestTable.class});
+        db = DatabaseUtils.get("hibernate", null, conf);
+        db.connect();
+        db.auto(TestTable.class).delete();
+        db.auto(TestTable.class).insertAll(LongStream.rangeClosed(1, 50)
+                .mapToObj(i -> new TestTable(i, "s" + (i % 5), UUID.randomUUID(), UUID.randomUUID()))
+                .collect(Collectors.toList()));
+    }
+
+    @After
+    public void closeDatabase() {
+        db.close();
+    }
+
+    private static List<Long> ids(List<TestTable> rows) {
+        return rows.stream().map(t -> t.id).collect(Collectors.toList());
+    }
+
+    @Test
+    public void canOrderLimitAndOffset() {
+        Assert.assertEquals(Arrays.asList(50L, 49L, 48L), ids(db.auto(TestTable.class).orderBy("id", true).limit(3).select()));
+        Assert.assertEquals(Arrays.asList(11L, 12L), ids(db.auto(TestTable.class).orderBy("id").limit(2).offset(10).select()));
+        Assert.assertEquals(Arrays.asList(10L, 15L), ids(db.auto(TestTable.class).whereEq("string", "s0").orderBy("id").limit(2).offset(1).select()));
+        try (Stream<TestTable> stream = db.auto(TestTable.class).orderBy("id", true).limit(4).stream()) {
+            Assert.assertEquals(Arrays.asList(50L, 49L, 48L, 47L), ids(stream.collect(Collectors.toList())));
+        }
+    }
+
+    @Test
+    public void canSeekThroughPages() {
+        List<Long> seen = new ArrayList<>();
+        List<TestTable> page = db.auto(TestTable.class).orderBy("string").orderBy("id", true).limit(7).select();
+        while (!page.isEmpty()) {
+            seen.addAll(ids(page));
+            TestTable last = page.get(page.size() - 1);
+            page = db.auto(TestTable.class).orderBy("string").orderBy("id", true).after(last).limit(7).select();
+        }
+        List<Long> expected = ids(db.auto(TestTable.class).orderBy("string").orderBy("id", true).select());
+        Assert.assertEquals(50, expected.size());
+        Assert.assertEquals(expected, seen);
+    }
+
+    @Test
+    public void canSeekWithWhereAndValues() {
+        List<TestTable> page = db.auto(TestTable.class).where("id", ">", 10L).orderBy("id").after(40L).limit(3).select();
+        Assert.assertEquals(Arrays.asList(41L, 42L, 43L), ids(page));
+    }
+
+    @Test
+    public void orderingIsPartOfThePlan() {
+        QueryPlanCache cache = db.getQueryPlanCache();
+        db.auto(TestTable.class).orderBy("id").select();
+        long misses = cache.getMissCount();
+        db.auto(TestTable.class).orderBy("id").limit(5).select();
+        Assert.assertEquals(misses, cache.getMissCount());
+        db.auto(TestTable.class).orderBy("id", true).select();
+        Assert.assertEquals(misses + 1, cache.getMissCount());
+        db.auto(TestTable.class).orderBy("id", true).after(3L).select();
+        Assert.assertEquals(misses + 2, cache.getMissCount());
+    }
+
+    @Test(expected = IllegalStateException.class)
+    public void sortKeyMustMatchOrdering() {
+        db.auto(TestTable.class).orderBy("string").orderBy("id").after(1L).select();
+    }
+}
@@ -0,0 +1,108 @@
+package org.librazy.provider.hibernate;
+
+import cat.nyaa.nyaacore.database.DatabaseUtils;
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+import javax.persistence.Tuple;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+
+public class ProjectionTest {
+    private HibernateDatabase db;
+    private final UUID[] uuids = new UUID[10];
+
+    @BeforeClass
+    public static void register() {
+        DatabaseUtils.registerProvider("hibernate", new HibernateProvider());
+    }
+
+    @Before
+    public void prepareDatabase() {
+        Map<String, Object> conf = new HashMap<>();
+        conf.put("username", "sa");
+        conf.put("password", "");
+        conf.put("jdbc", "org.h2.Driver");
+        conf.put("url", "jdbc:h2:mem:projection_db;");
+        conf.put("dialect", "org.hibernate.dialect.H2Dialect");
+        conf.put("classes", new Class<?>[]{TestTable.class});
+        db = DatabaseUtils.get("hibernate", null, conf);
+        db.connect();
+        db.auto(TestTable.class).delete();
+        for (int i = 0; i < uuids.length; i++) {
+            uuids[i] = UUID.randomUUID();
+            db.auto(TestTable.class).insert(new TestTable((long) i, "name" + i, uuids[i], UUID.randomUUID()));
+        }
+    }
+
+    @After
+    public void closeDatabase() {
+        db.close();
+    }
+
+    public static class NameById {
+        final long id;
+        final String name;
+
+        public NameById(Long id, String name) {
+            this.id = id;
+            this.name = name;
+        }
+    }
+
+    @Test
+    public void canSelectColumns() {
+        List<Object[]> rows = db.auto(TestTable.class).whereEq("uuid", uuids[3].toString()).selectColumns("string");
+        Assert.assertEquals(1, rows.size());
+        Assert.assertArrayEquals(new Object[]{"name3"}, rows.get(0));
+        rows = db.auto(TestTable.class).where("id", ">=", 8L).orderBy("id", true).selectColumns("id", "uuid");
+        Assert.assertEquals(2, rows.size());
+        Assert.assertArrayEquals(new Object[]{9L, uuids[9]}, rows.get(0));
+        Assert.assertArrayEquals(new Object[]{8L, uuids[8]}, rows.get(1));
+    }
+
+    @Test
+    public void canSelectTuples() {
+        List<Tuple> tuples = db.auto(TestTable.class).orderBy("id").limit(2).selectTuples("uuid", "string");
+        Assert.assertEquals(2, tuples.size());
+        Assert.assertEquals(uuids[0], tuples.get(0).get("uuid", UUID.class));
+        Assert.assertEquals("name1", tuples.get(1).get("string"));
+        Assert.assertEquals("name1", tuples.get(1).get(1, String.class));
+        Assert.assertEquals(String.class, tuples.get(0).getElements().get(1).getJavaType());
+        Assert.assertEquals(uuids[1], tuples.get(1).get(tuples.get(1).getElements().get(0)));
+    }
+
+    @Test
+    public void canSelectDtos() {
+        List<NameById> names = db.auto(TestTable.class).where("id", "<", 3L).orderBy("id").selectAs(NameById.class, "id", "string");
+        Assert.assertEquals(3, names.size());
+        Assert.assertEquals(2, names.get(2).id);
+        Assert.assertEquals("name2", names.get(2).name);
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void rejectsDtoWithoutMatchingConstructor() {
+        db.auto(TestTable.class).selectAs(NameById.class, "string", "id");
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void rejectsUnknownColumn() {
+        db.auto(TestTable.class).selectColumns("nonexistent");
+    }
+
+    @Test
+    public void projectionsDoNotManageEntities() {
+        try (HibernateDatabase.HibernateQuery<TestTable> query = db.transaction(TestTable.class)) {
+            Assert.assertEquals(10, query.selectColumns("id", "string").size());
+            Assert.assertEquals(10, query.selectAs(NameById.class, "id", "string").size());
+            Assert.assertEquals(0, query.getSession().getStatistics().getEntityCount());
+            Assert.assertEquals(10, query.select().size());
+            Assert.assertEquals(10, query.getSession().getStatistics().getEntityCount());
+        }
+    }
+}
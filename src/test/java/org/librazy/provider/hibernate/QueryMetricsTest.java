@@ -0,0 +1,198 @@
+package org.librazy.provider.hibernate;
+
+import cat.nyaa.nyaacore.database.DatabaseUtils;
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+import java.util.logging.Handler;
+import java.util.logging.LogRecord;
+import java.util.logging.Logger;
+import java.util.stream.Collectors;
+import java.util.stream.LongStream;
+import java.util.stream.Stream;
+
+public class QueryMetricsTest {
+    private HibernateDatabase db;
+
+    @BeforeClass
+    public static void register() {
+        DatabaseUtils.registerProvider("hibernate", new HibernateProvider());
+    }
+
+    private HibernateDatabase open(Map<String, Object> extra) {
+        Map<String, Object> conf = new HashMap<>();
+        conf.put("username", "sa");
+        conf.put("password", "");
+        conf.put("jdbc", "org.h2.Driver");
+        conf.put("url", "jdbc:h2:mem:metrics_db;");
+        conf.put("dialect", "org.hibernate.dialect.H2Dialect");
+        conf.put("classes", new Class<?>[]{TestTable.class});
+        conf.putAll(extra);
+        db = DatabaseUtils.get("hibernate", null, conf);
+        db.connect();
+        db.auto(TestTable.class).delete();
+        return db;
+    }
+
+    private HibernateDatabase open() {
+        Map<String, Object> conf = new HashMap<>();
+        conf.put("metrics", true);
+        open(conf);
+        db.getQueryMetrics().reset();
+        return db;
+    }
+
+    @After
+    public void closeDatabase() {
+        db.close();
+    }
+
+    private void insert(int rows) {
+        db.auto(TestTable.class).insertAll(LongStream.range(0, rows)
+                .mapToObj(i -> new TestTable(i, i % 2 == 0 ? "even" : "odd", UUID.randomUUID(), UUID.randomUUID()))
+                .collect(Collectors.toList()));
+    }
+
+    @Test
+    public void countsOperationsAndRows() {
+        open();
+        insert(10);
+        db.auto(TestTable.class).insert(new TestTable(10L, "even", UUID.randomUUID(), UUID.randomUUID()));
+        Assert.assertEquals(6, db.auto(TestTable.class).whereEq("string", "even").select().size());
+        Assert.assertEquals(5, db.auto(TestTable.class).whereEq("string", "odd").select().size());
+        Assert.assertEquals(11, db.auto(TestTable.class).count());
+        TestTable row = new TestTable(0L, "changed", UUID.randomUUID(), UUID.randomUUID());
+        db.auto(TestTable.class).whereEq("string", "odd").update(row, "string");
+        db.auto(TestTable.class).whereEq("string", "changed").delete();
+        try (Stream<TestTable> stream = db.auto(TestTable.class).stream()) {
+            Assert.assertEquals(6, stream.count());
+        }
+
+        QueryMetrics.Snapshot snapshot = db.getQueryMetrics().snapshot();
+        QueryMetrics.OperationStats inserts = snapshot.get(TestTable.class, QueryMetrics.Operation.INSERT);
+        Assert.assertEquals(2, inserts.getLatency().getCount());
+        Assert.assertEquals(11, inserts.getRows());
+        QueryMetrics.OperationStats selects = snapshot.get(TestTable.class, QueryMetrics.Operation.SELECT);
+        Assert.assertEquals(2, selects.getLatency().getCount());
+        Assert.assertEquals(11, selects.getRows());
+        Assert.assertTrue(selects.getLatency().getP50() > 0);
+        Assert.assertTrue(selects.getLatency().getP99() >= selects.getLatency().getP50());
+        Assert.assertEquals(5, snapshot.get(TestTable.class, QueryMetrics.Operation.UPDATE).getRows());
+        Assert.assertEquals(5, snapshot.get(TestTable.class, QueryMetrics.Operation.DELETE).getRows());
+        Assert.assertEquals(6, snapshot.get(TestTable.class, QueryMetrics.Operation.STREAM).getRows());
+        Assert.assertEquals(1, snapshot.get(TestTable.class, QueryMetrics.Operation.COUNT).getLatency().getCount());
+        Assert.assertNull(snapshot.get(TestTable.class, QueryMetrics.Operation.ROLLBACK));
+        // every auto() query commits its own transaction on close
+        Assert.assertEquals(8, snapshot.get(TestTable.class, QueryMetrics.Operation.COMMIT).getLatency().getCount());
+        Assert.assertEquals(8, snapshot.getSessionHold().getCount());
+        Assert.assertTrue(snapshot.getQueryExecutions() > 0);
+        Assert.assertTrue(snapshot.getPreparedStatements() > 0);
+        Assert.assertEquals(0, snapshot.getSlowQueries());
+    }
+
+    @Test
+    public void recordsFailuresAndTransactionHolds() {
+        open();
+        insert(1);
+        db.getQueryMetrics().reset();
+        try (HibernateDatabase.HibernateQuery<TestTable> query = db.transaction(TestTable.class)) {
+            query.insert(new TestTable(1L, "x", UUID.randomUUID(), UUID.randomUUID()));
+            query.markRollbackOnly();
+        }
+        try {
+            db.auto(TestTable.class).insertAll(LongStream.range(0, 2)
+                    .mapToObj(i -> new TestTable(0L, "dup", UUID.randomUUID(), UUID.randomUUID()))
+                    .collect(Collectors.toList()));
+            Assert.fail();
+        } catch (RuntimeException ignored) {
+        }
+        QueryMetrics.Snapshot snapshot = db.getQueryMetrics().snapshot();
+        // the failed insertAll() rolls back its own transaction on close
+        Assert.assertEquals(1, snapshot.get(TestTable.class, QueryMetrics.Operation.ROLLBACK).getLatency().getCount());
+        Assert.assertEquals(1, snapshot.get(TestTable.class, QueryMetrics.Operation.INSERT).getFailures());
+        Assert.assertEquals(1, snapshot.getTransactionHold().getCount());
+        Assert.assertEquals(1, db.auto(TestTable.class).count());
+    }
+
+    /**
+     * @return the messages logged while running {@code action}
+     */
+    private static List<String> logged(Runnable action) {
+        List<String> messages = new ArrayList<>();
+        Logger log = Logger.getLogger("HibernateProvider");
+        Handler handler = new Handler() {
+            @Override
+            public void publish(LogRecord record) {
+                messages.add(record.getMessage());
+            }
+
+            @Override
+            public void flush() {
+            }
+
+            @Override
+            public void close() {
+            }
+        };
+        log.addHandler(handler);
+        try {
+            action.run();
+        } finally {
+            log.removeHandler(handler);
+        }
+        return messages;
+    }
+
+    @Test
+    public void logsSlowQueries() {
+        Map<String, Object> conf = new HashMap<>();
+        conf.put("metrics", true);
+        conf.put("slowQueryThreshold", 1);
+        open(conf);
+        insert(2000);
+        db.getQueryMetrics().reset();
+        List<String> messages = logged(() -> {
+            for (int i = 0; i < 20; i++) {
+                db.auto(TestTable.class).whereEq("string", "even").select();
+            }
+        });
+        Assert.assertFalse(messages.isEmpty());
+        Assert.assertTrue(messages.get(0), messages.get(0).startsWith("Slow select on TestTable"));
+        Assert.assertTrue(messages.get(0), messages.get(0).contains("(1000 rows)"));
+        Assert.assertTrue(messages.get(0), messages.get(0).endsWith(": select TestTable where string = ?"));
+        Assert.assertEquals(messages.size(), db.getQueryMetrics().snapshot().getSlowQueries());
+    }
+
+    @Test
+    public void slowOperationsLogTheirOwnStatement() {
+        Map<String, Object> conf = new HashMap<>();
+        conf.put("metrics", true);
+        conf.put("slowQueryThreshold", 1);
+        open(conf);
+        List<String> messages = logged(() -> {
+            db.auto(TestTable.class).whereEq("string", "even").select();
+            insert(2000);
+        });
+        String insert = messages.stream().filter(m -> m.startsWith("Slow insert on TestTable")).findFirst().orElse(null);
+        Assert.assertNotNull(messages.toString(), insert);
+        Assert.assertTrue(insert, insert.endsWith(": insertAll TestTable [2000 rows]"));
+        for (String message : messages) {
+            if (message.startsWith("Slow commit")) {
+                Assert.assertTrue(message, message.endsWith(": commit"));
+            }
+        }
+    }
+
+    @Test(expected = IllegalStateException.class)
+    public void metricsAreOffByDefault() {
+        open(new HashMap<>());
+        db.getQueryMetrics();
+    }
+}
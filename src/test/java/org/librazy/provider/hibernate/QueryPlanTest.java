@@ -0,0 +1,123 @@
+package org.librazy.provider.hibernate;
+
+import cat.nyaa.nyaacore.database.DatabaseUtils;
+import com.google.common.collect.HashBasedTable;
+import com.google.common.util.concurrent.Uninterruptibles;
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+import java.sql.SQLException;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+public class QueryPlanTest {
+    private HibernateDatabase db;
+
+    @BeforeClass
+    public static void register() {
+        DatabaseUtils.registerProvider("hibernate", new HibernateProvider());
+    }
+
+    @Before
+    public void prepareDatabase() {
+        Map<String, Object> conf = new HashMap<>();
+        conf.put("username", "sa");
+        conf.put("password", "");
+        conf.put("jdbc", "org.h2.Driver");
+        conf.put("url", "jdbc:h2:mem:plan_db;");
+        conf.put("dialect", "org.hibernate.dialect.H2Dialect");
+        conf.put("classes", new Class<?>[]{TestTable.class});
+        conf.put("planCacheSize", 4);
+        db = DatabaseUtils.get("hibernate", null, conf);
+        db.connect();
+        db.auto(TestTable.class).delete();
+        for (long i = 1; i <= 10; i++) {
+            db.auto(TestTable.class).insert(new TestTable(i, i % 2 == 0 ? "even" : "odd", UUID.randomUUID(), UUID.randomUUID()));
+        }
+    }
+
+    @After
+    public void closeDatabase() {
+        db.close();
+    }
+
+    @Test
+    public void sameShapeReusesPlan() {
+        QueryPlanCache cache = db.getQueryPlanCache();
+        Assert.assertEquals(5, db.auto(TestTable.class).whereEq("string", "odd").count());
+        long misses = cache.getMissCount();
+        long hits = cache.getHitCount();
+        Assert.assertEquals(5, db.auto(TestTable.class).whereEq("string", "even").count());
+        Assert.assertEquals(3, db.auto(TestTable.class).where("id", ">", 7L).count());
+        Assert.assertEquals(misses + 1, cache.getMissCount());
+        Assert.assertEquals(hits + 1, cache.getHitCount());
+    }
+
+    @Test
+    public void shapeIgnoresPredicateOrder() {
+        QueryPlanCache cache = db.getQueryPlanCache();
+        Assert.assertEquals(3, db.auto(TestTable.class).where("id", ">", 5L).whereEq("string", "even").select().size());
+        long misses = cache.getMissCount();
+        Assert.assertEquals(1, db.auto(TestTable.class).whereEq("string", "odd").where("id", ">", 7L).select().size());
+        Assert.assertEquals(misses, cache.getMissCount());
+    }
+
+    @Test
+    public void cacheIsBounded() {
+        db.auto(TestTable.class).where("id", ">", 1L).count();
+        db.auto(TestTable.class).where("id", "<", 1L).count();
+        db.auto(TestTable.class).where("id", ">=", 1L).count();
+        db.auto(TestTable.class).where("id", "<=", 1L).count();
+        db.auto(TestTable.class).where("string", " LIKE ", "o%").count();
+        Assert.assertEquals(4, db.getQueryPlanCache().size());
+    }
+
+    @Test
+    public void compilingOnePlanDoesNotBlockOthers() throws Exception {
+        QueryPlanCache cache = db.getQueryPlanCache();
+        EntityDescriptor<TestTable> descriptor = db.descriptor(TestTable.class);
+        QueryPlan.Shape slow = QueryPlan.Shape.of(TestTable.class, QueryPlan.Operation.SELECT, HashBasedTable.create(), null);
+        QueryPlan.Shape fast = QueryPlan.Shape.of(TestTable.class, QueryPlan.Operation.COUNT, HashBasedTable.create(), null);
+        CountDownLatch compiling = new CountDownLatch(1);
+        CountDownLatch release = new CountDownLatch(1);
+        CompletableFuture<QueryPlan> slowPlan = CompletableFuture.supplyAsync(() -> cache.get(slow, shape -> {
+            compiling.countDown();
+            Uninterruptibles.awaitUninterruptibly(release);
+            return QueryPlan.compile(descriptor, shape);
+        }));
+        compiling.await();
+        try {
+            Assert.assertNotNull(CompletableFuture.supplyAsync(() -> cache.get(fast, shape -> QueryPlan.compile(descriptor, shape))).get(5, TimeUnit.SECONDS));
+        } finally {
+            release.countDown();
+        }
+        Assert.assertSame(slowPlan.join(), cache.get(slow, shape -> QueryPlan.compile(descriptor, shape)));
+    }
+
+    @Test
+    public void updateAndDeleteBindValues() {
+        UUID uuid = UUID.randomUUID();
+        db.auto(TestTable.class).whereEq("string", "odd").update(new TestTable(0L, "changed", uuid, uuid), "uuid");
+        Assert.assertEquals(5, db.auto(TestTable.class).whereEq("uuid", uuid.toString()).count());
+        Assert.assertEquals(0, db.auto(TestTable.class).whereEq("string", "changed").count());
+        db.auto(TestTable.class).whereEq("uuid", uuid).delete();
+        Assert.assertEquals(5, db.auto(TestTable.class).count());
+    }
+
+    @Test
+    public void unsupportedOperatorIsRejected() {
+        try {
+            db.auto(TestTable.class).where("id", " throw ", 1L).count();
+            Assert.fail();
+        } catch (RuntimeException e) {
+            Assert.assertEquals(SQLException.class, e.getCause().getClass());
+        }
+    }
+}
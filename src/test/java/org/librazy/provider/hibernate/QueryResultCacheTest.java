@@ -0,0 +1,169 @@
+package org.librazy.provider.hibernate;
+
+import cat.nyaa.nyaacore.database.DatabaseUtils;
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+import java.util.stream.Collectors;
+import java.util.stream.LongStream;
+
+public class QueryResultCacheTest {
+    private HibernateDatabase db;
+    private QueryResultCache cache;
+
+    @BeforeClass
+    public static void register() {
+        DatabaseUtils.registerProvider("hibernate", new HibernateProvider());
+    }
+
+    private void open(Map<String, Object> extra) {
+        Map<String, Object> conf = new HashMap<>();
+        conf.put("username", "sa");
+        conf.put("password", "");
+        conf.put("jdbc", "org.h2.Driver");
+        conf.put("url", "jdbc:h2:mem:result_cache_db;");
+        conf.put("dialect", "org.hibernate.dialect.H2Dialect");
+        conf.put("classes", new Class<?>[]{TestTable.class});
+        conf.put("resultCache", true);
+        conf.putAll(extra);
+        db = DatabaseUtils.get("hibernate", null, conf);
+        db.connect();
+        db.auto(TestTable.class).delete();
+        db.auto(TestTable.class).insertAll(LongStream.range(0, 10)
+                .mapToObj(i -> row(i, "row" + i))
+                .collect(Collectors.toList()));
+        cache = db.getResultCache();
+    }
+
+    private void open() {
+        open(Collections.emptyMap());
+    }
+
+    @After
+    public void closeDatabase() {
+        db.close();
+    }
+
+    private static TestTable row(long id, String string) {
+        return new TestTable(id, string, UUID.randomUUID(), UUID.randomUUID());
+    }
+
+    @Test
+    public void repeatedQueriesAreServedFromTheCache() {
+        open();
+        Assert.assertEquals(1, db.auto(TestTable.class).whereEq("string", "row1").select().size());
+        Assert.assertEquals("row1", db.auto(TestTable.class).whereEq("string", "row1").selectUnique().string);
+        Assert.assertEquals(10, db.auto(TestTable.class).count());
+        Assert.assertEquals(10, db.auto(TestTable.class).count());
+        Assert.assertEquals(1, db.readOnly(TestTable.class).whereEq("string", "row1").count());
+        Assert.assertEquals(0, db.auto(TestTable.class).whereEq("string", "missing").count());
+        Assert.assertEquals(2, cache.getHitCount());
+        Assert.assertEquals(4, cache.getMissCount());
+        Assert.assertEquals(1.0 / 3, cache.getHitRatio(), 1e-9);
+    }
+
+    @Test
+    public void boundValuesArePartOfTheKey() {
+        open();
+        Assert.assertEquals("row1", db.auto(TestTable.class).whereEq("string", "row1").selectUnique().string);
+        Assert.assertEquals("row2", db.auto(TestTable.class).whereEq("string", "row2").selectUnique().string);
+        Assert.assertEquals(3, db.auto(TestTable.class).orderBy("id").limit(3).offset(2).select().size());
+        Assert.assertEquals(2L, (long) db.auto(TestTable.class).orderBy("id").limit(3).offset(2).select().get(0).id);
+        Assert.assertEquals(5L, (long) db.auto(TestTable.class).orderBy("id").limit(3).offset(5).select().get(0).id);
+        Assert.assertEquals(1, cache.getHitCount());
+    }
+
+    @Test
+    public void writesInvalidateTheirTable() {
+        open();
+        Assert.assertEquals(10, db.auto(TestTable.class).count());
+        db.auto(TestTable.class).insert(row(10, "row10"));
+        Assert.assertEquals(11, db.auto(TestTable.class).count());
+        db.auto(TestTable.class).whereEq("id", 10L).update(row(10, "changed"), "string");
+        Assert.assertEquals("changed", db.auto(TestTable.class).whereEq("id", 10L).selectUnique().string);
+        db.auto(TestTable.class).whereEq("id", 10L).delete();
+        Assert.assertNull(db.auto(TestTable.class).whereEq("id", 10L).selectUnique());
+        Assert.assertEquals(10, db.auto(TestTable.class).count());
+        Assert.assertEquals(0, cache.getHitCount());
+        Assert.assertTrue(cache.getInvalidationCount() > 0);
+    }
+
+    @Test
+    public void transactionsInvalidateOnCompletion() {
+        open();
+        Assert.assertEquals(10, db.auto(TestTable.class).count());
+        try (HibernateDatabase.HibernateQuery<TestTable> query = db.transaction(TestTable.class)) {
+            query.insert(row(10, "row10"));
+            // may cache what the transaction has not committed yet
+            db.auto(TestTable.class).count();
+        }
+        Assert.assertEquals(11, db.auto(TestTable.class).count());
+    }
+
+    @Test
+    public void transactionalQueriesBypassTheCache() {
+        open();
+        try (HibernateDatabase.HibernateQuery<TestTable> query = db.transaction(TestTable.class)) {
+            Assert.assertEquals(10, query.count());
+            Assert.assertEquals(10, query.count());
+        }
+        Assert.assertEquals(0, cache.getHitCount() + cache.getMissCount());
+    }
+
+    @Test
+    public void returnedEntitiesAreCopies() {
+        open();
+        TestTable first = db.auto(TestTable.class).whereEq("id", 1L).selectUnique();
+        first.string = "modified";
+        TestTable second = db.auto(TestTable.class).whereEq("id", 1L).selectUnique();
+        Assert.assertEquals(1, cache.getHitCount());
+        Assert.assertEquals("row1", second.string);
+        second.string = "again";
+        Assert.assertEquals("row1", db.auto(TestTable.class).whereEq("id", 1L).selectUnique().string);
+    }
+
+    @Test
+    public void entriesExpireAfterTtl() throws InterruptedException {
+        open(Collections.singletonMap("resultCacheTtl", 50));
+        db.auto(TestTable.class).count();
+        Thread.sleep(150);
+        db.auto(TestTable.class).count();
+        Assert.assertEquals(0, cache.getHitCount());
+    }
+
+    @Test
+    public void entriesExpireByDefault() {
+        open();
+        Assert.assertEquals(10000, cache.getTtlMillis());
+        db.close();
+        open(Collections.singletonMap("resultCacheTtl", 0));
+        Assert.assertEquals(0, cache.getTtlMillis());
+    }
+
+    @Test
+    public void leastRecentlyUsedEntriesAreEvicted() {
+        open(Collections.singletonMap("resultCacheMaxSize", 2));
+        db.auto(TestTable.class).whereEq("id", 0L).count();
+        db.auto(TestTable.class).whereEq("id", 1L).count();
+        db.auto(TestTable.class).whereEq("id", 0L).count();
+        db.auto(TestTable.class).whereEq("id", 2L).count();
+        Assert.assertEquals(2, cache.size());
+        Assert.assertEquals(1, cache.getEvictionCount());
+        db.auto(TestTable.class).whereEq("id", 0L).count();
+        Assert.assertEquals(2, cache.getHitCount());
+    }
+
+    @Test(expected = IllegalStateException.class)
+    public void cacheIsOffByDefault() {
+        open(Collections.singletonMap("resultCache", false));
+        List<TestTable> rows = db.auto(TestTable.class).select();
+        Assert.assertEquals(10, rows.size());
+    }
+}
@@ -0,0 +1,126 @@
+package org.librazy.provider.hibernate;
+
+import cat.nyaa.nyaacore.database.DatabaseUtils;
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Assume;
+import org.junit.Before;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+import java.lang.management.ManagementFactory;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+import java.util.function.Supplier;
+import java.util.stream.Collectors;
+import java.util.stream.LongStream;
+import java.util.stream.Stream;
+
+public class ReadOnlyTest {
+    private HibernateDatabase db;
+
+    @BeforeClass
+    public static void register() {
+        DatabaseUtils.registerProvider("hibernate", new HibernateProvider());
+    }
+
+    @Before
+    public void prepareDatabase() {
+        Map<String, Object> conf = new HashMap<>();
+        conf.put("username", "sa");
+        conf.put("password", "");
+        conf.put("jdbc", "org.h2.Driver");
+        conf.put("url", "jdbc:h2:mem:readonly_db;");
+        conf.put("dialect", "org.hibernate.dialect.H2Dialect");
+        conf.put("classes", new Class<?>[]{TestTable.class});
+        db = DatabaseUtils.get("hibernate", null, conf);
+        db.connect();
+        db.auto(TestTable.class).delete();
+        db.auto(TestTable.class).insertAll(LongStream.range(0, 100)
+                .mapToObj(i -> new TestTable(i, i < 50 ? "low" : "high", UUID.randomUUID(), UUID.randomUUID()))
+                .collect(Collectors.toList()));
+    }
+
+    @After
+    public void closeDatabase() {
+        db.close();
+    }
+
+    @Test
+    public void canReadStateless() {
+        Assert.assertEquals(50, db.readOnly(TestTable.class).whereEq("string", "low").select().size());
+        Assert.assertEquals(100, db.readOnly(TestTable.class).count());
+        Assert.assertEquals("high", db.readOnly(TestTable.class).whereEq("id", 70L).selectUnique().string);
+        Assert.assertEquals(3, db.readOnly(TestTable.class).orderBy("id").limit(3).selectColumns("id").size());
+        try (Stream<TestTable> stream = db.readOnly(TestTable.class).stream()) {
+            Assert.assertEquals(100, stream.count());
+        }
+    }
+
+    @Test
+    public void changesToReadEntitiesAreNotWritten() {
+        TestTable row = db.readOnly(TestTable.class).whereEq("id", 1L).selectUnique();
+        row.string = "changed";
+        Assert.assertEquals("low", db.auto(TestTable.class).whereEq("id", 1L).selectUnique().string);
+    }
+
+    @Test
+    public void readsInsideTransactionAreReadOnly() {
+        try (HibernateDatabase.HibernateQuery<TestTable> query = db.transaction(TestTable.class)) {
+            query.insert(new TestTable(100L, "new", UUID.randomUUID(), UUID.randomUUID()));
+            TestTable row = db.readOnly(TestTable.class).whereEq("id", 100L).selectUnique();
+            Assert.assertNotNull(row);
+            TestTable other = db.readOnly(TestTable.class).whereEq("id", 2L).selectUnique();
+            other.string = "changed";
+        }
+        Assert.assertEquals(101, db.auto(TestTable.class).count());
+        Assert.assertEquals("low", db.auto(TestTable.class).whereEq("id", 2L).selectUnique().string);
+    }
+
+    @Test
+    public void rejectsWrites() {
+        TestTable row = new TestTable(200L, "x", UUID.randomUUID(), UUID.randomUUID());
+        for (Runnable write : new Runnable[]{
+                () -> db.readOnly(TestTable.class).insert(row),
+                () -> db.readOnly(TestTable.class).whereEq("id", 1L).update(row, "string"),
+                () -> db.readOnly(TestTable.class).delete()}) {
+            try {
+                write.run();
+                Assert.fail();
+            } catch (UnsupportedOperationException ignored) {
+            }
+        }
+        Assert.assertEquals(100, db.auto(TestTable.class).count());
+    }
+
+    private static long[] measure(int iterations, Supplier<List<TestTable>> select) {
+        com.sun.management.ThreadMXBean threads = (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+        long id = Thread.currentThread().getId();
+        long bytes = threads.getThreadAllocatedBytes(id);
+        long start = System.nanoTime();
+        for (int i = 0; i < iterations; i++) {
+            Assert.assertEquals(50, select.get().size());
+        }
+        long nanos = System.nanoTime() - start;
+        return new long[]{(threads.getThreadAllocatedBytes(id) - bytes) / iterations, nanos / iterations / 1000};
+    }
+
+    /**
+     * Per-select allocation and latency of auto() against readOnly(). Run with e.g. {@code -Dbench.selects=20000}.
+     */
+    @Test
+    public void benchmarkReadOnlySelect() {
+        String size = System.getProperty("bench.selects");
+        Assume.assumeNotNull(size);
+        int iterations = Integer.parseInt(size.trim());
+        Supplier<List<TestTable>> stateful = () -> db.auto(TestTable.class).whereEq("string", "low").select();
+        Supplier<List<TestTable>> stateless = () -> db.readOnly(TestTable.class).whereEq("string", "low").select();
+        measure(iterations / 4, stateful);
+        measure(iterations / 4, stateless);
+        long[] auto = measure(iterations, stateful);
+        long[] readOnly = measure(iterations, stateless);
+        System.out.printf("50-row select: auto() %,d bytes %d us, readOnly() %,d bytes %d us%n", auto[0], auto[1], readOnly[0], readOnly[1]);
+    }
+}
@@ -0,0 +1,150 @@
+package org.librazy.provider.hibernate;
+
+import cat.nyaa.nyaacore.database.DatabaseUtils;
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.UUID;
+import java.util.concurrent.CompletableFuture;
+
+public class ReplicaTest {
+    private static final String REPLICA_A = "jdbc:h2:mem:replica_a;DB_CLOSE_DELAY=-1";
+    private static final String REPLICA_B = "jdbc:h2:mem:replica_b;DB_CLOSE_DELAY=-1";
+    private static final String DEAD = "jdbc:h2:tcp://localhost:1/mem:replica_dead";
+
+    private HibernateDatabase db;
+
+    @BeforeClass
+    public static void register() {
+        DatabaseUtils.registerProvider("hibernate", new HibernateProvider());
+    }
+
+    private static Map<String, Object> conf(String url) {
+        Map<String, Object> conf = new HashMap<>();
+        conf.put("username", "sa");
+        conf.put("password", "");
+        conf.put("jdbc", "org.h2.Driver");
+        conf.put("url", url);
+        conf.put("dialect", "org.hibernate.dialect.H2Dialect");
+        conf.put("classes", new Class<?>[]{TestTable.class});
+        return conf;
+    }
+
+    /**
+     * Fills the database at the url with a single row tagged with the name of the database, standing in for replication.
+     */
+    private static void seed(String url, String tag) {
+        HibernateDatabase seeded = DatabaseUtils.get("hibernate", null, conf(url));
+        try {
+            seeded.auto(TestTable.class).delete();
+            seeded.auto(TestTable.class).insert(row(1, tag));
+        } finally {
+            seeded.close();
+        }
+    }
+
+    private void open(Map<String, Object> extra, String... replicas) {
+        seed(REPLICA_A, "a");
+        seed(REPLICA_B, "b");
+        Map<String, Object> conf = conf("jdbc:h2:mem:replica_primary;");
+        conf.put("replicas", Arrays.asList(replicas));
+        conf.put("replicaConnectionTimeout", 1000);
+        conf.putAll(extra);
+        db = DatabaseUtils.get("hibernate", null, conf);
+        db.connect();
+        db.auto(TestTable.class).delete();
+        db.auto(TestTable.class).insert(row(1, "primary"));
+    }
+
+    @After
+    public void closeDatabase() {
+        db.close();
+    }
+
+    private static TestTable row(long id, String string) {
+        return new TestTable(id, string, UUID.randomUUID(), UUID.randomUUID());
+    }
+
+    private String readRow() {
+        return db.auto(TestTable.class).whereEq("id", 1L).selectUnique().string;
+    }
+
+    @Test
+    public void readsAreSpreadOverReplicas() {
+        open(Collections.emptyMap(), REPLICA_A, REPLICA_B);
+        Set<String> served = new HashSet<>();
+        for (int i = 0; i < 4; i++) {
+            served.add(readRow());
+            served.add(db.readOnly(TestTable.class).getById(1L).string);
+        }
+        Assert.assertEquals(new HashSet<>(Arrays.asList("a", "b")), served);
+        Assert.assertEquals(1, db.auto(TestTable.class).count());
+        Assert.assertEquals(2, db.getReplicaPoolMetrics().size());
+    }
+
+    @Test
+    public void writesGoToThePrimary() {
+        open(Collections.emptyMap(), REPLICA_A);
+        db.auto(TestTable.class).insert(row(2, "new"));
+        db.auto(TestTable.class).whereEq("id", 1L).update(row(1, "updated"), "string");
+        Assert.assertNull(db.auto(TestTable.class).whereEq("id", 2L).selectUnique());
+        Assert.assertEquals("a", readRow());
+        try (HibernateDatabase.HibernateQuery<TestTable> query = db.transaction(TestTable.class)) {
+            Assert.assertEquals("new", query.whereEq("id", 2L).selectUnique().string);
+            Assert.assertEquals("updated", query.reset().whereEq("id", 1L).selectUnique().string);
+        }
+    }
+
+    @Test
+    public void transactionsReadFromThePrimary() {
+        open(Collections.emptyMap(), REPLICA_A);
+        db.beginTransaction();
+        try {
+            Assert.assertEquals("primary", readRow());
+            Assert.assertEquals("primary", db.readOnly(TestTable.class).getById(1L).string);
+        } finally {
+            db.commitTransaction();
+        }
+        Assert.assertEquals("a", readRow());
+    }
+
+    @Test
+    public void writersReadTheirWritesWithStickiness() {
+        open(Collections.singletonMap("replicaStickiness", 60000), REPLICA_A);
+        // the rows of the primary were just written by this thread
+        Assert.assertEquals("primary", readRow());
+        db.auto(TestTable.class).whereEq("id", 1L).update(row(1, "updated"), "string");
+        Assert.assertEquals("updated", readRow());
+        Assert.assertEquals("a", CompletableFuture.supplyAsync(this::readRow).join());
+    }
+
+    @Test
+    public void deadReplicasAreSkipped() {
+        open(Collections.emptyMap(), DEAD, REPLICA_A);
+        for (int i = 0; i < 4; i++) {
+            Assert.assertEquals("a", readRow());
+        }
+    }
+
+    @Test
+    public void readsFallBackToThePrimary() {
+        open(Collections.emptyMap(), DEAD);
+        Assert.assertEquals("primary", readRow());
+        Assert.assertEquals("primary", db.readOnly(TestTable.class).getById(1L).string);
+    }
+
+    @Test(expected = IllegalStateException.class)
+    public void replicasAreOffByDefault() {
+        open(Collections.emptyMap());
+        Assert.assertEquals("primary", readRow());
+        db.getReplicaPoolMetrics();
+    }
+}
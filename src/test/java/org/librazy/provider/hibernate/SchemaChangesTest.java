@@ -0,0 +1,122 @@
+package org.librazy.provider.hibernate;
+
+import cat.nyaa.nyaacore.database.DatabaseUtils;
+import org.hibernate.SessionFactory;
+import org.hibernate.engine.jdbc.connections.spi.ConnectionProvider;
+import org.hibernate.engine.spi.SessionFactoryImplementor;
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+
+public class SchemaChangesTest {
+    private HibernateDatabase db;
+
+    @BeforeClass
+    public static void register() {
+        DatabaseUtils.registerProvider("hibernate", new HibernateProvider());
+    }
+
+    @Before
+    public void prepareDatabase() {
+        Map<String, Object> conf = new HashMap<>();
+        conf.put("username", "sa");
+        conf.put("password", "");
+        conf.put("jdbc", "org.h2.Driver");
+        conf.put("url", "jdbc:h2:mem:schema_db;");
+        conf.put("dialect", "org.hibernate.dialect.H2Dialect");
+        db = DatabaseUtils.get("hibernate", null, conf);
+        db.connect();
+    }
+
+    @After
+    public void closeDatabase() {
+        db.close();
+    }
+
+    private static ConnectionProvider connectionProvider(SessionFactory factory) {
+        return ((SessionFactoryImplementor) factory).getServiceRegistry().getService(ConnectionProvider.class);
+    }
+
+    @Test
+    public void appliesBatchWithSingleRebuild() {
+        int generation = db.getGeneration();
+        db.schemaChanges().create(TestTable.class, TestEntity.class).apply();
+        Assert.assertEquals(generation + 1, db.getGeneration());
+        db.auto(TestTable.class).insert(new TestTable(1L, "a", UUID.randomUUID(), UUID.randomUUID()));
+        db.auto(TestEntity.class).insert(new TestEntity().setTest("a"));
+        Assert.assertEquals(1, db.auto(TestTable.class).count());
+        Assert.assertEquals(1, db.auto(TestEntity.class).count());
+    }
+
+    @Test
+    public void connectionPoolSurvivesRebuild() {
+        ConnectionProvider before = connectionProvider(db.currentFactory());
+        db.createTable(TestTable.class);
+        Assert.assertSame(before, connectionProvider(db.currentFactory()));
+    }
+
+    @Test
+    public void openQueryKeepsOldFactoryUntilClosed() {
+        db.createTable(TestTable.class);
+        SessionFactory old = db.currentFactory();
+        HibernateDatabase.HibernateQuery<TestTable> query = db.inlineQuery(TestTable.class);
+        db.schemaChanges().create(TestEntity.class).apply();
+        Assert.assertNotSame(old, db.currentFactory());
+        Assert.assertTrue(old.isOpen());
+        query.insert(new TestTable(1L, "a", UUID.randomUUID(), UUID.randomUUID()));
+        Assert.assertEquals(1, query.count());
+        query.close();
+        Assert.assertFalse(old.isOpen());
+        Assert.assertEquals(1, db.auto(TestTable.class).count());
+    }
+
+    @Test
+    public void queryOutsideOfTransactionKeepsOldFactoryUntilClosed() {
+        db.createTable(TestTable.class);
+        SessionFactory old = db.currentFactory();
+        HibernateDatabase.HibernateQuery<TestTable> query = db.query(TestTable.class);
+        db.schemaChanges().create(TestEntity.class).apply();
+        Assert.assertTrue(old.isOpen());
+        Assert.assertSame(old, query.getSession().getSessionFactory());
+        query.close();
+        Assert.assertFalse(old.isOpen());
+    }
+
+    @Test
+    public void concurrentQueriesNeverSeeClosedFactory() throws Exception {
+        db.createTable(TestTable.class);
+        AtomicBoolean running = new AtomicBoolean(true);
+        AtomicInteger queries = new AtomicInteger();
+        AtomicReference<Throwable> failure = new AtomicReference<>();
+        CompletableFuture<Void> reader = CompletableFuture.runAsync(() -> {
+            while (running.get()) {
+                try {
+                    HibernateDatabase.HibernateQuery<TestTable> query = db.inlineQuery(TestTable.class);
+                    query.count();
+                    query.close();
+                    queries.incrementAndGet();
+                } catch (Throwable e) {
+                    failure.set(e);
+                    return;
+                }
+            }
+        });
+        for (int i = 0; i < 5; i++) {
+            db.schemaChanges().update(TestTable.class).create(TestEntity.class).applyAsync().get();
+        }
+        running.set(false);
+        reader.get();
+        Assert.assertNull(failure.get());
+        Assert.assertTrue(queries.get() > 0);
+    }
+}
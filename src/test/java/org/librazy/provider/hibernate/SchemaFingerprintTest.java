@@ -0,0 +1,123 @@
+package org.librazy.provider.hibernate;
+
+import cat.nyaa.nyaacore.database.DatabaseUtils;
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.UUID;
+
+public class SchemaFingerprintTest {
+    private static final String URL = "jdbc:h2:mem:schema_fingerprint;DB_CLOSE_DELAY=-1";
+
+    private HibernateDatabase db;
+
+    @BeforeClass
+    public static void register() {
+        DatabaseUtils.registerProvider("hibernate", new HibernateProvider());
+    }
+
+    private void open(Map<String, Object> extra) {
+        Map<String, Object> conf = new HashMap<>();
+        conf.put("username", "sa");
+        conf.put("password", "");
+        conf.put("jdbc", "org.h2.Driver");
+        conf.put("url", URL);
+        conf.put("dialect", "org.hibernate.dialect.H2Dialect");
+        conf.put("classes", new Class<?>[]{TestTable.class});
+        conf.putAll(extra);
+        db = DatabaseUtils.get("hibernate", null, conf);
+        db.connect();
+    }
+
+    private void reopen(Map<String, Object> extra) {
+        db.close();
+        open(extra);
+    }
+
+    @After
+    public void closeDatabase() throws SQLException {
+        if (db != null) db.close();
+        execute("DROP ALL OBJECTS");
+    }
+
+    private static void execute(String sql) throws SQLException {
+        try (Connection connection = DriverManager.getConnection(URL, "sa", "");
+             Statement statement = connection.createStatement()) {
+            statement.execute(sql);
+        }
+    }
+
+    private static String fingerprint(String object) throws SQLException {
+        try (Connection connection = DriverManager.getConnection(URL, "sa", "");
+             Statement statement = connection.createStatement();
+             ResultSet rows = statement.executeQuery("SELECT fingerprint FROM " + SchemaFingerprints.TABLE + " WHERE object_name = '" + object + "'")) {
+            return rows.next() ? rows.getString(1) : null;
+        }
+    }
+
+    @Test
+    public void unchangedMappingsSkipTheSchemaUpdate() throws SQLException {
+        open(Collections.emptyMap());
+        Assert.assertNotNull(fingerprint("test1"));
+        execute("DROP TABLE test1");
+        reopen(Collections.emptyMap());
+        try {
+            db.auto(TestTable.class).count();
+            Assert.fail();
+        } catch (RuntimeException expected) {
+        }
+        reopen(Collections.singletonMap("schemaFingerprint", false));
+        Assert.assertEquals(0, db.auto(TestTable.class).count());
+    }
+
+    @Test
+    public void changedMappingsUpdateTheSchema() throws SQLException {
+        open(Collections.emptyMap());
+        String stored = fingerprint("test1");
+        execute("UPDATE " + SchemaFingerprints.TABLE + " SET fingerprint = 'stale'");
+        execute("DROP TABLE test1");
+        reopen(Collections.emptyMap());
+        Assert.assertEquals(0, db.auto(TestTable.class).count());
+        Assert.assertEquals(stored, fingerprint("test1"));
+    }
+
+    @Test
+    public void deletedTablesAreCreatedAgain() throws SQLException {
+        open(Collections.emptyMap());
+        db.deleteTable(TestTable.class);
+        Assert.assertNull(fingerprint("test1"));
+        db.createTable(TestTable.class);
+        db.auto(TestTable.class).insert(new TestTable(1L, "a", UUID.randomUUID(), UUID.randomUUID()));
+        Assert.assertEquals(1, db.auto(TestTable.class).count());
+        Assert.assertNotNull(fingerprint("test1"));
+    }
+
+    @Test
+    public void startupCanRunInParallel() {
+        open(Collections.singletonMap("parallelStartup", true));
+        Assert.assertEquals(0, db.auto(TestTable.class).count());
+    }
+
+    @Test
+    public void failedParallelStartupsThrowOnConnect() {
+        Map<String, Object> conf = new HashMap<>();
+        conf.put("parallelStartup", true);
+        conf.put("dialect", "org.librazy.provider.hibernate.NoSuchDialect");
+        try {
+            open(conf);
+            Assert.fail();
+        } catch (RuntimeException expected) {
+        }
+        Assert.assertNotNull(db);
+    }
+}
@@ -0,0 +1,222 @@
+package org.librazy.provider.hibernate;
+
+import cat.nyaa.nyaacore.database.DatabaseUtils;
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+import java.math.BigInteger;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+import java.util.stream.Collectors;
+import java.util.stream.LongStream;
+
+public class ShardedDatabaseTest {
+    private ShardedDatabase db;
+
+    @BeforeClass
+    public static void register() {
+        DatabaseUtils.registerProvider("hibernate", new HibernateProvider());
+    }
+
+    private void open(Map<String, Object> extra) {
+        Map<String, Object> conf = new HashMap<>();
+        conf.put("username", "sa");
+        conf.put("password", "");
+        conf.put("jdbc", "org.h2.Driver");
+        conf.put("shards", Arrays.asList("jdbc:h2:mem:shard_0;", "jdbc:h2:mem:shard_1;", "jdbc:h2:mem:shard_2;"));
+        conf.put("dialect", "org.hibernate.dialect.H2Dialect");
+        conf.put("classes", new Class<?>[]{TestTable.class});
+        conf.put("shardFunction", "modulo");
+        conf.put("metrics", true);
+        conf.putAll(extra);
+        db = DatabaseUtils.get("hibernate", null, conf);
+        db.connect();
+        db.auto(TestTable.class).delete();
+        db.auto(TestTable.class).insertAll(LongStream.range(0, 30)
+                .mapToObj(i -> row(i, i % 2 == 0 ? "even" : "odd"))
+                .collect(Collectors.toList()));
+        db.getShards().forEach(shard -> shard.getQueryMetrics().reset());
+    }
+
+    private void open() {
+        open(Collections.emptyMap());
+    }
+
+    @After
+    public void closeDatabase() {
+        if (db != null) db.close();
+    }
+
+    private static TestTable row(long id, String string) {
+        return new TestTable(id, string, UUID.randomUUID(), UUID.randomUUID());
+    }
+
+    private long selects(int shard) {
+        QueryMetrics.OperationStats stats = db.getShards().get(shard).getQueryMetrics().snapshot().get(TestTable.class, QueryMetrics.Operation.SELECT);
+        return stats == null ? 0 : stats.getLatency().getCount();
+    }
+
+    @Test
+    public void entitiesAreStoredOnTheirShard() {
+        open();
+        for (int shard = 0; shard < 3; shard++) {
+            List<TestTable> rows = db.getShards().get(shard).auto(TestTable.class).select();
+            Assert.assertEquals(10, rows.size());
+            for (TestTable row : rows) {
+                Assert.assertEquals(shard, row.id % 3);
+            }
+        }
+    }
+
+    @Test
+    public void shardKeyLookupsHitOneShard() {
+        open();
+        Assert.assertEquals("odd", db.auto(TestTable.class).whereEq("id", 7L).selectUnique().string);
+        Assert.assertEquals(0, selects(0));
+        Assert.assertEquals(1, selects(1));
+        Assert.assertEquals(0, selects(2));
+
+        List<TestTable> rows = db.auto(TestTable.class).whereIn("id", Arrays.asList(4L, 10L, 13L, 100L)).orderBy("id").select();
+        Assert.assertEquals(Arrays.asList(4L, 10L, 13L), rows.stream().map(r -> r.id).collect(Collectors.toList()));
+        Assert.assertEquals(0, selects(0));
+        Assert.assertEquals(2, selects(1));
+    }
+
+    @Test
+    public void keysAreRoutedAsTheTypeOfTheShardKey() {
+        open(Collections.singletonMap("shardFunction", "consistent"));
+        for (long id = 0; id < 30; id++) {
+            Assert.assertEquals(id, (long) db.auto(TestTable.class).whereEq("id", (int) id).selectUnique().id);
+        }
+        Assert.assertEquals(3, db.auto(TestTable.class).whereIn("id", Arrays.asList(1, "2", 3)).count());
+    }
+
+    @Test
+    public void keysOutOfTheRangeOfTheShardKeyAreRejected() {
+        open();
+        Object[] keys = {BigInteger.ONE.shiftLeft(64).add(BigInteger.valueOf(7)), 7.5, "seven"};
+        for (Object key : keys) {
+            try {
+                db.auto(TestTable.class).whereEq("id", key).selectUnique();
+                Assert.fail("routed " + key);
+            } catch (IllegalArgumentException e) {
+                Assert.assertTrue(e.getMessage(), e.getMessage().contains("id"));
+            }
+            try {
+                db.auto(TestTable.class).whereIn("id", Arrays.asList(1L, key)).select();
+                Assert.fail("routed " + key);
+            } catch (IllegalArgumentException e) {
+                Assert.assertTrue(e.getMessage(), e.getMessage().contains("id"));
+            }
+        }
+        for (int shard = 0; shard < 3; shard++) {
+            Assert.assertEquals(0, selects(shard));
+        }
+        Assert.assertEquals(7L, (long) db.auto(TestTable.class).whereEq("id", 7.0).selectUnique().id);
+    }
+
+    @Test
+    public void otherQueriesScatterAndGather() {
+        open();
+        Assert.assertEquals(15, db.auto(TestTable.class).whereEq("string", "even").count());
+        Assert.assertEquals(30, db.auto(TestTable.class).count());
+        List<TestTable> page = db.auto(TestTable.class).whereEq("string", "even").orderBy("id", true).limit(4).offset(2).select();
+        Assert.assertEquals(Arrays.asList(24L, 22L, 20L, 18L), page.stream().map(r -> r.id).collect(Collectors.toList()));
+        Assert.assertEquals(15, db.auto(TestTable.class).whereEq("string", "odd").select().size());
+        for (int shard = 0; shard < 3; shard++) {
+            Assert.assertEquals(2, selects(shard));
+        }
+    }
+
+    @Test
+    public void writesAreRoutedByTheirWhereClause() {
+        open();
+        db.auto(TestTable.class).whereEq("id", 5L).update(row(5, "five"), "string");
+        Assert.assertEquals("five", db.auto(TestTable.class).whereEq("id", 5L).selectUnique().string);
+        db.auto(TestTable.class).whereEq("string", "even").update(row(0, "changed"), "string");
+        Assert.assertEquals(15, db.auto(TestTable.class).whereEq("string", "changed").count());
+        db.auto(TestTable.class).whereIn("id", Arrays.asList(1L, 2L, 3L)).delete();
+        Assert.assertEquals(27, db.auto(TestTable.class).count());
+        db.auto(TestTable.class).whereEq("string", "changed").delete();
+        Assert.assertEquals(13, db.auto(TestTable.class).count());
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void shardKeyCannotBeUpdated() {
+        open();
+        db.auto(TestTable.class).whereEq("string", "odd").update(row(100, "odd"), "id");
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void shardKeyCannotBeUpdatedImplicitly() {
+        open(Collections.singletonMap("shardKeys", Collections.singletonMap("TestTable", "string")));
+        db.auto(TestTable.class).whereEq("id", 1L).update(row(1, "even"));
+    }
+
+    @Test
+    public void transactionsSpanEveryShard() {
+        open();
+        try (ShardedDatabase.ShardedQuery<TestTable> query = db.transaction(TestTable.class)) {
+            query.insert(row(30, "new"));
+            query.insert(row(31, "new"));
+            Assert.assertEquals(2, query.reset().whereEq("string", "new").count());
+        }
+        Assert.assertEquals(2, db.auto(TestTable.class).whereEq("string", "new").count());
+
+        try (ShardedDatabase.ShardedQuery<TestTable> query = db.transaction(TestTable.class, true)) {
+            query.whereEq("string", "new").delete();
+            query.insertAll(Arrays.asList(row(40, "rolled back"), row(41, "rolled back")));
+        }
+        Assert.assertEquals(2, db.auto(TestTable.class).whereEq("string", "new").count());
+        Assert.assertEquals(32, db.auto(TestTable.class).count());
+    }
+
+    @Test
+    public void shardKeyCanBeAnyProperty() {
+        open(Collections.singletonMap("shardKeys", Collections.singletonMap("TestTable", "string")));
+        int shard = db.shardOf("even");
+        Assert.assertEquals(15, db.getShards().get(shard).auto(TestTable.class).whereEq("string", "even").count());
+        Assert.assertEquals(15, db.auto(TestTable.class).whereEq("string", "even").count());
+        for (int i = 0; i < 3; i++) {
+            QueryMetrics.OperationStats counts = db.getShards().get(i).getQueryMetrics().snapshot().get(TestTable.class, QueryMetrics.Operation.COUNT);
+            Assert.assertEquals(i == shard ? 2 : 0, counts == null ? 0 : counts.getLatency().getCount());
+        }
+    }
+
+    @Test
+    public void generatedIdentifiersNeedAnAssignedShardKey() {
+        Map<String, Object> entities = new HashMap<>();
+        entities.put("classes", new Class<?>[]{TestTable.class, TestEntity.class});
+        try {
+            open(entities);
+            Assert.fail();
+        } catch (IllegalArgumentException expected) {
+        }
+        entities.put("shardKeys", Collections.singletonMap("TestEntity", "test"));
+        open(entities);
+        db.auto(TestEntity.class).insert(new TestEntity().setTest("a"));
+        Assert.assertEquals(1, db.auto(TestEntity.class).count());
+    }
+
+    @Test
+    public void consistentHashingSpreadsKeys() {
+        int[] counts = new int[4];
+        for (long key = 0; key < 4000; key++) {
+            counts[ShardFunction.CONSISTENT.shard(key, 4)]++;
+        }
+        for (int count : counts) {
+            Assert.assertTrue(count > 800);
+        }
+        for (long key = 0; key < 100; key++) {
+            int before = ShardFunction.CONSISTENT.shard(key, 4);
+            int after = ShardFunction.CONSISTENT.shard(key, 5);
+            Assert.assertTrue(after == before || after == 4);
+        }
+    }
+}
@@ -0,0 +1,79 @@
+package org.librazy.provider.hibernate;
+
+import cat.nyaa.nyaacore.database.DatabaseUtils;
+import org.hibernate.SessionFactory;
+import org.hibernate.engine.jdbc.connections.spi.ConnectionProvider;
+import org.hibernate.engine.spi.SessionFactoryImplementor;
+import org.junit.Assert;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+import javax.sql.DataSource;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.UUID;
+
+public class SharedPoolTest {
+    @BeforeClass
+    public static void register() {
+        DatabaseUtils.registerProvider("hibernate", new HibernateProvider());
+    }
+
+    private static HibernateDatabase open(String url, Class<?>... classes) {
+        Map<String, Object> conf = new HashMap<>();
+        conf.put("username", "sa");
+        conf.put("password", "");
+        conf.put("jdbc", "org.h2.Driver");
+        conf.put("url", url);
+        conf.put("dialect", "org.hibernate.dialect.H2Dialect");
+        conf.put("classes", classes);
+        return DatabaseUtils.<HibernateDatabase>get("hibernate", null, conf).connect();
+    }
+
+    private static DataSource pool(SessionFactory factory) {
+        return ((SessionFactoryImplementor) factory).getServiceRegistry().getService(ConnectionProvider.class).unwrap(DataSource.class);
+    }
+
+    @Test
+    public void sharesPoolBetweenDatabases() {
+        int pools = ConnectionPools.size();
+        HibernateDatabase first = open("jdbc:h2:mem:shared_db;", TestTable.class);
+        HibernateDatabase second = open("jdbc:h2:mem:shared_db;", TestEntity.class);
+        Assert.assertEquals(pools + 1, ConnectionPools.size());
+        Assert.assertSame(pool(first.currentFactory()), pool(second.currentFactory()));
+        second.close();
+        first.close();
+        Assert.assertEquals(pools, ConnectionPools.size());
+    }
+
+    @Test
+    public void databasesStayIsolated() {
+        HibernateDatabase first = open("jdbc:h2:mem:shared_db;", TestTable.class);
+        HibernateDatabase second = open("jdbc:h2:mem:shared_db;", TestEntity.class);
+        first.auto(TestTable.class).delete();
+        first.auto(TestTable.class).insert(new TestTable(1L, "a", UUID.randomUUID(), UUID.randomUUID()));
+        second.auto(TestEntity.class).insert(new TestEntity().setTest("b"));
+        try {
+            second.descriptor(TestTable.class);
+            Assert.fail();
+        } catch (RuntimeException ignored) {
+        }
+        second.close();
+        Assert.assertEquals(1, first.auto(TestTable.class).count());
+        first.schemaChanges().update(TestTable.class).apply();
+        Assert.assertEquals(1, first.auto(TestTable.class).count());
+        first.close();
+    }
+
+    @Test
+    public void separatesPoolsByUrl() {
+        int pools = ConnectionPools.size();
+        HibernateDatabase first = open("jdbc:h2:mem:shared_db;", TestTable.class);
+        HibernateDatabase second = open("jdbc:h2:mem:shared_db_other;", TestTable.class);
+        Assert.assertEquals(pools + 2, ConnectionPools.size());
+        Assert.assertNotSame(pool(first.currentFactory()), pool(second.currentFactory()));
+        first.close();
+        second.close();
+        Assert.assertEquals(pools, ConnectionPools.size());
+    }
+}
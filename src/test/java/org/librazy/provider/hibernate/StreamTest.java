@@ -0,0 +1,150 @@
+package org.librazy.provider.hibernate;
+
+import cat.nyaa.nyaacore.database.DatabaseUtils;
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Assume;
+import org.junit.Before;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+import java.io.File;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.stream.LongStream;
+import java.util.stream.Stream;
+
+public class StreamTest {
+    private HibernateDatabase db;
+
+    @BeforeClass
+    public static void register() {
+        DatabaseUtils.registerProvider("hibernate", new HibernateProvider());
+    }
+
+    @Before
+    public void prepareDatabase() {
+        db = open("jdbc:h2:mem:stream_db;");
+    }
+
+    @After
+    public void closeDatabase() {
+        db.close();
+    }
+
+    private static HibernateDatabase open(String url) {
+        Map<String, Object> conf = new HashMap<>();
+        conf.put("username", "sa");
+        conf.put("password", "");
+        conf.put("jdbc", "org.h2.Driver");
+        conf.put("url", url);
+        conf.put("dialect", "org.hibernate.dialect.H2Dialect");
+        conf.put("classes", new Class<?>[]{TestTable.class});
+        conf.put("fetchSize", 100);
+        HibernateDatabase db = DatabaseUtils.get("hibernate", null, conf);
+        db.connect();
+        db.auto(TestTable.class).delete();
+        return db;
+    }
+
+    private static Stream<TestTable> rows(long count) {
+        return LongStream.range(0, count).mapToObj(i -> new TestTable(i, i % 2 == 0 ? "even" : "odd", UUID.randomUUID(), UUID.randomUUID()));
+    }
+
+    @Test
+    public void canStreamAuto() {
+        db.auto(TestTable.class).insertAll(rows(1000));
+        try (Stream<TestTable> stream = db.auto(TestTable.class).whereEq("string", "odd").stream()) {
+            Assert.assertEquals(500, stream.filter(t -> t.id % 2 == 1).count());
+        }
+        AtomicInteger seen = new AtomicInteger();
+        db.auto(TestTable.class).forEach(t -> seen.incrementAndGet());
+        Assert.assertEquals(1000, seen.get());
+    }
+
+    @Test
+    public void persistenceContextStaysBounded() {
+        db.auto(TestTable.class).insertAll(rows(5000));
+        AtomicInteger maxManaged = new AtomicInteger();
+        AtomicLong seen = new AtomicLong();
+        try (HibernateDatabase.HibernateQuery<TestTable> query = db.transaction(TestTable.class);
+             Stream<TestTable> stream = query.stream(50)) {
+            stream.forEach(t -> {
+                seen.incrementAndGet();
+                maxManaged.accumulateAndGet(query.getSession().getStatistics().getEntityCount(), Math::max);
+            });
+        }
+        Assert.assertEquals(5000, seen.get());
+        Assert.assertTrue("managed entities: " + maxManaged.get(), maxManaged.get() <= 50);
+    }
+
+    @Test
+    public void earlyCloseReleasesCursor() throws InterruptedException {
+        db.auto(TestTable.class).insertAll(rows(500));
+        for (int i = 0; i < 20; i++) {
+            try (Stream<TestTable> stream = db.auto(TestTable.class).stream()) {
+                Iterator<TestTable> iterator = stream.iterator();
+                Assert.assertTrue(iterator.hasNext());
+                iterator.next();
+            }
+        }
+        // c3p0 tests returned connections asynchronously before they become idle again
+        long deadline = System.currentTimeMillis() + 3000;
+        while (db.getPoolMetrics().getActiveConnections() > 0 && System.currentTimeMillis() < deadline) {
+            Thread.sleep(10);
+        }
+        Assert.assertEquals(0, db.getPoolMetrics().getActiveConnections());
+        Assert.assertEquals(500, db.auto(TestTable.class).count());
+    }
+
+    @Test
+    public void streamKeepsEarlierWorkOfTransaction() {
+        try (HibernateDatabase.HibernateQuery<TestTable> query = db.transaction(TestTable.class)) {
+            query.insertAll(rows(120));
+            try (Stream<TestTable> stream = query.stream(10)) {
+                Assert.assertEquals(120, stream.count());
+            }
+            query.insert(new TestTable(1000L, "late", UUID.randomUUID(), UUID.randomUUID()));
+        }
+        Assert.assertEquals(121, db.auto(TestTable.class).count());
+    }
+
+    /**
+     * Heap use while streaming a large file-backed table. Run with e.g. {@code -Dbench.streamRows=1000000}.
+     */
+    @Test
+    public void benchmarkStreamMemory() throws Exception {
+        String size = System.getProperty("bench.streamRows");
+        Assume.assumeNotNull(size);
+        long rows = Long.parseLong(size.trim());
+        File dir = File.createTempFile("stream_bench", "");
+        Assert.assertTrue(dir.delete() && dir.mkdir());
+        HibernateDatabase file = open("jdbc:h2:" + new File(dir, "db").getAbsolutePath() + ";");
+        try {
+            file.auto(TestTable.class).insertAll(rows(rows));
+            Runtime runtime = Runtime.getRuntime();
+            System.gc();
+            long baseline = runtime.totalMemory() - runtime.freeMemory();
+            AtomicLong peak = new AtomicLong();
+            AtomicLong seen = new AtomicLong();
+            long start = System.nanoTime();
+            file.auto(TestTable.class).forEach(t -> {
+                if (seen.incrementAndGet() % (rows / 10) == 0) {
+                    System.gc();
+                    peak.accumulateAndGet(runtime.totalMemory() - runtime.freeMemory(), Math::max);
+                }
+            });
+            long nanos = System.nanoTime() - start;
+            Assert.assertEquals(rows, seen.get());
+            System.out.printf("%,d rows streamed at %,.0f rows/s, retained heap growth %,d KiB%n",
+                    rows, rows * 1e9 / nanos, (peak.get() - baseline) / 1024);
+            Assert.assertTrue(peak.get() - baseline < 64L * 1024 * 1024);
+        } finally {
+            file.close();
+        }
+    }
+}
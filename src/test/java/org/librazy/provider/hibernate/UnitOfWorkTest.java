@@ -0,0 +1,182 @@
+package org.librazy.provider.hibernate;
+
+import cat.nyaa.nyaacore.database.DatabaseUtils;
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.CompletableFuture;
+
+public class UnitOfWorkTest {
+    private HibernateDatabase db;
+
+    @BeforeClass
+    public static void register() {
+        DatabaseUtils.registerProvider("hibernate", new HibernateProvider());
+    }
+
+    private void connect(Map<String, Object> extra) {
+        Map<String, Object> conf = new HashMap<>();
+        conf.put("username", "sa");
+        conf.put("password", "");
+        conf.put("jdbc", "org.h2.Driver");
+        conf.put("url", "jdbc:h2:mem:unit_of_work;DB_CLOSE_DELAY=-1");
+        conf.put("dialect", "org.hibernate.dialect.H2Dialect");
+        conf.put("classes", new Class<?>[]{TestTable.class});
+        conf.put("unitOfWork", true);
+        conf.put("unitOfWorkWindow", 60000);
+        conf.putAll(extra);
+        db = DatabaseUtils.get("hibernate", null, conf);
+        db.connect();
+    }
+
+    private void open(Map<String, Object> extra) {
+        connect(extra);
+        db.auto(TestTable.class).delete();
+        db.unitOfWork().commit();
+    }
+
+    private void open() {
+        open(Collections.emptyMap());
+    }
+
+    @After
+    public void closeDatabase() {
+        if (db != null) db.close();
+    }
+
+    private static TestTable row(long id, String string) {
+        return new TestTable(id, string, UUID.randomUUID(), UUID.randomUUID());
+    }
+
+    private int countElsewhere() {
+        return CompletableFuture.supplyAsync(() -> db.auto(TestTable.class).count()).join();
+    }
+
+    private String loadElsewhere(long id) {
+        return CompletableFuture.supplyAsync(() -> {
+            try (HibernateDatabase.HibernateQuery<TestTable> query = db.transaction(TestTable.class)) {
+                return query.getById(id).string;
+            }
+        }).join();
+    }
+
+    @Test
+    public void writesOfAWindowCommitTogether() {
+        open();
+        long commits = db.unitOfWork().getCommitCount();
+        for (long i = 0; i < 3; i++) {
+            db.auto(TestTable.class).insert(row(i, "row"));
+        }
+        Assert.assertEquals(3, db.auto(TestTable.class).count());
+        Assert.assertEquals(0, countElsewhere());
+        db.unitOfWork().commit();
+        Assert.assertEquals(3, countElsewhere());
+        Assert.assertEquals(commits + 1, db.unitOfWork().getCommitCount());
+    }
+
+    @Test
+    public void readsSeeTheWritesOfTheOpenUnit() {
+        open();
+        db.auto(TestTable.class).insert(row(1, "new"));
+        db.auto(TestTable.class).whereEq("id", 1L).update(row(1, "updated"), "string");
+        Assert.assertEquals("updated", db.auto(TestTable.class).whereEq("id", 1L).selectUnique().string);
+        Assert.assertEquals("updated", db.readOnly(TestTable.class).getById(1L).string);
+        db.auto(TestTable.class).whereEq("id", 1L).delete();
+        Assert.assertNull(db.auto(TestTable.class).getById(1L));
+        db.unitOfWork().commit();
+        Assert.assertEquals(0, countElsewhere());
+    }
+
+    @Test
+    public void failedOperationsKeepTheRestOfTheBatch() {
+        open();
+        db.auto(TestTable.class).insert(row(1, "first"));
+        try {
+            db.auto(TestTable.class).insert(row(1, "duplicate"));
+            Assert.fail();
+        } catch (RuntimeException expected) {
+        }
+        db.auto(TestTable.class).insert(row(2, "second"));
+        db.unitOfWork().commit();
+        Assert.assertEquals(2, countElsewhere());
+        Assert.assertEquals("first", db.auto(TestTable.class).getById(1L).string);
+        Assert.assertEquals(1, db.unitOfWork().getFailedOperationCount());
+        Assert.assertEquals(0, db.unitOfWork().getFailedCommitCount());
+    }
+
+    @Test
+    public void unitsCommitAtTheEndOfTheirWindow() throws InterruptedException {
+        open(Collections.singletonMap("unitOfWorkWindow", 50));
+        db.auto(TestTable.class).insert(row(1, "row"));
+        for (int i = 0; i < 100 && countElsewhere() == 0; i++) {
+            Thread.sleep(50);
+        }
+        Assert.assertEquals(1, countElsewhere());
+        db.auto(TestTable.class).insert(row(2, "row"));
+        Assert.assertEquals(2, db.auto(TestTable.class).count());
+    }
+
+    @Test
+    public void cachesOnlySeeCommittedUnits() {
+        Map<String, Object> cache = new HashMap<>();
+        cache.put("secondLevelCache", true);
+        cache.put("cacheMode", "ALL");
+        open(cache);
+        CompletableFuture.runAsync(() -> {
+            db.auto(TestTable.class).insert(row(1, "committed"));
+            db.unitOfWork().commit();
+        }).join();
+        db.auto(TestTable.class).whereEq("string", "committed").update(row(1, "uncommitted"), "string");
+        Assert.assertEquals("committed", loadElsewhere(1));
+        Assert.assertEquals("uncommitted", db.auto(TestTable.class).getById(1L).string);
+        db.unitOfWork().commit();
+        Assert.assertEquals("uncommitted", loadElsewhere(1));
+    }
+
+    @Test
+    public void transactionsCommitTheOpenUnitFirst() {
+        open();
+        db.auto(TestTable.class).insert(row(1, "unit"));
+        db.beginTransaction();
+        db.auto(TestTable.class).insert(row(2, "transaction"));
+        db.rollbackTransaction();
+        Assert.assertEquals(1, countElsewhere());
+    }
+
+    @Test
+    public void closingCommitsOpenUnits() {
+        open();
+        CompletableFuture.runAsync(() -> db.auto(TestTable.class).insert(row(1, "other thread"))).join();
+        db.auto(TestTable.class).insert(row(2, "this thread"));
+        db.close();
+        connect(Collections.emptyMap());
+        Assert.assertEquals(2, db.auto(TestTable.class).count());
+    }
+
+    @Test
+    public void writesAfterClosingOpenNoUnit() {
+        open();
+        db.auto(TestTable.class).insert(row(1, "before"));
+        db.unitOfWork().close();
+        long commits = db.unitOfWork().getCommitCount();
+        try {
+            db.auto(TestTable.class).insert(row(2, "after"));
+            Assert.fail();
+        } catch (IllegalStateException expected) {
+        }
+        Assert.assertEquals(commits, db.unitOfWork().getCommitCount());
+        Assert.assertEquals(1, countElsewhere());
+    }
+
+    @Test(expected = IllegalStateException.class)
+    public void unitOfWorkIsOffByDefault() {
+        connect(Collections.singletonMap("unitOfWork", false));
+        db.unitOfWork();
+    }
+}
@@ -0,0 +1,120 @@
+package org.librazy.provider.hibernate;
+
+import cat.nyaa.nyaacore.database.DatabaseUtils;
+import org.hibernate.dialect.HSQLDialect;
+import org.hibernate.dialect.MySQL57Dialect;
+import org.hibernate.dialect.PostgreSQL95Dialect;
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+
+public class UpsertTest {
+    private HibernateDatabase db;
+
+    @BeforeClass
+    public static void register() {
+        DatabaseUtils.registerProvider("hibernate", new HibernateProvider());
+    }
+
+    @Before
+    public void prepareDatabase() {
+        Map<String, Object> conf = new HashMap<>();
+        conf.put("username", "sa");
+        conf.put("password", "");
+        conf.put("jdbc", "org.h2.Driver");
+        conf.put("url", "jdbc:h2:mem:upsert_db;");
+        conf.put("dialect", "org.hibernate.dialect.H2Dialect");
+        conf.put("classes", new Class<?>[]{TestTable.class});
+        conf.put("batchSize", 4);
+        db = DatabaseUtils.get("hibernate", null, conf);
+        db.connect();
+        db.auto(TestTable.class).delete();
+        for (long i = 0; i < 5; i++) {
+            db.auto(TestTable.class).insert(new TestTable(i, "old" + i, UUID.randomUUID(), UUID.randomUUID()));
+        }
+    }
+
+    @After
+    public void closeDatabase() {
+        db.close();
+    }
+
+    private TestTable load(long id) {
+        return db.auto(TestTable.class).whereEq("id", id).selectUnique();
+    }
+
+    @Test
+    public void insertsOrUpdatesAllColumns() {
+        TestTable existing = new TestTable(1L, "new1", UUID.randomUUID(), UUID.randomUUID());
+        TestTable created = new TestTable(7L, "new7", UUID.randomUUID(), UUID.randomUUID());
+        db.auto(TestTable.class).upsert(existing);
+        db.auto(TestTable.class).upsert(created);
+        Assert.assertEquals(6, db.auto(TestTable.class).count());
+        Assert.assertEquals("new1", load(1).string);
+        Assert.assertEquals(existing.uuid, load(1).uuid);
+        Assert.assertEquals(existing.uuid_indirect, load(1).uuid_indirect);
+        Assert.assertEquals(created.uuid, load(7).uuid);
+    }
+
+    @Test
+    public void updatesOnlyGivenColumnsOfExistingRows() {
+        UUID kept = load(2).uuid;
+        List<TestTable> rows = new ArrayList<>();
+        // spans several batches of 4, mixing existing and new rows
+        for (long i = 0; i < 10; i++) {
+            rows.add(new TestTable(i, "new" + i, UUID.randomUUID(), UUID.randomUUID()));
+        }
+        Assert.assertEquals(10, db.auto(TestTable.class).upsertAll(rows, "string"));
+        Assert.assertEquals(10, db.auto(TestTable.class).count());
+        TestTable existing = load(2);
+        Assert.assertEquals("new2", existing.string);
+        Assert.assertEquals(kept, existing.uuid);
+        TestTable created = load(8);
+        Assert.assertEquals("new8", created.string);
+        Assert.assertEquals(rows.get(8).uuid, created.uuid);
+        Assert.assertEquals(rows.get(8).uuid_indirect, created.uuid_indirect);
+    }
+
+    @Test
+    public void upsertJoinsTransaction() {
+        try (HibernateDatabase.HibernateQuery<TestTable> query = db.transaction(TestTable.class)) {
+            query.insert(new TestTable(20L, "persisted", UUID.randomUUID(), UUID.randomUUID()));
+            query.upsert(new TestTable(20L, "upserted", UUID.randomUUID(), UUID.randomUUID()), "string");
+            query.markRollbackOnly();
+        }
+        Assert.assertNull(load(20));
+        try (HibernateDatabase.HibernateQuery<TestTable> query = db.transaction(TestTable.class)) {
+            query.insert(new TestTable(20L, "persisted", UUID.randomUUID(), UUID.randomUUID()));
+            query.upsert(new TestTable(20L, "upserted", UUID.randomUUID(), UUID.randomUUID()), "string");
+        }
+        Assert.assertEquals("upserted", load(20).string);
+    }
+
+    @Test
+    public void compilesDialectSpecificStatements() {
+        EntityDescriptor<TestTable> descriptor = db.descriptor(TestTable.class);
+        boolean[] stringOnly = new boolean[descriptor.getPropertyCount()];
+        stringOnly[descriptor.indexOf("string")] = true;
+        String mysql = Upsert.compile(descriptor, new MySQL57Dialect(), stringOnly).getSql();
+        Assert.assertTrue(mysql, mysql.startsWith("insert into test1 (id, "));
+        Assert.assertTrue(mysql, mysql.endsWith(" on duplicate key update string = values(string)"));
+        String postgres = Upsert.compile(descriptor, new PostgreSQL95Dialect(), stringOnly).getSql();
+        Assert.assertTrue(postgres, postgres.endsWith(" on conflict (id) do update set string = excluded.string"));
+        String none = Upsert.compile(descriptor, new PostgreSQL95Dialect(), new boolean[descriptor.getPropertyCount()]).getSql();
+        Assert.assertTrue(none, none.endsWith(" on conflict (id) do nothing"));
+    }
+
+    @Test(expected = UnsupportedOperationException.class)
+    public void rejectsDialectWithoutUpsert() {
+        EntityDescriptor<TestTable> descriptor = db.descriptor(TestTable.class);
+        Upsert.compile(descriptor, new HSQLDialect(), new boolean[descriptor.getPropertyCount()]);
+    }
+}
@@ -0,0 +1,132 @@
+package org.librazy.provider.hibernate;
+
+import cat.nyaa.nyaacore.database.DatabaseUtils;
+import org.hibernate.NonUniqueResultException;
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+public class WhereInTest {
+    private HibernateDatabase db;
+    private final List<UUID> uuids = new ArrayList<>();
+
+    @BeforeClass
+    public static void register() {
+        DatabaseUtils.registerProvider("hibernate", new HibernateProvider());
+    }
+
+    @Before
+    public void prepareDatabase() {
+        Map<String, Object> conf = new HashMap<>();
+        conf.put("username", "sa");
+        conf.put("password", "");
+        conf.put("jdbc", "org.h2.Driver");
+        conf.put("url", "jdbc:h2:mem:wherein_db;");
+        conf.put("dialect", "org.hibernate.dialect.H2Dialect");
+        conf.put("classes", new Class<?>[]{TestTable.class});
+        conf.put("inChunkSize", 7);
+        conf.put("metrics", true);
+        db = DatabaseUtils.get("hibernate", null, conf);
+        db.connect();
+        db.auto(TestTable.class).delete();
+        List<TestTable> rows = new ArrayList<>();
+        for (long i = 0; i < 50; i++) {
+            UUID uuid = UUID.randomUUID();
+            uuids.add(uuid);
+            rows.add(new TestTable(i, i % 2 == 0 ? "even" : "odd", uuid, UUID.randomUUID()));
+        }
+        db.auto(TestTable.class).insertAll(rows);
+    }
+
+    @After
+    public void closeDatabase() {
+        db.close();
+    }
+
+    @Test
+    public void selectsInChunks() {
+        List<String> wanted = uuids.subList(5, 35).stream().map(UUID::toString).collect(Collectors.toList());
+        db.getQueryMetrics().reset();
+        List<TestTable> rows = db.auto(TestTable.class).whereIn("uuid", wanted).select();
+        Assert.assertEquals(30, rows.size());
+        Assert.assertEquals(new java.util.HashSet<>(uuids.subList(5, 35)), rows.stream().map(r -> r.uuid).collect(Collectors.toSet()));
+        // 30 values, 7 parameters per statement
+        Assert.assertEquals(5, db.getQueryMetrics().snapshot().getQueryExecutions());
+        Assert.assertEquals(15, db.auto(TestTable.class).whereIn("uuid", wanted).whereEq("string", "odd").count());
+        Assert.assertEquals(15, db.auto(TestTable.class).whereIn("uuid", wanted).whereEq("string", "odd").selectColumns("id").size());
+        try (Stream<TestTable> stream = db.auto(TestTable.class).whereIn("uuid", wanted).stream()) {
+            Assert.assertEquals(30, stream.count());
+        }
+    }
+
+    @Test
+    public void updatesAndDeletesInChunks() {
+        List<Long> ids = new ArrayList<>();
+        for (long i = 0; i < 20; i++) {
+            ids.add(i);
+        }
+        db.auto(TestTable.class).whereIn("id", ids).update(new TestTable(null, "changed", null, null), "string");
+        Assert.assertEquals(20, db.auto(TestTable.class).whereEq("string", "changed").count());
+        db.getQueryMetrics().reset();
+        db.auto(TestTable.class).whereIn("id", ids.subList(0, 15)).delete();
+        Assert.assertEquals(15, db.getQueryMetrics().snapshot().get(TestTable.class, QueryMetrics.Operation.DELETE).getRows());
+        Assert.assertEquals(35, db.auto(TestTable.class).count());
+    }
+
+    @Test
+    public void chunksShareOneTransaction() {
+        List<Long> ids = new ArrayList<>();
+        for (long i = 0; i < 30; i++) {
+            ids.add(i);
+        }
+        try (HibernateDatabase.HibernateQuery<TestTable> query = db.transaction(TestTable.class)) {
+            query.whereIn("id", ids).delete();
+            Assert.assertEquals(20, db.query(TestTable.class).count());
+            query.markRollbackOnly();
+        }
+        Assert.assertEquals(50, db.auto(TestTable.class).count());
+    }
+
+    @Test
+    public void emptyListMatchesNothing() {
+        Assert.assertTrue(db.auto(TestTable.class).whereIn("id", Collections.emptyList()).orderBy("id").select().isEmpty());
+        Assert.assertEquals(0, db.auto(TestTable.class).whereIn("id", Collections.emptyList()).count());
+        db.auto(TestTable.class).whereIn("id", Collections.emptyList()).delete();
+        Assert.assertEquals(50, db.auto(TestTable.class).count());
+    }
+
+    @Test
+    public void smallListKeepsOrdering() {
+        List<TestTable> rows = db.auto(TestTable.class).whereIn("id", Arrays.asList(3L, 1L, 2L)).orderBy("id", true).select();
+        Assert.assertEquals(Arrays.asList(3L, 2L, 1L), rows.stream().map(r -> r.id).collect(Collectors.toList()));
+        Assert.assertEquals(1L, (long) db.auto(TestTable.class).whereIn("id", Arrays.asList(1L, 100L)).selectUnique().id);
+    }
+
+    @Test(expected = NonUniqueResultException.class)
+    public void uniqueAcrossChunks() {
+        Assert.assertEquals(0L, (long) db.auto(TestTable.class).whereIn("id", Arrays.asList(0L, 1L, 2L, 3L, 4L, 5L, 6L, 7L, 8L, 9L, 10L, 11L))
+                .whereIn("uuid", Collections.singletonList(uuids.get(0))).selectUnique().id);
+        db.auto(TestTable.class).whereIn("id", Arrays.asList(0L, 1L, 2L, 3L, 4L, 5L, 6L, 7L, 8L, 9L, 10L, 11L)).selectUnique();
+    }
+
+    @Test(expected = IllegalStateException.class)
+    public void rejectsOrderingAcrossChunks() {
+        List<Long> ids = new ArrayList<>();
+        for (long i = 0; i < 30; i++) {
+            ids.add(i);
+        }
+        db.auto(TestTable.class).whereIn("id", ids).orderBy("id").select();
+    }
+}
@@ -0,0 +1,171 @@
+package org.librazy.provider.hibernate;
+
+import cat.nyaa.nyaacore.database.DatabaseUtils;
+import org.hibernate.SessionFactory;
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.UUID;
+
+public class WriteBehindTest {
+    private HibernateDatabase db;
+    private HibernateDatabase observer;
+
+    @BeforeClass
+    public static void register() {
+        DatabaseUtils.registerProvider("hibernate", new HibernateProvider());
+    }
+
+    @Before
+    public void prepareDatabase() {
+        db = open(60000, 1000);
+        observer = DatabaseUtils.get("hibernate", null, config());
+    }
+
+    @After
+    public void closeDatabase() {
+        db.close();
+        observer.close();
+    }
+
+    private static Map<String, Object> config() {
+        Map<String, Object> conf = new HashMap<>();
+        conf.put("username", "sa");
+        conf.put("password", "");
+        conf.put("jdbc", "org.h2.Driver");
+        conf.put("url", "jdbc:h2:mem:write_behind_db;");
+        conf.put("dialect", "org.hibernate.dialect.H2Dialect");
+        conf.put("classes", new Class<?>[]{TestTable.class});
+        return conf;
+    }
+
+    private static HibernateDatabase open(int interval, int maxPending) {
+        Map<String, Object> conf = config();
+        conf.put("writeBehind", true);
+        conf.put("writeBehindInterval", interval);
+        conf.put("writeBehindMaxPending", maxPending);
+        HibernateDatabase db = DatabaseUtils.get("hibernate", null, conf);
+        db.connect();
+        db.auto(TestTable.class).delete();
+        for (long i = 1; i <= 3; i++) {
+            db.auto(TestTable.class).insert(new TestTable(i, "initial", UUID.randomUUID(), UUID.randomUUID()));
+        }
+        return db;
+    }
+
+    private String storedString(long id) {
+        return observer.auto(TestTable.class).whereEq("id", id).selectUnique().string;
+    }
+
+    @Test
+    public void coalescesUpdates() {
+        WriteBehindBuffer buffer = db.writeBehind();
+        UUID uuid = UUID.randomUUID();
+        for (int i = 0; i < 100; i++) {
+            buffer.update(new TestTable(1L, "s" + i, uuid, uuid), "string");
+        }
+        buffer.update(new TestTable(1L, "ignored", uuid, uuid), "uuid");
+        buffer.update(new TestTable(2L, "two", uuid, uuid), "string");
+        Assert.assertEquals(2, buffer.getPendingCount());
+        buffer.flush();
+        Assert.assertEquals(0, buffer.getPendingCount());
+        Assert.assertEquals(2, buffer.getFlushedRowCount());
+        Assert.assertEquals(1, buffer.getFlushCount());
+        TestTable one = db.auto(TestTable.class).whereEq("id", 1L).selectUnique();
+        Assert.assertEquals("s99", one.string);
+        Assert.assertEquals(uuid, one.uuid);
+        Assert.assertEquals("two", storedString(2L));
+        Assert.assertEquals("initial", storedString(3L));
+    }
+
+    @Test
+    public void readsSeePendingValues() {
+        db.writeBehind().update(new TestTable(1L, "pending", null, null), "string");
+        Assert.assertEquals("initial", storedString(1L));
+        Assert.assertEquals("pending", db.auto(TestTable.class).whereEq("id", 1L).selectUnique().string);
+        Assert.assertEquals(1, db.auto(TestTable.class).select().stream().filter(t -> "pending".equals(t.string)).count());
+        db.beginTransaction();
+        Assert.assertEquals("pending", db.query(TestTable.class).whereEq("id", 1L).selectUnique().string);
+        db.commitTransaction();
+        // the overlay must not make the loaded entity dirty and write it through on commit
+        Assert.assertEquals("initial", storedString(1L));
+    }
+
+    @Test
+    public void bulkWritesFlushPendingFirst() {
+        db.writeBehind().update(new TestTable(1L, "pending", null, null), "string");
+        db.auto(TestTable.class).whereEq("id", 1L).update(new TestTable(1L, "bulk", null, null), "string");
+        Assert.assertEquals(0, db.writeBehind().getPendingCount());
+        Assert.assertEquals("bulk", storedString(1L));
+    }
+
+    @Test
+    public void flushesWhenThresholdReached() throws InterruptedException {
+        db.close();
+        db = open(60000, 2);
+        db.writeBehind().update(new TestTable(1L, "a", null, null), "string");
+        db.writeBehind().update(new TestTable(2L, "b", null, null), "string");
+        for (int i = 0; i < 100 && db.writeBehind().getFlushCount() == 0; i++) {
+            Thread.sleep(20);
+        }
+        Assert.assertEquals("a", storedString(1L));
+        Assert.assertEquals("b", storedString(2L));
+    }
+
+    @Test
+    public void flushesOnTimer() throws InterruptedException {
+        db.close();
+        db = open(50, 1000);
+        db.writeBehind().update(new TestTable(3L, "timer", null, null), "string");
+        for (int i = 0; i < 100 && db.writeBehind().getFlushCount() == 0; i++) {
+            Thread.sleep(20);
+        }
+        Assert.assertEquals("timer", storedString(3L));
+    }
+
+    @Test
+    public void closeFlushes() {
+        db.writeBehind().update(new TestTable(2L, "closing", null, null), "string");
+        db.close();
+        Assert.assertEquals("closing", storedString(2L));
+        db = open(60000, 1000);
+    }
+
+    @Test
+    public void transactionsWriteBufferedRowsThemselves() {
+        db.beginTransaction();
+        db.auto(TestTable.class).whereEq("id", 1L).update(new TestTable(1L, "locked", null, null), "string");
+        db.writeBehind().update(new TestTable(1L, "buffered", null, null), "string");
+        Assert.assertEquals("buffered", db.auto(TestTable.class).whereEq("id", 1L).selectColumns("string").get(0)[0]);
+        Assert.assertEquals(0, db.writeBehind().getPendingCount());
+        db.rollbackTransaction();
+        Assert.assertEquals(1, db.writeBehind().getPendingCount());
+        Assert.assertEquals("initial", storedString(1L));
+
+        db.beginTransaction();
+        Assert.assertEquals("buffered", db.auto(TestTable.class).whereEq("id", 1L).selectColumns("string").get(0)[0]);
+        db.commitTransaction();
+        Assert.assertEquals(0, db.writeBehind().getPendingCount());
+        Assert.assertEquals("buffered", storedString(1L));
+    }
+
+    @Test
+    public void closeCompletesWhenTheFinalFlushFails() {
+        StringBuilder tooLong = new StringBuilder();
+        for (int i = 0; i < 300; i++) {
+            tooLong.append('x');
+        }
+        db.writeBehind().update(new TestTable(2L, tooLong.toString(), null, null), "string");
+        SessionFactory factory = db.currentFactory();
+        db.close();
+        Assert.assertFalse(factory.isOpen());
+        Assert.assertEquals(0, db.writeBehind().getPendingCount());
+        Assert.assertEquals("initial", storedString(2L));
+        db = open(60000, 1000);
+    }
+}